@@ -0,0 +1,26 @@
+package com.tarasantoshchuk.permissionsmanager.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares a permissions request of the Activity and its result handler.
+ *
+ * The method must not be private or static, and takes either {@code (int result)} or
+ * {@code (int result, String... permissions)}, as in {@code Request.Listener#onRequestResult}.
+ * A binding class named {@code <Activity>_PermissionRequests} is generated for the Activity.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface OnPermissionsResult {
+    int requestCode();
+
+    String[] permissions();
+
+    /**
+     * Whether every permission is requested separately, see {@code PermissionsManager#createRequestEach}.
+     */
+    boolean each() default false;
+}
@@ -0,0 +1,22 @@
+package com.tarasantoshchuk.permissionsmanager.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Rationale handler of a request declared with {@link OnPermissionsResult}.
+ *
+ * The method must not be private or static, returns boolean as
+ * {@code Request.Listener#onShowRationale}, and takes either no arguments or the {@code Request}.
+ * Without a rationale handler, the request proceeds without showing rationale.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface OnShowRationale {
+    /**
+     * Request code of the request.
+     */
+    int value();
+}
@@ -0,0 +1,142 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+import java.io.File;
+import java.util.HashSet;
+
+/**
+ * Permissions declared in the app manifest. Only declared permissions can ever be granted, and
+ * before M each of them is granted at install, so both questions are answered without IPC.
+ *
+ * Read once from PackageManager and cached in preferences, keyed by the installed apk, so later
+ * launches of the same install don't read it again. The apk path and modification time are used
+ * instead of the version code, which needs PackageManager to read, and stays the same when a
+ * development build with changed manifest is reinstalled.
+ */
+final class DeclaredPermissions {
+    private static final String TAG = DeclaredPermissions.class.getSimpleName();
+
+    static final String PREFS_KEY_SOURCE = "PREFS_KEY_DECLARED_PERMISSIONS_SOURCE";
+    static final String PREFS_KEY_PERMISSIONS = "PREFS_KEY_DECLARED_PERMISSIONS";
+
+    private static final char SEPARATOR = '\n';
+
+    /**
+     * Used when the manifest can't be read, treats every permission as declared.
+     */
+    static final DeclaredPermissions UNKNOWN = new DeclaredPermissions(null);
+
+    private final HashSet<String> mPermissions;
+
+    private DeclaredPermissions(HashSet<String> permissions) {
+        mPermissions = permissions;
+    }
+
+    static DeclaredPermissions of(String... permissions) {
+        HashSet<String> set = new HashSet<>();
+        if (permissions != null) {
+            for (String permission : permissions) {
+                set.add(permission);
+            }
+        }
+        return new DeclaredPermissions(set);
+    }
+
+    /**
+     * @param prefs preferences to cache declared permissions in, or null to not cache them
+     */
+    static DeclaredPermissions load(Context context, SharedPreferences prefs) {
+        String source = prefs == null ? null : getSource(context);
+        DeclaredPermissions cached = read(prefs, source);
+        if (cached != null) {
+            return cached;
+        }
+
+        PackageManager packageManager = context.getPackageManager();
+        if (packageManager == null) {
+            return UNKNOWN;
+        }
+
+        PackageInfo packageInfo;
+        try {
+            packageInfo = packageManager.getPackageInfo(context.getPackageName(), PackageManager.GET_PERMISSIONS);
+        } catch (final PackageManager.NameNotFoundException e) {
+            if (Trace.isEnabled(Trace.LEVEL_WARN)) {
+                Trace.message(Trace.LEVEL_WARN, TAG, new Trace.Message() {
+                    @Override
+                    public String get() {
+                        return "can't read declared permissions, " + e;
+                    }
+                });
+            }
+            return UNKNOWN;
+        }
+
+        DeclaredPermissions declared = of(packageInfo.requestedPermissions);
+        if (source != null) {
+            declared.write(prefs, source);
+        }
+        return declared;
+    }
+
+    /**
+     * @return permissions cached for the given source, or null if they were cached for another one
+     */
+    static DeclaredPermissions read(SharedPreferences prefs, String source) {
+        if (source == null || !source.equals(prefs.getString(PREFS_KEY_SOURCE, null))) {
+            return null;
+        }
+
+        String permissions = prefs.getString(PREFS_KEY_PERMISSIONS, "");
+        return permissions.length() == 0 ? of() : of(permissions.split(String.valueOf(SEPARATOR)));
+    }
+
+    void write(SharedPreferences prefs, String source) {
+        StringBuilder permissions = new StringBuilder();
+        for (String permission : mPermissions) {
+            if (permissions.length() > 0) {
+                permissions.append(SEPARATOR);
+            }
+            permissions.append(permission);
+        }
+
+        prefs.edit()
+                .putString(PREFS_KEY_SOURCE, source)
+                .putString(PREFS_KEY_PERMISSIONS, permissions.toString())
+                .apply();
+    }
+
+    /**
+     * @return installed apk path and its modification time, or null if unknown
+     */
+    private static String getSource(Context context) {
+        ApplicationInfo applicationInfo = context.getApplicationInfo();
+        if (applicationInfo == null || applicationInfo.sourceDir == null) {
+            return null;
+        }
+        return applicationInfo.sourceDir + ':' + new File(applicationInfo.sourceDir).lastModified();
+    }
+
+    /**
+     * @return true if the permission is declared, or if declared permissions are unknown
+     */
+    boolean isDeclared(String permission) {
+        return mPermissions == null || mPermissions.contains(permission);
+    }
+
+    /**
+     * @throws IllegalArgumentException if any of the permissions is not declared
+     */
+    void checkDeclared(String... permissions) {
+        for (String permission : permissions) {
+            if (!isDeclared(permission)) {
+                throw new IllegalArgumentException(permission + " is not declared in the manifest");
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.Application;
+import android.os.Build;
+import android.os.Bundle;
+
+/**
+ * Notifies when the app comes to foreground, i.e. its first activity is started after all
+ * activities were stopped, and when an activity is destroyed.
+ */
+@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+final class ForegroundTracker implements Application.ActivityLifecycleCallbacks {
+    private final Listener mListener;
+    private int mStartedCount;
+
+    ForegroundTracker(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+        if (mStartedCount++ == 0) {
+            mListener.onForeground();
+        }
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+        if (mStartedCount > 0) {
+            mStartedCount--;
+        }
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+        mListener.onActivityDestroyed(activity);
+    }
+
+    interface Listener {
+        void onForeground();
+
+        void onActivityDestroyed(Activity activity);
+    }
+}
@@ -0,0 +1,87 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+/**
+ * Histogram of durations in nanoseconds with power-of-two buckets.
+ */
+public final class Histogram {
+    private static final int BUCKETS = 64;
+
+    private final long[] mBuckets = new long[BUCKETS];
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    Histogram() {
+    }
+
+    private Histogram(Histogram other) {
+        System.arraycopy(other.mBuckets, 0, mBuckets, 0, BUCKETS);
+        mCount = other.mCount;
+        mSum = other.mSum;
+        mMin = other.mMin;
+        mMax = other.mMax;
+    }
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        mBuckets[BUCKETS - 1 - Long.numberOfLeadingZeros(value | 1)]++;
+        mCount++;
+        mSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    Histogram copy() {
+        return new Histogram(this);
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getMin() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    public long getMean() {
+        return mCount == 0 ? 0 : mSum / mCount;
+    }
+
+    /**
+     * @param percentile in range [0, 100]
+     * @return upper bound of the bucket, that contains the percentile
+     */
+    public long getPercentile(double percentile) {
+        long rank = (long) Math.ceil(mCount * percentile / 100);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1, mMax);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Histogram{" +
+                "count=" + mCount +
+                ", min=" + getMin() +
+                ", mean=" + getMean() +
+                ", p50=" + getPercentile(50) +
+                ", p90=" + getPercentile(90) +
+                ", p99=" + getPercentile(99) +
+                ", max=" + mMax +
+                '}';
+    }
+}
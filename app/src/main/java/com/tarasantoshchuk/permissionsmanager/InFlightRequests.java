@@ -0,0 +1,99 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Requests, that were launched and wait for permissions result. A request, whose permissions are
+ * all covered by a request already in flight, is attached to it instead of being launched again.
+ *
+ * Only such subset coverage is coalesced. A request, that overlaps an in-flight one only
+ * partially, is launched on its own with all of its permissions, so the shared ones may be shown
+ * in the dialog again; its launch waits for the in-flight one, see {@link LaunchScheduler}, and
+ * permissions granted meanwhile are granted again without a dialog.
+ */
+final class InFlightRequests {
+    private final ArrayList<Entry> mEntries = new ArrayList<>();
+
+    /**
+     * Attached requests, that were not moved to {@link Request#STATE_REQUESTED} yet.
+     */
+    private final ArrayList<Request> mAttaching = new ArrayList<>();
+
+    /**
+     * An attached request has to be moved to {@link Request#STATE_REQUESTED} and reported to
+     * {@link #onAttached(Request)}; results of its leader are held back until then.
+     *
+     * @return in-flight request, that the request was attached to, or null if the request has to
+     * be launched; in that case it is registered as in flight itself
+     */
+    synchronized Request attach(Request request) {
+        for (Entry entry : mEntries) {
+            if (entry.leader == request) {
+                return null;
+            }
+        }
+
+        for (Entry entry : mEntries) {
+            if (entry.leader.containsAllPermissions(request)) {
+                entry.followers.add(request);
+                mAttaching.add(request);
+                return entry.leader;
+            }
+        }
+
+        mEntries.add(new Entry(request));
+        return null;
+    }
+
+    synchronized void onAttached(Request request) {
+        mAttaching.remove(request);
+        notifyAll();
+    }
+
+    /**
+     * Removes the in-flight request with the given code. Waits for requests, that are being
+     * attached to it, to reach {@link Request#STATE_REQUESTED}, so they can take its results.
+     *
+     * @return requests, that were attached to it
+     */
+    synchronized List<Request> complete(int requestCode) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            Entry entry = mEntries.get(i);
+            if (entry.leader.requestCode == requestCode) {
+                mEntries.remove(i);
+                awaitAttached(entry.followers);
+                return entry.followers;
+            }
+        }
+
+        return Collections.emptyList();
+    }
+
+    private void awaitAttached(List<Request> followers) {
+        boolean interrupted = false;
+        for (Request follower : followers) {
+            while (mAttaching.contains(follower)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Entry {
+        final Request leader;
+        final ArrayList<Request> followers = new ArrayList<>();
+
+        Entry(Request leader) {
+            this.leader = leader;
+        }
+    }
+}
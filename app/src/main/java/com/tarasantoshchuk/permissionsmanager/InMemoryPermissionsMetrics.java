@@ -0,0 +1,179 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+/**
+ * {@link PermissionsMetrics}, that aggregates measurements in memory. Recording doesn't allocate;
+ * {@link #snapshot()} returns a consistent copy, that can be dumped or exported.
+ */
+public final class InMemoryPermissionsMetrics implements PermissionsMetrics {
+    private static final int STATE_COUNT = Request.STATE_FINISHED + 1;
+    private static final int RESULT_COUNT = Request.RESULT_DENIED_FOREVER + 1;
+    private static final int STRATEGY_COUNT = PermissionsManager.LAUNCH_STRATEGY_FRAGMENT + 1;
+
+    private final Histogram[] mTimeInState = new Histogram[STATE_COUNT];
+    private final Histogram[] mRequestLatency = new Histogram[STRATEGY_COUNT];
+    private final Histogram mLaunchLatency = new Histogram();
+    private final Histogram mFlushDuration = new Histogram();
+    private final Histogram mLaunchWait = new Histogram();
+    private final long[] mResultCounts = new long[RESULT_COUNT];
+    private long mEvictedCount;
+    private int mMaxLaunchQueueDepth;
+    private long mTimedOutLaunchCount;
+
+    public InMemoryPermissionsMetrics() {
+        for (int i = 0; i < STATE_COUNT; i++) {
+            mTimeInState[i] = new Histogram();
+        }
+        for (int i = 0; i < STRATEGY_COUNT; i++) {
+            mRequestLatency[i] = new Histogram();
+        }
+    }
+
+    @Override
+    public synchronized void onStateTransition(int requestCode, @Request.State int fromState, @Request.State int toState, long durationNanos) {
+        mTimeInState[fromState].record(durationNanos);
+    }
+
+    @Override
+    public synchronized void onPermissionsRequested(int requestCode, @PermissionsManager.LaunchStrategy int strategy, long durationNanos) {
+        mRequestLatency[strategy].record(durationNanos);
+    }
+
+    @Override
+    public synchronized void onLaunchCompleted(int requestCode, long durationNanos) {
+        mLaunchLatency.record(durationNanos);
+    }
+
+    @Override
+    public synchronized void onPersistenceFlush(int changeCount, long durationNanos) {
+        mFlushDuration.record(durationNanos);
+    }
+
+    @Override
+    public synchronized void onRequestFinished(int requestCode, @Request.Result int result) {
+        mResultCounts[result]++;
+    }
+
+    @Override
+    public synchronized void onLaunchStarted(int requestCode, long waitNanos, int queueDepth) {
+        mLaunchWait.record(waitNanos);
+        mMaxLaunchQueueDepth = Math.max(mMaxLaunchQueueDepth, queueDepth);
+    }
+
+    @Override
+    public synchronized void onLaunchTimedOut(int requestCode) {
+        mTimedOutLaunchCount++;
+    }
+
+    @Override
+    public synchronized void onRequestsEvicted(int count) {
+        mEvictedCount += count;
+    }
+
+    public synchronized Snapshot snapshot() {
+        Histogram[] timeInState = new Histogram[STATE_COUNT];
+        for (int i = 0; i < STATE_COUNT; i++) {
+            timeInState[i] = mTimeInState[i].copy();
+        }
+        Histogram[] requestLatency = new Histogram[STRATEGY_COUNT];
+        for (int i = 0; i < STRATEGY_COUNT; i++) {
+            requestLatency[i] = mRequestLatency[i].copy();
+        }
+        return new Snapshot(timeInState, requestLatency, mLaunchLatency.copy(), mFlushDuration.copy(), mLaunchWait.copy(),
+                mResultCounts.clone(), mEvictedCount, mMaxLaunchQueueDepth, mTimedOutLaunchCount);
+    }
+
+    public static final class Snapshot {
+        private final Histogram[] mTimeInState;
+        private final Histogram[] mRequestLatency;
+        private final Histogram mLaunchLatency;
+        private final Histogram mFlushDuration;
+        private final Histogram mLaunchWait;
+        private final long[] mResultCounts;
+        private final long mEvictedCount;
+        private final int mMaxLaunchQueueDepth;
+        private final long mTimedOutLaunchCount;
+
+        private Snapshot(Histogram[] timeInState, Histogram[] requestLatency, Histogram launchLatency, Histogram flushDuration,
+                         Histogram launchWait, long[] resultCounts, long evictedCount, int maxLaunchQueueDepth, long timedOutLaunchCount) {
+            mTimeInState = timeInState;
+            mRequestLatency = requestLatency;
+            mLaunchLatency = launchLatency;
+            mFlushDuration = flushDuration;
+            mLaunchWait = launchWait;
+            mResultCounts = resultCounts;
+            mEvictedCount = evictedCount;
+            mMaxLaunchQueueDepth = maxLaunchQueueDepth;
+            mTimedOutLaunchCount = timedOutLaunchCount;
+        }
+
+        /**
+         * @return nanoseconds spent in the state before moving on
+         */
+        public Histogram getTimeInState(@Request.State int state) {
+            return mTimeInState[state];
+        }
+
+        /**
+         * @return nanoseconds from launch to the permissions dialog being requested, for the launch strategy
+         */
+        public Histogram getRequestLatency(@PermissionsManager.LaunchStrategy int strategy) {
+            return mRequestLatency[strategy];
+        }
+
+        public Histogram getLaunchLatency() {
+            return mLaunchLatency;
+        }
+
+        public Histogram getFlushDuration() {
+            return mFlushDuration;
+        }
+
+        /**
+         * @return nanoseconds launches waited in the queue for the in-flight slot
+         */
+        public Histogram getLaunchWait() {
+            return mLaunchWait;
+        }
+
+        /**
+         * @return max number of launches, that waited in the queue when a launch started
+         */
+        public int getMaxLaunchQueueDepth() {
+            return mMaxLaunchQueueDepth;
+        }
+
+        public long getTimedOutLaunchCount() {
+            return mTimedOutLaunchCount;
+        }
+
+        public long getResultCount(@Request.Result int result) {
+            return mResultCounts[result];
+        }
+
+        public long getEvictedCount() {
+            return mEvictedCount;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("Snapshot{");
+            for (int i = 0; i < mTimeInState.length; i++) {
+                builder.append("timeInState[").append(i).append("]=").append(mTimeInState[i]).append(", ");
+            }
+            return builder
+                    .append("requestLatency[shadowActivity]=").append(mRequestLatency[PermissionsManager.LAUNCH_STRATEGY_SHADOW_ACTIVITY])
+                    .append(", requestLatency[fragment]=").append(mRequestLatency[PermissionsManager.LAUNCH_STRATEGY_FRAGMENT])
+                    .append(", launchLatency=").append(mLaunchLatency)
+                    .append(", flushDuration=").append(mFlushDuration)
+                    .append(", launchWait=").append(mLaunchWait)
+                    .append(", maxLaunchQueueDepth=").append(mMaxLaunchQueueDepth)
+                    .append(", timedOutLaunches=").append(mTimedOutLaunchCount)
+                    .append(", granted=").append(mResultCounts[Request.RESULT_GRANTED])
+                    .append(", denied=").append(mResultCounts[Request.RESULT_DENIED])
+                    .append(", deniedForever=").append(mResultCounts[Request.RESULT_DENIED_FOREVER])
+                    .append(", evicted=").append(mEvictedCount)
+                    .append('}')
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import java.util.List;
+
+/**
+ * Open-addressing map from request code to request, with linear probing. Avoids boxing request
+ * codes, which are usually resource ids outside of the {@link Integer} cache range.
+ *
+ * Not thread-safe.
+ */
+final class IntRequestMap {
+    private static final int MIN_CAPACITY = 8;
+
+    private int[] mKeys;
+    private Request[] mValues;
+    private int mSize;
+
+    IntRequestMap() {
+        mKeys = new int[MIN_CAPACITY];
+        mValues = new Request[MIN_CAPACITY];
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int indexOf(int key) {
+        int mask = mKeys.length - 1;
+        int index = hash(key) & mask;
+
+        while (mValues[index] != null) {
+            if (mKeys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+
+        return ~index;
+    }
+
+    Request get(int key) {
+        int index = indexOf(key);
+        return index >= 0 ? mValues[index] : null;
+    }
+
+    Request put(int key, Request value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+
+        int index = indexOf(key);
+        if (index >= 0) {
+            Request previous = mValues[index];
+            mValues[index] = value;
+            return previous;
+        }
+
+        index = ~index;
+        mKeys[index] = key;
+        mValues[index] = value;
+
+        if (++mSize * 4 > mKeys.length * 3) {
+            resize(mKeys.length * 2);
+        }
+        return null;
+    }
+
+    Request remove(int key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+
+        Request previous = mValues[index];
+        mValues[index] = null;
+        mSize--;
+
+        // shift back following entries of the probe sequence, so lookups don't stop at the gap
+        int mask = mKeys.length - 1;
+        int gap = index;
+        int current = (index + 1) & mask;
+        while (mValues[current] != null) {
+            int home = hash(mKeys[current]) & mask;
+            if (((current - home) & mask) >= ((current - gap) & mask)) {
+                mKeys[gap] = mKeys[current];
+                mValues[gap] = mValues[current];
+                mValues[current] = null;
+                gap = current;
+            }
+            current = (current + 1) & mask;
+        }
+
+        return previous;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void addValuesTo(List<Request> result) {
+        for (Request value : mValues) {
+            if (value != null) {
+                result.add(value);
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        int[] keys = mKeys;
+        Request[] values = mValues;
+
+        mKeys = new int[capacity];
+        mValues = new Request[capacity];
+
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) {
+                int index = ~indexOf(keys[i]);
+                mKeys[index] = keys[i];
+                mValues[index] = values[i];
+            }
+        }
+    }
+}
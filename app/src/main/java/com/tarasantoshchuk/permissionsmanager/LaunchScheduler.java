@@ -0,0 +1,247 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.os.Handler;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Serializes request launches, so concurrent requests don't start several ShadowActivity
+ * instances, that replace each other's intents.
+ *
+ * Launches wait in a queue ordered by priority, then by arrival, and only one is in flight at a
+ * time. A launch of higher priority preempts the one in flight, unless the latter already
+ * requested permissions; the preempted launch goes back to the queue. A launch, that doesn't
+ * request permissions within the launch timeout, is dropped, so a launch that never got to
+ * show, e.g. because the app went to background, doesn't block the queue. A launch, that
+ * requested permissions, is dropped once it doesn't complete within the longer request timeout,
+ * e.g. because its results were lost.
+ */
+final class LaunchScheduler {
+    private static final String TAG = LaunchScheduler.class.getSimpleName();
+
+    static final long DEFAULT_LAUNCH_TIMEOUT_MS = 10 * 1000;
+    static final long DEFAULT_REQUEST_TIMEOUT_MS = 10 * 60 * 1000;
+
+    interface Launcher {
+        void start(Launch launch);
+
+        /**
+         * Called for a launch, that didn't request permissions within the launch timeout, or
+         * didn't complete within the request timeout.
+         */
+        void onTimedOut(Launch launch);
+    }
+
+    static final class Launch {
+        final long id;
+        final int[] requestCodes;
+        final int priority;
+
+        /**
+         * {@link System#nanoTime()} of the first enqueue, kept when preempted.
+         */
+        final long enqueuedAt;
+
+        /**
+         * Guarded by the scheduler.
+         */
+        private boolean mPreemptible = true;
+        private int mCompletedCount;
+
+        /**
+         * Number of timers posted for the launch; only the last one may time it out, so timers
+         * of an earlier start, or of the launch stage, are ignored.
+         */
+        private int mTimerCount;
+
+        Launch(long id, int[] requestCodes, int priority) {
+            this.id = id;
+            this.requestCodes = requestCodes;
+            this.priority = priority;
+            enqueuedAt = System.nanoTime();
+        }
+
+        int indexOf(int requestCode) {
+            for (int i = 0; i < requestCodes.length; i++) {
+                if (requestCodes[i] == requestCode) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static final Comparator<Launch> ORDER = new Comparator<Launch>() {
+        @Override
+        public int compare(Launch first, Launch second) {
+            if (first.priority != second.priority) {
+                return first.priority > second.priority ? -1 : 1;
+            }
+            return first.id < second.id ? -1 : (first.id == second.id ? 0 : 1);
+        }
+    };
+
+    private final Launcher mLauncher;
+    private final Handler mHandler;
+
+    private final PriorityQueue<Launch> mQueue = new PriorityQueue<>(11, ORDER);
+    private Launch mInFlight;
+    private long mNextId;
+
+    private volatile long mLaunchTimeout = DEFAULT_LAUNCH_TIMEOUT_MS;
+    private volatile long mRequestTimeout = DEFAULT_REQUEST_TIMEOUT_MS;
+    private volatile PermissionsMetrics mMetrics = PermissionsMetrics.NO_OP;
+
+    LaunchScheduler(Launcher launcher, Handler handler) {
+        mLauncher = launcher;
+        mHandler = handler;
+    }
+
+    void setLaunchTimeout(long timeoutMs) {
+        mLaunchTimeout = timeoutMs;
+    }
+
+    void setRequestTimeout(long timeoutMs) {
+        mRequestTimeout = timeoutMs;
+    }
+
+    void setMetrics(PermissionsMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Starts the launch right away if nothing is in flight, or if it preempts the launch in flight.
+     */
+    void enqueue(int[] requestCodes, int priority) {
+        Launch started;
+        int queueDepth;
+        synchronized (this) {
+            Launch launch = new Launch(mNextId++, requestCodes, priority);
+
+            if (mInFlight != null && (!mInFlight.mPreemptible || priority <= mInFlight.priority)) {
+                mQueue.add(launch);
+                Trace.event(Trace.LEVEL_DEBUG, TAG, Trace.EVENT_ENQUEUE, requestCodes[0], priority, mQueue.size());
+                return;
+            }
+
+            if (mInFlight != null) {
+                Trace.event(Trace.LEVEL_INFO, TAG, Trace.EVENT_PREEMPT, mInFlight.requestCodes[0], requestCodes[0]);
+                mInFlight.mCompletedCount = 0;
+                mQueue.add(mInFlight);
+            }
+            mInFlight = launch;
+            started = launch;
+            queueDepth = mQueue.size();
+        }
+
+        start(started, queueDepth);
+    }
+
+    /**
+     * @return true if the launch is in flight; a launch, that was preempted or timed out, must
+     * not request permissions
+     */
+    synchronized boolean isInFlight(long launchId) {
+        return mInFlight != null && mInFlight.id == launchId;
+    }
+
+    /**
+     * Marks the launch in flight, that contains the request, as no longer preemptible.
+     */
+    void onRequested(int requestCode) {
+        Launch launch;
+        int timer;
+        synchronized (this) {
+            if (mInFlight == null || mInFlight.indexOf(requestCode) < 0 || !mInFlight.mPreemptible) {
+                return;
+            }
+            launch = mInFlight;
+            launch.mPreemptible = false;
+            timer = ++launch.mTimerCount;
+        }
+
+        postTimeOut(launch, timer, mRequestTimeout);
+    }
+
+    /**
+     * Frees the slot, once every request of the launch in flight got its result, and starts
+     * the next launch.
+     */
+    void onCompleted(int requestCode) {
+        synchronized (this) {
+            if (mInFlight == null || mInFlight.indexOf(requestCode) < 0) {
+                return;
+            }
+            if (++mInFlight.mCompletedCount < mInFlight.requestCodes.length) {
+                return;
+            }
+            mInFlight = null;
+        }
+
+        startNext();
+    }
+
+    synchronized int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    private void startNext() {
+        Launch next;
+        int queueDepth;
+        synchronized (this) {
+            if (mInFlight != null) {
+                return;
+            }
+            next = mQueue.poll();
+            if (next == null) {
+                return;
+            }
+            mInFlight = next;
+            queueDepth = mQueue.size();
+        }
+
+        start(next, queueDepth);
+    }
+
+    private void start(Launch launch, int queueDepth) {
+        mMetrics.onLaunchStarted(launch.requestCodes[0], System.nanoTime() - launch.enqueuedAt, queueDepth);
+
+        int timer;
+        synchronized (this) {
+            timer = ++launch.mTimerCount;
+        }
+        postTimeOut(launch, timer, mLaunchTimeout);
+
+        mLauncher.start(launch);
+    }
+
+    private void postTimeOut(final Launch launch, final int timer, long delayMs) {
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                timeOut(launch, timer);
+            }
+        }, delayMs);
+    }
+
+    /**
+     * Drops the launch, if it is still in flight and the timer is the last one posted for it.
+     *
+     * @param timer number of the timer, counting from 1 for the first start of the launch
+     */
+    void timeOut(Launch launch, int timer) {
+        synchronized (this) {
+            if (mInFlight != launch || launch.mTimerCount != timer) {
+                return;
+            }
+            mInFlight = null;
+        }
+
+        Trace.event(Trace.LEVEL_WARN, TAG, Trace.EVENT_LAUNCH_TIMEOUT, launch.requestCodes[0], launch.requestCodes.length);
+        mMetrics.onLaunchTimedOut(launch.requestCodes[0]);
+        mLauncher.onTimedOut(launch);
+
+        startNext();
+    }
+}
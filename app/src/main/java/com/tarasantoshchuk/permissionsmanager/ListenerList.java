@@ -0,0 +1,130 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.app.Activity;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Listeners of a request bound to an Activity, see {@link Request#addListener(Activity, Request.Listener)}.
+ *
+ * Listeners are kept in an immutable array replaced on every change, so dispatch iterates it
+ * without locking or allocating. Listeners and their Activities are held weakly, since a listener
+ * usually captures its Activity. A listener is dropped when its Activity is destroyed, or, where
+ * destruction is not reported, once the Activity is finishing, or either of them is collected.
+ */
+final class ListenerList {
+    private static final Binding[] EMPTY = new Binding[0];
+
+    private volatile Binding[] mBindings = EMPTY;
+
+    static final class Binding {
+        private final WeakReference<Activity> mOwner;
+        private final WeakReference<Request.Listener> mListener;
+
+        Binding(Activity owner, Request.Listener listener) {
+            mOwner = new WeakReference<>(owner);
+            mListener = new WeakReference<>(listener);
+        }
+
+        boolean isOwnedBy(Activity activity) {
+            return mOwner.get() == activity;
+        }
+
+        /**
+         * @return the listener, or null if it is collected, or its owner is finishing or gone, so
+         * it must not be called
+         */
+        Request.Listener getListener() {
+            Activity owner = mOwner.get();
+            if (owner == null || owner.isFinishing()) {
+                return null;
+            }
+            return mListener.get();
+        }
+    }
+
+    /**
+     * @return listeners in the order they were added; the array must not be modified
+     */
+    Binding[] get() {
+        return mBindings;
+    }
+
+    boolean isEmpty() {
+        return mBindings.length == 0;
+    }
+
+    /**
+     * Adds the listener, or rebinds it to the new owner if it was already added.
+     */
+    synchronized void add(Activity owner, Request.Listener listener) {
+        Binding binding = new Binding(owner, listener);
+
+        Binding[] bindings = mBindings;
+        int index = indexOf(bindings, listener);
+        if (index >= 0) {
+            Binding[] updated = bindings.clone();
+            updated[index] = binding;
+            mBindings = updated;
+            return;
+        }
+
+        Binding[] updated = new Binding[bindings.length + 1];
+        System.arraycopy(bindings, 0, updated, 0, bindings.length);
+        updated[bindings.length] = binding;
+        mBindings = updated;
+    }
+
+    synchronized boolean remove(Request.Listener listener) {
+        Binding[] bindings = mBindings;
+        int index = indexOf(bindings, listener);
+        if (index < 0) {
+            return false;
+        }
+
+        Binding[] updated = new Binding[bindings.length - 1];
+        System.arraycopy(bindings, 0, updated, 0, index);
+        System.arraycopy(bindings, index + 1, updated, index, updated.length - index);
+        mBindings = updated;
+        return true;
+    }
+
+    /**
+     * Removes listeners owned by the Activity, and listeners, that are gone, or whose owner is
+     * finishing or gone.
+     *
+     * @return number of removed listeners
+     */
+    synchronized int removeOwnedBy(Activity activity) {
+        Binding[] bindings = mBindings;
+        int kept = 0;
+        Binding[] updated = new Binding[bindings.length];
+        for (Binding binding : bindings) {
+            if (!binding.isOwnedBy(activity) && binding.getListener() != null) {
+                updated[kept++] = binding;
+            }
+        }
+
+        if (kept == bindings.length) {
+            return 0;
+        }
+
+        if (kept == 0) {
+            mBindings = EMPTY;
+        } else {
+            Binding[] trimmed = new Binding[kept];
+            System.arraycopy(updated, 0, trimmed, 0, kept);
+            mBindings = trimmed;
+        }
+        return bindings.length - kept;
+    }
+
+    private static int indexOf(Binding[] bindings, Request.Listener listener) {
+        for (int i = 0; i < bindings.length; i++) {
+            if (bindings[i].mListener.get() == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
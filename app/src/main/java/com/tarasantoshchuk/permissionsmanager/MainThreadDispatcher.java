@@ -0,0 +1,84 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.LinkedList;
+
+/**
+ * Runs callbacks on the main thread, in the order they were dispatched. A callback dispatched on
+ * the main thread while nothing is queued runs inline, without allocations or posting.
+ */
+final class MainThreadDispatcher {
+    /**
+     * Thread callbacks are dispatched to, replaced in tests that run without a Looper.
+     */
+    interface MainThread {
+        boolean isCurrent();
+
+        void post(Runnable task);
+    }
+
+    private final MainThread mMainThread;
+    private final LinkedList<Runnable> mQueue = new LinkedList<>();
+    private boolean mDraining;
+
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Runnable next;
+                synchronized (mQueue) {
+                    next = mQueue.poll();
+                    if (next == null) {
+                        mDraining = false;
+                        return;
+                    }
+                }
+                next.run();
+            }
+        }
+    };
+
+    MainThreadDispatcher() {
+        this(new MainThread() {
+            private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+            @Override
+            public boolean isCurrent() {
+                return Looper.myLooper() == Looper.getMainLooper();
+            }
+
+            @Override
+            public void post(Runnable task) {
+                mHandler.post(task);
+            }
+        });
+    }
+
+    MainThreadDispatcher(MainThread mainThread) {
+        mMainThread = mainThread;
+    }
+
+    /**
+     * @return true if a callback dispatched from the current thread may run inline
+     */
+    boolean canRunInline() {
+        if (!mMainThread.isCurrent()) {
+            return false;
+        }
+        synchronized (mQueue) {
+            return !mDraining;
+        }
+    }
+
+    void dispatch(Runnable callback) {
+        synchronized (mQueue) {
+            mQueue.add(callback);
+            if (!mDraining) {
+                mDraining = true;
+                mMainThread.post(mDrainTask);
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.app.Activity;
+
+/**
+ * Platform calls of {@link PermissionsManager}, so the request state machine can run without a
+ * device, see {@link PlatformPermissionBackend} for the default one.
+ */
+interface PermissionBackend {
+    /**
+     * @return {@link android.content.pm.PackageManager#PERMISSION_GRANTED} or
+     * {@link android.content.pm.PackageManager#PERMISSION_DENIED}
+     */
+    int checkSelfPermission(String permission);
+
+    boolean shouldShowRequestPermissionRationale(Activity activity, String permission);
+
+    /**
+     * Shows the permissions dialog for the requests of the launch. Once shown it has to be
+     * reported to {@link PermissionsManager#onPermissionsRequested(int, int...)}, and its results
+     * to {@link PermissionsManager#handleBatchResult(int[], String[], int[], boolean[])}.
+     */
+    void requestPermissions(long launchId, int[] requestCodes);
+}
@@ -0,0 +1,91 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+
+/**
+ * Process-wide cache of permission grant states, so repeated status checks don't go through
+ * {@link android.content.Context#checkSelfPermission(String)} every time.
+ *
+ * Revoking a permission in settings kills the process, so a cached grant can't outlive it; a
+ * permission granted in settings is picked up after the app returns to foreground, when the
+ * cache is invalidated, or when the entry is older than {@link #setTtl(long) ttl}.
+ */
+public final class PermissionCache {
+    public static final long DEFAULT_TTL_MS = 60 * 1000;
+
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+
+    private long mTtl = DEFAULT_TTL_MS;
+    private long mHitCount;
+    private long mMissCount;
+
+    PermissionCache() {
+    }
+
+    /**
+     * @param ttl entry lifetime in milliseconds, 0 disables caching
+     */
+    public synchronized void setTtl(long ttl) {
+        mTtl = ttl;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized void invalidate() {
+        mEntries.clear();
+    }
+
+    /**
+     * @return cached grant state or null if it is missing or expired
+     */
+    Boolean get(String permission) {
+        return get(permission, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @param now current {@link SystemClock#elapsedRealtime()}
+     */
+    synchronized Boolean get(String permission, long now) {
+        Entry entry = mEntries.get(permission);
+
+        if (entry != null && now - entry.timestamp < mTtl) {
+            mHitCount++;
+            return entry.granted;
+        }
+
+        mMissCount++;
+        return null;
+    }
+
+    void put(String permission, boolean granted) {
+        put(permission, granted, SystemClock.elapsedRealtime());
+    }
+
+    synchronized void put(String permission, boolean granted, long now) {
+        if (mTtl <= 0) {
+            return;
+        }
+
+        Entry entry = mEntries.get(permission);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(permission, entry);
+        }
+
+        entry.granted = granted;
+        entry.timestamp = now;
+    }
+
+    private static final class Entry {
+        boolean granted;
+        long timestamp;
+    }
+}
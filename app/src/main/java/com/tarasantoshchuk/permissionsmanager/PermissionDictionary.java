@@ -0,0 +1,79 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Persisted, append-only list of permissions, that are not among
+ * {@link PermissionTable#KNOWN_PERMISSIONS}. Requests are persisted with indices into it, so
+ * each such permission name is stored once instead of once per request.
+ */
+final class PermissionDictionary {
+    private static final char SEPARATOR = '\n';
+
+    private final ArrayList<String> mNames = new ArrayList<>();
+    private final HashMap<String, Integer> mIndices = new HashMap<>();
+
+    /**
+     * Number of leading entries, that are already persisted.
+     */
+    private int mPersistedCount;
+
+    PermissionDictionary() {
+    }
+
+    /**
+     * @param value written by {@link #serialize()}, or null
+     */
+    static PermissionDictionary parse(String value) {
+        PermissionDictionary dictionary = new PermissionDictionary();
+        if (value != null && value.length() > 0) {
+            int start = 0;
+            while (start <= value.length()) {
+                int end = value.indexOf(SEPARATOR, start);
+                if (end < 0) {
+                    end = value.length();
+                }
+                dictionary.add(value.substring(start, end));
+                start = end + 1;
+            }
+        }
+        dictionary.mPersistedCount = dictionary.mNames.size();
+        return dictionary;
+    }
+
+    synchronized int indexOf(String permission) {
+        Integer index = mIndices.get(permission);
+        return index == null ? add(permission) : index;
+    }
+
+    /**
+     * @return permission name or null if there is no such index
+     */
+    synchronized String get(int index) {
+        return index < mNames.size() ? mNames.get(index) : null;
+    }
+
+    synchronized boolean hasUnpersistedEntries() {
+        return mPersistedCount < mNames.size();
+    }
+
+    synchronized String serialize() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < mNames.size(); i++) {
+            if (i > 0) {
+                builder.append(SEPARATOR);
+            }
+            builder.append(mNames.get(i));
+        }
+        mPersistedCount = mNames.size();
+        return builder.toString();
+    }
+
+    private int add(String permission) {
+        int index = mNames.size();
+        mNames.add(permission);
+        mIndices.put(permission, index);
+        return index;
+    }
+}
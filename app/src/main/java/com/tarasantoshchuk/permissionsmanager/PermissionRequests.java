@@ -0,0 +1,31 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+/**
+ * Requests of an Activity, declared with
+ * {@link com.tarasantoshchuk.permissionsmanager.annotations.OnPermissionsResult} and implemented by
+ * the generated {@code <Activity>_PermissionRequests} class.
+ *
+ * Permission arrays, listeners and requests are created once per binding. Later starts only add
+ * the listeners back, which allocates their Activity binding and replays rationale or result
+ * missed while stopped. Requests hold the listeners weakly, so the Activity keeps the binding in a
+ * field.
+ */
+public interface PermissionRequests {
+    /**
+     * Creates or restores the requests on the first call, and adds their listeners, bound to the
+     * Activity, call from onStart.
+     *
+     * @param isRestored whether the Activity is restored, see {@link PermissionsManager#createRequestAll(int, boolean, String...)}
+     */
+    void start(boolean isRestored);
+
+    /**
+     * Removes listeners of the requests, call from onStop.
+     */
+    void stop();
+
+    /**
+     * @return request with the code, or null before {@link #start(boolean)}
+     */
+    Request get(int requestCode);
+}
@@ -0,0 +1,290 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Stream of permission status changes, fed by permissions results and by revalidation when the
+ * app returns to foreground.
+ *
+ * Only distinct changes are published. Every subscription has its own bounded buffer drained
+ * through its executor; when a slow subscriber's buffer is full, the oldest change, that a later
+ * one of the same permission replaces, is dropped, so the latest status of each permission is
+ * always delivered. Only if the buffer is smaller than the number of changed permissions, the
+ * oldest change is dropped.
+ *
+ * @see PermissionsManager#getPermissionStates()
+ */
+public final class PermissionStateStream {
+    public static final int DEFAULT_BUFFER_SIZE = 16;
+
+    interface StatusSource {
+        @PermissionStatusVector.Status
+        int getStatus(String permission);
+    }
+
+    public interface Subscriber {
+        void onPermissionStateChanged(String permission, @PermissionStatusVector.Status int status);
+    }
+
+    private final StatusSource mSource;
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Last published status by {@link PermissionTable} id, -1 if unknown.
+     */
+    private int[] mStatuses = new int[0];
+
+    PermissionStateStream(StatusSource source) {
+        mSource = source;
+    }
+
+    /**
+     * Delivers changes on the executor set with {@link PermissionsManager#setResultExecutor(Executor)}.
+     *
+     * @see #subscribe(Subscriber, Executor, int, String...)
+     */
+    public Subscription subscribe(Subscriber subscriber, String... permissions) {
+        return subscribe(subscriber, PermissionsManager.getInstance().getResultExecutor(), DEFAULT_BUFFER_SIZE, permissions);
+    }
+
+    /**
+     * Subscribes to changes of the given permissions, or of all permissions if none are given.
+     * Current status of the given permissions is delivered first.
+     *
+     * @param bufferSize max number of undelivered changes kept for the subscriber
+     */
+    public Subscription subscribe(Subscriber subscriber, Executor executor, int bufferSize, String... permissions) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize " + bufferSize);
+        }
+
+        int[] permissionIds = permissions.length == 0 ? null : PermissionTable.intern(permissions);
+        Subscription subscription = new Subscription(subscriber, executor, bufferSize, permissionIds);
+        mSubscriptions.add(subscription);
+
+        if (permissionIds != null) {
+            for (int i = 0; i < permissions.length; i++) {
+                publish(permissionIds[i], mSource.getStatus(permissions[i]), subscription);
+            }
+        }
+
+        return subscription;
+    }
+
+    /**
+     * Publishes the status to subscribers, unless it is the same as the last published one.
+     */
+    void publish(String permission, @PermissionStatusVector.Status int status) {
+        publish(PermissionTable.intern(permission), status, null);
+    }
+
+    /**
+     * Changes are buffered in the same critical section as the status update, so subscribers
+     * get concurrent changes of a permission in the order they were published.
+     *
+     * @param newSubscription subscription, that gets the status even if it is unchanged
+     */
+    private void publish(int permissionId, int status, Subscription newSubscription) {
+        List<Subscription> drained = null;
+        synchronized (this) {
+            if (update(permissionId, status)) {
+                for (Subscription subscription : mSubscriptions) {
+                    if (subscription.accepts(permissionId) && subscription.offer(permissionId, status)) {
+                        if (drained == null) {
+                            drained = new ArrayList<>();
+                        }
+                        drained.add(subscription);
+                    }
+                }
+            } else if (newSubscription != null && newSubscription.offer(permissionId, status)) {
+                drained = new ArrayList<>();
+                drained.add(newSubscription);
+            }
+        }
+
+        //subscribers may be called inline, so not under the lock
+        if (drained != null) {
+            for (Subscription subscription : drained) {
+                subscription.scheduleDrain();
+            }
+        }
+    }
+
+    /**
+     * @return permissions, that have subscribers or a published status
+     */
+    List<String> getObservedPermissions() {
+        List<String> result = new ArrayList<>();
+        synchronized (this) {
+            for (int id = 0; id < mStatuses.length; id++) {
+                if (mStatuses[id] >= 0) {
+                    result.add(PermissionTable.name(id));
+                }
+            }
+        }
+        return result;
+    }
+
+    boolean hasSubscribers() {
+        return !mSubscriptions.isEmpty();
+    }
+
+    /**
+     * @return true if the status differs from the last published one
+     */
+    private boolean update(int permissionId, int status) {
+        if (permissionId >= mStatuses.length) {
+            int[] statuses = new int[Math.max(permissionId + 1, mStatuses.length * 2)];
+            System.arraycopy(mStatuses, 0, statuses, 0, mStatuses.length);
+            for (int i = mStatuses.length; i < statuses.length; i++) {
+                statuses[i] = -1;
+            }
+            mStatuses = statuses;
+        }
+
+        if (mStatuses[permissionId] == status) {
+            return false;
+        }
+        mStatuses[permissionId] = status;
+        return true;
+    }
+
+    public final class Subscription {
+        private final Subscriber mSubscriber;
+        private final Executor mExecutor;
+        private final int[] mPermissionIds;
+
+        /**
+         * Ring buffer of undelivered changes.
+         */
+        private final int[] mBufferIds;
+        private final int[] mBufferStatuses;
+        private int mHead;
+        private int mCount;
+
+        private boolean mDrainScheduled;
+        private volatile boolean mCancelled;
+        private long mDroppedCount;
+
+        private final Runnable mDrainTask = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        private Subscription(Subscriber subscriber, Executor executor, int bufferSize, int[] permissionIds) {
+            mSubscriber = subscriber;
+            mExecutor = executor;
+            mPermissionIds = permissionIds;
+            mBufferIds = new int[bufferSize];
+            mBufferStatuses = new int[bufferSize];
+        }
+
+        /**
+         * Stops delivery, including changes that are buffered but not delivered yet.
+         */
+        public void cancel() {
+            mCancelled = true;
+            mSubscriptions.remove(this);
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * @return number of changes dropped because the buffer was full
+         */
+        public synchronized long getDroppedCount() {
+            return mDroppedCount;
+        }
+
+        private boolean accepts(int permissionId) {
+            return mPermissionIds == null || PermissionTable.indexOf(mPermissionIds, permissionId) >= 0;
+        }
+
+        /**
+         * @return true if a drain has to be scheduled with {@link #scheduleDrain()}
+         */
+        private synchronized boolean offer(int permissionId, int status) {
+            int capacity = mBufferIds.length;
+            if (mCount == capacity) {
+                remove(indexOfReplaced(permissionId));
+                mDroppedCount++;
+            }
+
+            int tail = (mHead + mCount) % capacity;
+            mBufferIds[tail] = permissionId;
+            mBufferStatuses[tail] = status;
+            mCount++;
+
+            if (mDrainScheduled) {
+                return false;
+            }
+            mDrainScheduled = true;
+            return true;
+        }
+
+        private void scheduleDrain() {
+            mExecutor.execute(mDrainTask);
+        }
+
+        /**
+         * @return index of the oldest buffered change, that a later one of the same permission
+         * replaces, or 0 if there is none
+         */
+        private int indexOfReplaced(int permissionId) {
+            for (int i = 0; i < mCount; i++) {
+                int id = mBufferIds[(mHead + i) % mBufferIds.length];
+                if (id == permissionId) {
+                    return i;
+                }
+                for (int j = i + 1; j < mCount; j++) {
+                    if (mBufferIds[(mHead + j) % mBufferIds.length] == id) {
+                        return i;
+                    }
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Removes the buffered change at the given index, counting from the oldest one.
+         */
+        private void remove(int index) {
+            int capacity = mBufferIds.length;
+            for (int i = index; i < mCount - 1; i++) {
+                int to = (mHead + i) % capacity;
+                int from = (mHead + i + 1) % capacity;
+                mBufferIds[to] = mBufferIds[from];
+                mBufferStatuses[to] = mBufferStatuses[from];
+            }
+            mCount--;
+        }
+
+        @SuppressWarnings("WrongConstant")
+        private void drain() {
+            while (true) {
+                int permissionId;
+                int status;
+                synchronized (this) {
+                    if (mCount == 0 || mCancelled) {
+                        mDrainScheduled = false;
+                        return;
+                    }
+                    permissionId = mBufferIds[mHead];
+                    status = mBufferStatuses[mHead];
+                    mHead = (mHead + 1) % mBufferIds.length;
+                    mCount--;
+                }
+
+                mSubscriber.onPermissionStateChanged(PermissionTable.name(permissionId), status);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Statuses of several permissions, packed two bits per permission, in the order they were queried.
+ *
+ * @see PermissionsManager#queryStatus(String...)
+ */
+public final class PermissionStatusVector {
+    public static final int STATUS_GRANTED = 0;
+    public static final int STATUS_UNKNOWN = 1;
+    public static final int STATUS_RATIONALE = 2;
+    public static final int STATUS_DENIED_FOREVER = 3;
+
+    @IntDef({STATUS_GRANTED, STATUS_UNKNOWN, STATUS_RATIONALE, STATUS_DENIED_FOREVER})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Status {}
+
+    private static final int BITS = 2;
+    private static final int PER_WORD = 64 / BITS;
+    private static final long MASK = (1 << BITS) - 1;
+
+    private final long[] mWords;
+    private final int mSize;
+
+    PermissionStatusVector(int size) {
+        mSize = size;
+        mWords = new long[(size + PER_WORD - 1) / PER_WORD];
+    }
+
+    void set(int index, @Status int status) {
+        int shift = index % PER_WORD * BITS;
+        int word = index / PER_WORD;
+        mWords[word] = mWords[word] & ~(MASK << shift) | (long) status << shift;
+    }
+
+    @Status
+    @SuppressWarnings("WrongConstant")
+    public int get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+        return (int) (mWords[index / PER_WORD] >>> (index % PER_WORD * BITS) & MASK);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int count(@Status int status) {
+        int count = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (get(i) == status) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public boolean isAllGranted() {
+        return count(STATUS_GRANTED) == mSize;
+    }
+
+    /**
+     * @return raw packed words, status of permission {@code i} is at bits {@code 2 * (i % 32)}
+     * of word {@code i / 32}
+     */
+    public long[] toPackedArray() {
+        return mWords.clone();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("PermissionStatusVector{");
+        for (int i = 0; i < mSize; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(get(i));
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,148 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.RandomAccess;
+
+/**
+ * Process-wide interning of permission names to small int ids, so requests keep ids instead of
+ * their own copies of permission strings.
+ *
+ * Ids of {@link #KNOWN_PERMISSIONS} are stable and are persisted by {@link RequestCodec}, ids of
+ * other permissions are assigned on first use and are valid only within the process.
+ */
+final class PermissionTable {
+    /**
+     * Never reorder or remove entries, only append.
+     */
+    static final String[] KNOWN_PERMISSIONS = {
+            "android.permission.READ_CALENDAR",
+            "android.permission.WRITE_CALENDAR",
+            "android.permission.CAMERA",
+            "android.permission.READ_CONTACTS",
+            "android.permission.WRITE_CONTACTS",
+            "android.permission.GET_ACCOUNTS",
+            "android.permission.ACCESS_FINE_LOCATION",
+            "android.permission.ACCESS_COARSE_LOCATION",
+            "android.permission.RECORD_AUDIO",
+            "android.permission.READ_PHONE_STATE",
+            "android.permission.CALL_PHONE",
+            "android.permission.READ_CALL_LOG",
+            "android.permission.WRITE_CALL_LOG",
+            "com.android.voicemail.permission.ADD_VOICEMAIL",
+            "android.permission.USE_SIP",
+            "android.permission.PROCESS_OUTGOING_CALLS",
+            "android.permission.BODY_SENSORS",
+            "android.permission.SEND_SMS",
+            "android.permission.RECEIVE_SMS",
+            "android.permission.READ_SMS",
+            "android.permission.RECEIVE_WAP_PUSH",
+            "android.permission.RECEIVE_MMS",
+            "android.permission.READ_EXTERNAL_STORAGE",
+            "android.permission.WRITE_EXTERNAL_STORAGE",
+    };
+
+    private static final HashMap<String, Integer> sIds = new HashMap<>();
+
+    /**
+     * Names by id; replaced on growth, so lookups by id don't need the lock.
+     */
+    private static volatile String[] sNames;
+    private static int sSize;
+
+    static {
+        sNames = new String[KNOWN_PERMISSIONS.length * 2];
+        for (String permission : KNOWN_PERMISSIONS) {
+            intern(permission);
+        }
+    }
+
+    private PermissionTable() {
+    }
+
+    static synchronized int intern(String permission) {
+        Integer id = sIds.get(permission);
+        if (id != null) {
+            return id;
+        }
+
+        String[] names = sNames;
+        if (sSize == names.length) {
+            String[] grown = new String[names.length * 2];
+            System.arraycopy(names, 0, grown, 0, sSize);
+            names = grown;
+        }
+
+        // store interned name, so decoded copies of the same permission can be collected
+        names[sSize] = permission;
+        sNames = names;
+        sIds.put(permission, sSize);
+        return sSize++;
+    }
+
+    static int[] intern(String[] permissions) {
+        int[] ids = new int[permissions.length];
+        for (int i = 0; i < permissions.length; i++) {
+            ids[i] = intern(permissions[i]);
+        }
+        return ids;
+    }
+
+    static String name(int id) {
+        return sNames[id];
+    }
+
+    static boolean isKnown(int id) {
+        return id < KNOWN_PERMISSIONS.length;
+    }
+
+    static String[] names(int[] ids) {
+        String[] names = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            names[i] = name(ids[i]);
+        }
+        return names;
+    }
+
+    /**
+     * @return true if every id of {@code subset} is in {@code ids}
+     */
+    static boolean containsAll(int[] ids, int[] subset) {
+        for (int id : subset) {
+            if (indexOf(ids, id) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int indexOf(int[] ids, int id) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read-only list of permission names backed by ids.
+     */
+    static final class NameList extends AbstractList<String> implements RandomAccess {
+        private final int[] mIds;
+
+        NameList(int[] ids) {
+            mIds = ids;
+        }
+
+        @Override
+        public String get(int index) {
+            return name(mIds[index]);
+        }
+
+        @Override
+        public int size() {
+            return mIds.length;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.Fragment;
+import android.app.FragmentManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+
+/**
+ * Headless fragment, that requests permissions from the Activity a request was run from, so
+ * there is no {@link ShadowActivity} to start before the permissions dialog is shown. Retained,
+ * so a configuration change doesn't interrupt the request.
+ *
+ * @see PermissionsManager#LAUNCH_STRATEGY_FRAGMENT
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class PermissionsFragment extends Fragment {
+    static final String FRAGMENT_TAG = PermissionsFragment.class.getName();
+
+    private static final String KEY_REQUEST_CODES = "KEY_REQUEST_CODES";
+    private static final int PERMISSIONS_REQUEST_CODE = 1;
+
+    /**
+     * Codes of requests, that are being requested or wait for the fragment to be created;
+     * null when the fragment is idle.
+     */
+    private int[] mRequestCodes;
+    private boolean mRequested;
+
+    /**
+     * FragmentManager calls of {@link #launch(Host, Activity, int...)}, so launches can run without
+     * a device, see {@link #PLATFORM_HOST} for the default one.
+     */
+    interface Host {
+        /**
+         * @return false if the Activity can't take a fragment now, e.g. it is finishing
+         */
+        boolean canAdd(Activity activity);
+
+        /**
+         * @return fragment added to the Activity before, or null
+         */
+        PermissionsFragment find(Activity activity);
+
+        void add(Activity activity, PermissionsFragment fragment);
+    }
+
+    static final Host PLATFORM_HOST = new Host() {
+        @Override
+        public boolean canAdd(Activity activity) {
+            FragmentManager fragmentManager = activity.getFragmentManager();
+            return !activity.isFinishing() && fragmentManager != null && !fragmentManager.isDestroyed();
+        }
+
+        @Override
+        public PermissionsFragment find(Activity activity) {
+            return (PermissionsFragment) activity.getFragmentManager().findFragmentByTag(FRAGMENT_TAG);
+        }
+
+        @Override
+        public void add(Activity activity, PermissionsFragment fragment) {
+            activity.getFragmentManager().beginTransaction()
+                    .add(fragment, FRAGMENT_TAG)
+                    .commitAllowingStateLoss();
+        }
+    };
+
+    /**
+     * @return false if the Activity can't request permissions now, and the requests have to be
+     * launched another way
+     */
+    static boolean launch(Host host, Activity activity, int... requestCodes) {
+        if (!host.canAdd(activity)) {
+            return false;
+        }
+
+        PermissionsFragment fragment = host.find(activity);
+        if (fragment != null) {
+            return fragment.launch(requestCodes);
+        }
+
+        fragment = new PermissionsFragment();
+        fragment.mRequestCodes = requestCodes;
+        host.add(activity, fragment);
+        return true;
+    }
+
+    private boolean launch(int[] requestCodes) {
+        if (mRequestCodes != null || !isAdded()) {
+            return false;
+        }
+
+        mRequestCodes = requestCodes;
+        requestPermissions();
+        return true;
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+        onCreate(savedInstanceState == null ? null : savedInstanceState.getIntArray(KEY_REQUEST_CODES));
+    }
+
+    /**
+     * @param savedRequestCodes codes saved by an instance, that was requesting permissions before
+     *                          the process died, or null
+     */
+    void onCreate(int[] savedRequestCodes) {
+        if (savedRequestCodes != null && mRequestCodes == null) {
+            // recreated after process death, the result is delivered to this instance
+            mRequestCodes = savedRequestCodes;
+            mRequested = true;
+        }
+
+        if (mRequestCodes != null && !mRequested) {
+            requestPermissions();
+        }
+    }
+
+    private void requestPermissions() {
+        PermissionsManager permissionsManager = PermissionsManager.getInstance();
+
+        mRequested = true;
+        requestPermissions(permissionsManager.getPermissions(mRequestCodes), PERMISSIONS_REQUEST_CODE);
+        permissionsManager.onPermissionsRequested(PermissionsManager.LAUNCH_STRATEGY_FRAGMENT, mRequestCodes);
+    }
+
+    @Override
+    public void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (mRequestCodes != null) {
+            outState.putIntArray(KEY_REQUEST_CODES, mRequestCodes);
+        }
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        PermissionsManager.getInstance().saveState();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        Activity activity = getActivity();
+        if (mRequestCodes != null && mRequested && (activity == null || activity.isFinishing())) {
+            // Activity is gone for good, so the result won't be delivered; report requests as interrupted
+            int[] requestCodes = mRequestCodes;
+            mRequestCodes = null;
+            PermissionsManager.getInstance().handleBatchResult(requestCodes, new String[0], new int[0], new boolean[0]);
+        }
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+        if (requestCode != PERMISSIONS_REQUEST_CODE || mRequestCodes == null) {
+            return;
+        }
+
+        boolean[] shouldShowRationale = new boolean[permissions.length];
+        for (int i = 0; i < permissions.length; i++) {
+            shouldShowRationale[i] = shouldShowRequestPermissionRationale(permissions[i]);
+        }
+
+        int[] requestCodes = mRequestCodes;
+        mRequestCodes = null;
+        mRequested = false;
+        PermissionsManager.getInstance().handleBatchResult(requestCodes, permissions, grantResults, shouldShowRationale);
+    }
+}
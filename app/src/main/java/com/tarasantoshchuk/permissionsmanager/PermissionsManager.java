@@ -2,66 +2,154 @@ package com.tarasantoshchuk.permissionsmanager;
 
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.app.Application;
 import android.content.Context;
-import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
-import android.support.v4.app.ActivityCompat;
-import android.util.Log;
 
+import java.io.File;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 public class PermissionsManager {
     private static final String TAG = PermissionsManager.class.getSimpleName();
 
     static final String SHARED_PREFS_FILE = "com.tarasnantoshchuk.permissionsmanager.PermissionsManager";
-    private static final String PREFS_KEY_REQUEST_JSONS = "PREFS_KEY_REQUEST_JSONS";
 
     Request getRequest(int requestCode) {
-        if (!mPendingRequests.containsKey(requestCode)) {
+        Request request = findRequest(requestCode);
+
+        if (request == null) {
             throw new RuntimeException("unexpected");
         }
 
-        return mPendingRequests.get(requestCode);
+        return request;
     }
 
-    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     public void saveState() {
-        mContext
-                .getSharedPreferences(SHARED_PREFS_FILE, Context.MODE_PRIVATE)
-                .edit()
-                .putStringSet(PREFS_KEY_REQUEST_JSONS, getRequestsJsons())
-                .commit();
+        mStore.flush();
     }
 
-    private Set<String> getRequestsJsons() {
-        Set<String> result = new HashSet<>();
-        for (Request request: mPendingRequests.values()) {
-            result.add(Request.toJson(request));
+    void onRequestChanged(Request request) {
+        mStore.markDirty(request);
+    }
+
+    /**
+     * @return false if the request is running in another process; its state is taken over then
+     */
+    boolean onRequestStarted(Request request) {
+        if (mStore.markStarted(request)) {
+            return true;
         }
 
-        Log.v(TAG, "saveState, result " + result);
-        return result;
+        adoptChangesElsewhere(request);
+        Trace.event(Trace.LEVEL_INFO, TAG, Trace.EVENT_RUNNING_ELSEWHERE, request.requestCode, request.getState());
+        return false;
+    }
+
+    /**
+     * Splits results of a batched permissions request between the requests of the batch, by permission.
+     * Permissions missing from the results, e.g. when the request was interrupted, are reported as denied.
+     */
+    void handleBatchResult(int[] requestCodes, String[] permissions, int[] grantResults, boolean[] shouldShowRationale) {
+        if (requestCodes.length == 1 && permissions.length > 0) {
+            handleRequestResult(requestCodes[0], permissions, grantResults, shouldShowRationale);
+            return;
+        }
+
+        HashMap<String, Integer> indices = indexPermissions(permissions);
+        for (int requestCode : requestCodes) {
+            handleResultSlice(getRequest(requestCode), indices, grantResults, shouldShowRationale);
+        }
+    }
+
+    private static HashMap<String, Integer> indexPermissions(String[] permissions) {
+        HashMap<String, Integer> indices = new HashMap<>();
+        for (int i = 0; i < permissions.length; i++) {
+            indices.put(permissions[i], i);
+        }
+        return indices;
+    }
+
+    /**
+     * Handles the part of permissions results, that concerns permissions of the given request.
+     */
+    private void handleResultSlice(Request request, HashMap<String, Integer> indices, int[] grantResults, boolean[] shouldShowRationale) {
+        List<String> requestedPermissions = request.requestedPermissions;
+        int count = requestedPermissions.size();
+
+        String[] requestPermissions = new String[count];
+        int[] requestGrantResults = new int[count];
+        boolean[] requestShouldShowRationale = new boolean[count];
+
+        for (int i = 0; i < count; i++) {
+            String permission = requestedPermissions.get(i);
+            Integer index = indices.get(permission);
+
+            requestPermissions[i] = permission;
+            if (index != null) {
+                requestGrantResults[i] = grantResults[index];
+                requestShouldShowRationale[i] = shouldShowRationale[index];
+            } else {
+                requestGrantResults[i] = PackageManager.PERMISSION_DENIED;
+                requestShouldShowRationale[i] = true;
+            }
+        }
+
+        handleRequestResult(request.requestCode, requestPermissions, requestGrantResults, requestShouldShowRationale);
     }
 
     public void handleRequestResult(int requestCode, String[] permissions, int[] grantResults, boolean[] shouldShowRationale) {
-        Request request = mPendingRequests.get(requestCode);
+        Request request = getRequest(requestCode);
 
-        if (request == null) {
-            throw new RuntimeException("unexpected");
+        long launchDuration = request.takeLaunchDuration();
+        if (launchDuration >= 0) {
+            mMetrics.onLaunchCompleted(requestCode, launchDuration);
+        }
+
+        for (int i = 0; i < permissions.length; i++) {
+            mPermissionCache.put(permissions[i], grantResults[i] == PackageManager.PERMISSION_GRANTED);
+        }
+        rememberDenials(permissions, grantResults, shouldShowRationale);
+        publishResults(permissions, grantResults, shouldShowRationale);
+
+        synchronized (request) {
+            setRequestResults(request, permissions, grantResults, shouldShowRationale);
+        }
+
+        request.setState(Request.STATE_FINISHED);
+        request.reset();
+
+        List<Request> attachedRequests = mInFlightRequests.complete(requestCode);
+        if (!attachedRequests.isEmpty()) {
+            HashMap<String, Integer> indices = indexPermissions(permissions);
+            for (Request attachedRequest : attachedRequests) {
+                handleResultSlice(attachedRequest, indices, grantResults, shouldShowRationale);
+            }
         }
 
-        @Request.Result int result;
+        mScheduler.onCompleted(requestCode);
+        evictRequestsIfNeeded();
+    }
 
+    private static void setRequestResults(Request request, String[] permissions, int[] grantResults, boolean[] shouldShowRationale) {
         switch (request.requestMode) {
             case Request.REQUEST_MODE_ALL:
-                result = Request.RESULT_GRANTED;
+                @Request.Result int result = Request.RESULT_GRANTED;
                 for (int i = 0; i < grantResults.length; i++) {
                     if (grantResults[i] == PackageManager.PERMISSION_DENIED) {
                         result = Request.RESULT_DENIED;
@@ -71,18 +159,43 @@ public class PermissionsManager {
                         }
                     }
                 }
+                request.setResult(result);
                 break;
             case Request.REQUEST_MODE_EACH:
-                throw new RuntimeException("not supported yet");
+                request.setResult(Request.RESULT_GRANTED);
+                for (int i = 0; i < request.requestedPermissions.size(); i++) {
+                    int index = indexOf(permissions, request.requestedPermissions.get(i));
+
+                    if (index < 0) {
+                        request.setPermissionResult(i, Request.RESULT_DENIED);
+                    } else {
+                        request.setPermissionResult(i, getPermissionResult(grantResults[index], shouldShowRationale[index]));
+                    }
+                }
+                break;
             default:
                 throw new RuntimeException("unexpected");
         }
+    }
 
-        request.setResult(result);
-        request.setState(Request.STATE_FINISHED);
-        request.reset();
+    private static int indexOf(String[] permissions, String permission) {
+        for (int i = 0; i < permissions.length; i++) {
+            if (permissions[i].equals(permission)) {
+                return i;
+            }
+        }
+        return -1;
+    }
 
-        saveState();
+    @Request.Result
+    private static int getPermissionResult(int grantResult, boolean shouldShowRationale) {
+        if (grantResult == PackageManager.PERMISSION_GRANTED) {
+            return Request.RESULT_GRANTED;
+        } else if (shouldShowRationale) {
+            return Request.RESULT_DENIED;
+        } else {
+            return Request.RESULT_DENIED_FOREVER;
+        }
     }
 
     @Retention(RetentionPolicy.SOURCE)
@@ -94,15 +207,121 @@ public class PermissionsManager {
     private static final int REQUEST_STATUS_UNKNOWN_SHOW_RATIONALE = 3;
 
 
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({LAUNCH_STRATEGY_SHADOW_ACTIVITY, LAUNCH_STRATEGY_FRAGMENT})
+    public @interface LaunchStrategy {}
+    /**
+     * Permissions are requested from translucent {@link ShadowActivity}.
+     */
+    public static final int LAUNCH_STRATEGY_SHADOW_ACTIVITY = 0;
+    /**
+     * Permissions are requested from a retained headless {@link PermissionsFragment}, attached to
+     * the Activity the request was run from; falls back to {@link ShadowActivity} when there is
+     * no such Activity, it is finishing, or its fragment is already requesting permissions.
+     */
+    public static final int LAUNCH_STRATEGY_FRAGMENT = 1;
+
+    public static final long DEFAULT_ORPHAN_TIMEOUT_MS = 30 * 1000;
+
     static PermissionsManager sInstance;
 
     private Context mContext;
 
-    HashMap<Integer, Request> mPendingRequests = new HashMap<>();
+    final RequestStore mStore;
+    private final boolean mMultiProcess;
+
+    final RequestRegistry mPendingRequests = new StripedRequestRegistry();
+
+    /**
+     * Codes of persisted requests, that were not restored into {@link #mPendingRequests} yet.
+     * Null until the persisted index is read on first access.
+     */
+    private Set<Integer> mUnrestoredRequestCodes;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private volatile MainThreadDispatcher mDispatcher = new MainThreadDispatcher();
+
+    private volatile PermissionsMetrics mMetrics = PermissionsMetrics.NO_OP;
+
+    private volatile Executor mResultExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mMainHandler.post(command);
+        }
+    };
+
+    private final PermissionCache mPermissionCache = new PermissionCache();
+
+    private final InFlightRequests mInFlightRequests = new InFlightRequests();
+
+    private final LaunchScheduler mScheduler = new LaunchScheduler(new LaunchScheduler.Launcher() {
+        @Override
+        public void start(LaunchScheduler.Launch launch) {
+            int[] requestCodes = launch.requestCodes;
+            if (requestCodes.length == 1 && mLaunchBatchWindow <= 0 && startInFragment(getRequest(requestCodes[0]))) {
+                //fragment is already committed to the Activity and can't be preempted
+                mScheduler.onRequested(requestCodes[0]);
+                return;
+            }
+
+            startRequestPermissions(launch.id, requestCodes);
+        }
+
+        @Override
+        public void onTimedOut(LaunchScheduler.Launch launch) {
+            for (int requestCode : launch.requestCodes) {
+                Request request = getRequest(requestCode);
+                if (!request.timeOut(Request.STATE_BEFORE_REQUEST)) {
+                    request.timeOut(Request.STATE_REQUESTED);
+                }
+                for (Request attachedRequest : mInFlightRequests.complete(requestCode)) {
+                    attachedRequest.timeOut(Request.STATE_REQUESTED);
+                }
+            }
+        }
+    }, mMainHandler);
+
+    final RequestEvictor mEvictor;
 
-    public static synchronized PermissionsManager init(Context context) {
+    private final PermissionStateStream mPermissionStates = new PermissionStateStream(new PermissionStateStream.StatusSource() {
+        @Override
+        public int getStatus(String permission) {
+            return getPermissionStatus(permission, null);
+        }
+    });
+
+    /**
+     * Status of permissions denied in the last permissions request they were part of, so it is
+     * known without an Activity to ask for rationale.
+     */
+    private final HashMap<String, Integer> mDenialStatuses = new HashMap<>();
+
+    private volatile long mLaunchBatchWindow;
+    private volatile long mOrphanTimeout = DEFAULT_ORPHAN_TIMEOUT_MS;
+    @LaunchStrategy
+    private volatile int mLaunchStrategy = LAUNCH_STRATEGY_SHADOW_ACTIVITY;
+    private final ArrayList<Integer> mLaunchBatch = new ArrayList<>();
+
+    private volatile PermissionBackend mBackend;
+    private volatile PermissionsFragment.Host mFragmentHost = PermissionsFragment.PLATFORM_HOST;
+
+    private volatile DeclaredPermissions mDeclaredPermissions;
+
+    private volatile int mSdkInt = Build.VERSION.SDK_INT;
+
+    public static PermissionsManager init(Context context) {
+        return init(context, false);
+    }
+
+    /**
+     * @param multiProcess whether requests are shared with other processes of the app, which
+     *                     should all init it the same way; a request run in one process is seen as
+     *                     running by the others, until it finishes
+     */
+    public static synchronized PermissionsManager init(Context context, boolean multiProcess) {
         if (sInstance == null) {
-            sInstance = new PermissionsManager(context);
+            sInstance = new PermissionsManager(context, multiProcess);
         }
 
         return sInstance;
@@ -112,33 +331,344 @@ public class PermissionsManager {
         return sInstance;
     }
 
-    private PermissionsManager(Context context) {
+    private PermissionsManager(Context context, boolean multiProcess) {
         mContext = context.getApplicationContext();
+        mMultiProcess = multiProcess;
+        File filesDir = mContext.getFilesDir();
+        SharedPreferences prefs = mContext.getSharedPreferences(SHARED_PREFS_FILE, Context.MODE_PRIVATE);
+        mStore = new RequestStore(prefs, filesDir == null ? null : new File(filesDir, RequestJournal.FILE_NAME), multiProcess);
+        //preferences are not written to in multi-process mode, see RequestStore
+        mDeclaredPermissions = DeclaredPermissions.load(mContext, multiProcess ? null : prefs);
+        //in multi-process mode, requests not restored here may be used by other processes
+        mEvictor = new RequestEvictor(mPendingRequests, mStore, new RequestEvictor.UnrestoredRequests() {
+            @Override
+            public int count() {
+                if (mMultiProcess) {
+                    return 0;
+                }
+                synchronized (PermissionsManager.this) {
+                    return unrestoredRequestCodes().size();
+                }
+            }
+
+            @Override
+            public int[] take(int max) {
+                return mMultiProcess ? new int[0] : takeUnrestoredRequestCodes(max);
+            }
+        });
+        mBackend = new PlatformPermissionBackend(mContext);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH && mContext instanceof Application) {
+            registerForegroundTracker((Application) mContext);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void registerForegroundTracker(Application application) {
+        application.registerActivityLifecycleCallbacks(new ForegroundTracker(new ForegroundTracker.Listener() {
+            @Override
+            public void onForeground() {
+                PermissionsManager.this.onForeground();
+            }
 
+            @Override
+            public void onActivityDestroyed(Activity activity) {
+                removeListenersOwnedBy(activity);
+            }
+        }));
+    }
+
+    /**
+     * Called when the app returns to foreground, permissions may have been changed in settings.
+     */
+    void onForeground() {
         if (isMarshmallow()) {
-            retrieveRequests();
+            mPermissionCache.invalidate();
+            revalidatePermissionStates();
         }
     }
 
-    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
-    private void retrieveRequests() {
-        Set<String> requestJsons = mContext
-                .getSharedPreferences(SHARED_PREFS_FILE, Context.MODE_PRIVATE)
-                .getStringSet(PREFS_KEY_REQUEST_JSONS, new HashSet<String>());
+    /**
+     * Drops listeners bound to the Activity, see {@link Request#addListener(Activity, Request.Listener)}.
+     */
+    void removeListenersOwnedBy(Activity activity) {
+        for (Request request : mPendingRequests.values()) {
+            request.removeListenersOwnedBy(activity);
+        }
+    }
 
-        Log.v(TAG, "retrieveRequests, requestJsons " + requestJsons);
+    /**
+     * @return stream of permission status changes
+     */
+    public PermissionStateStream getPermissionStates() {
+        return mPermissionStates;
+    }
 
-        for (String requestJson : requestJsons) {
-            Request request = Request.fromJson(requestJson);
-            if (request != null) {
-                mPendingRequests.put(request.requestCode, request);
+    private void publishResults(String[] permissions, int[] grantResults, boolean[] shouldShowRationale) {
+        for (int i = 0; i < permissions.length; i++) {
+            if (grantResults[i] == PackageManager.PERMISSION_GRANTED) {
+                mPermissionStates.publish(permissions[i], PermissionStatusVector.STATUS_GRANTED);
+            } else if (shouldShowRationale[i]) {
+                mPermissionStates.publish(permissions[i], PermissionStatusVector.STATUS_RATIONALE);
+            } else {
+                mPermissionStates.publish(permissions[i], PermissionStatusVector.STATUS_DENIED_FOREVER);
             }
         }
     }
 
+    /**
+     * Picks up changes made in settings while the app was in background.
+     */
+    void revalidatePermissionStates() {
+        if (!mPermissionStates.hasSubscribers()) {
+            return;
+        }
+
+        for (String permission : mPermissionStates.getObservedPermissions()) {
+            mPermissionStates.publish(permission, getPermissionStatus(permission, null));
+        }
+    }
+
+    public PermissionCache getPermissionCache() {
+        return mPermissionCache;
+    }
+
+    /**
+     * Sets receiver of request lifecycle measurements, {@link PermissionsMetrics#NO_OP} by default.
+     */
+    public void setMetrics(PermissionsMetrics metrics) {
+        mMetrics = metrics;
+        mStore.setMetrics(metrics);
+        mScheduler.setMetrics(metrics);
+    }
+
+    PermissionsMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Replaces platform calls, e.g. with a simulated backend for load tests on a JVM.
+     */
+    void setPermissionBackend(PermissionBackend backend) {
+        mBackend = backend;
+    }
+
+    /**
+     * Replaces FragmentManager calls of {@link #LAUNCH_STRATEGY_FRAGMENT} launches.
+     */
+    void setFragmentHost(PermissionsFragment.Host fragmentHost) {
+        mFragmentHost = fragmentHost;
+    }
+
+    void setDeclaredPermissions(DeclaredPermissions declaredPermissions) {
+        mDeclaredPermissions = declaredPermissions;
+    }
+
+    /**
+     * Overrides the platform version permission checks are made for, e.g. to take runtime
+     * permission paths on a JVM, where android.jar reports 0.
+     */
+    void setSdkInt(int sdkInt) {
+        mSdkInt = sdkInt;
+    }
+
+    /**
+     * Sets executor for {@link ResultFuture} callbacks added without an explicit executor.
+     * By default callbacks are posted to the main thread.
+     */
+    public void setResultExecutor(Executor executor) {
+        mResultExecutor = executor;
+    }
+
+    Executor getResultExecutor() {
+        return mResultExecutor;
+    }
+
+    MainThreadDispatcher getDispatcher() {
+        return mDispatcher;
+    }
+
+    void setDispatcher(MainThreadDispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * @return true if the request code was persisted and not yet restored; the code is not
+     * reported again afterwards
+     */
+    private synchronized boolean takeUnrestoredRequestCode(int requestCode) {
+        return unrestoredRequestCodes().remove(requestCode);
+    }
+
+    /**
+     * @return codes of up to the given number of requests, that were persisted and not yet
+     * restored; they are not restored afterwards
+     */
+    private synchronized int[] takeUnrestoredRequestCodes(int max) {
+        Set<Integer> unrestored = unrestoredRequestCodes();
+        int[] result = new int[Math.min(max, unrestored.size())];
+        Iterator<Integer> iterator = unrestored.iterator();
+        for (int i = 0; i < result.length; i++) {
+            result[i] = iterator.next();
+            iterator.remove();
+        }
+        return result;
+    }
+
+    /**
+     * Must be called with the manager locked.
+     */
+    private Set<Integer> unrestoredRequestCodes() {
+        if (mUnrestoredRequestCodes == null) {
+            mUnrestoredRequestCodes = isMarshmallow() ? mStore.readIndex() : new HashSet<Integer>();
+            Trace.event(Trace.LEVEL_DEBUG, TAG, Trace.EVENT_RESTORE_INDEX, 0, mUnrestoredRequestCodes.size());
+        }
+        return mUnrestoredRequestCodes;
+    }
+
+    private Request findRequest(int requestCode) {
+        Request request = mPendingRequests.get(requestCode);
+        if (request != null) {
+            adoptChangesElsewhere(request);
+            return request;
+        }
+
+        synchronized (mPendingRequests.lockFor(requestCode)) {
+            request = mPendingRequests.get(requestCode);
+
+            // other processes may add requests after the index was read
+            if (request == null && (takeUnrestoredRequestCode(requestCode) || mMultiProcess)) {
+                request = mStore.read(requestCode);
+                if (request != null) {
+                    mPendingRequests.put(request);
+                    recoverIfOrphaned(request);
+                }
+            }
+        }
+
+        return request;
+    }
+
+    /**
+     * Takes over the state of the request, if another process changed it last.
+     */
+    private void adoptChangesElsewhere(Request request) {
+        int state = mStore.readStateChangedElsewhere(request.requestCode);
+        //noinspection WrongConstant
+        if (state >= 0 && request.adoptState(state)) {
+            recoverIfOrphaned(request);
+        }
+    }
+
+    /**
+     * Restores all persisted requests on a background thread, so later lookups don't have
+     * to decode them. Requests are restored lazily on first access without this call.
+     */
+    public void prefetchRequests() {
+        if (!isMarshmallow()) {
+            return;
+        }
+
+        mStore.readAllAsync(new RequestStore.ReadCallback() {
+            @Override
+            public void onRequestsRead(List<Request> requests) {
+                for (Request request : requests) {
+                    synchronized (mPendingRequests.lockFor(request.requestCode)) {
+                        if (takeUnrestoredRequestCode(request.requestCode)) {
+                            mPendingRequests.put(request);
+                            recoverIfOrphaned(request);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets how long a request restored in the middle of its run, e.g. after process death, may
+     * stay running before it is reset, so it can be run again. Results that arrive afterwards are
+     * still delivered. Default is {@value #DEFAULT_ORPHAN_TIMEOUT_MS} ms.
+     */
+    public void setOrphanTimeout(long timeoutMs) {
+        mOrphanTimeout = timeoutMs;
+    }
+
+    /**
+     * Sets how long a launch may take to show the permissions dialog, before its requests are
+     * reset and the next launch starts. Default is {@value LaunchScheduler#DEFAULT_LAUNCH_TIMEOUT_MS} ms.
+     */
+    public void setLaunchTimeout(long timeoutMs) {
+        mScheduler.setLaunchTimeout(timeoutMs);
+    }
+
+    /**
+     * Sets how long a launch, that showed the permissions dialog, may wait for its results,
+     * before its requests are reset and the next launch starts. Results that arrive afterwards
+     * are still delivered. Default is {@value LaunchScheduler#DEFAULT_REQUEST_TIMEOUT_MS} ms.
+     */
+    public void setRequestTimeout(long timeoutMs) {
+        mScheduler.setRequestTimeout(timeoutMs);
+    }
+
+    /**
+     * @return number of launches waiting for the launch in flight
+     */
+    public int getLaunchQueueDepth() {
+        return mScheduler.getQueueDepth();
+    }
+
+    /**
+     * Resets a restored running request once it was not changed for the orphan timeout. A request
+     * changed last by another process, that is still alive, is not orphaned, so it is checked
+     * again after the timeout.
+     */
+    private void recoverIfOrphaned(final Request request) {
+        if (!request.isRunning()) {
+            return;
+        }
+
+        final int state = request.getState();
+        long changedAt = mStore.getChangeTime(request.requestCode);
+        long remaining = changedAt < 0 ? 0 : changedAt + mOrphanTimeout - System.currentTimeMillis();
+
+        Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                if (mStore.isChangedByLiveProcess(request.requestCode)) {
+                    //later changes of the owning process are taken over on access
+                    if (request.getState() == state) {
+                        mMainHandler.postDelayed(this, mOrphanTimeout);
+                    }
+                    return;
+                }
+
+                if (request.timeOut(state)) {
+                    Trace.event(Trace.LEVEL_INFO, TAG, Trace.EVENT_ORPHAN, request.requestCode, state);
+                }
+            }
+        };
+
+        if (remaining <= 0) {
+            timeout.run();
+        } else {
+            mMainHandler.postDelayed(timeout, remaining);
+        }
+    }
+
+    /**
+     * @return false if the permission is not declared in the app manifest, so it can't be granted;
+     * requests with such permissions can't be created
+     */
+    public boolean isDeclared(String permission) {
+        return mDeclaredPermissions.isDeclared(permission);
+    }
+
     public Request createRequestEach(int requestCode, String... permissions) {
-        throw new RuntimeException("Not supported yet");
-//      return createRequest(requestCode, Request.REQUEST_MODE_EACH, permissions);
+        return createRequestEach(requestCode, false, permissions);
+    }
+
+    public Request createRequestEach(int requestCode, boolean isRestored, String... permissions) {
+        return createRequest(requestCode, isRestored, Request.REQUEST_MODE_EACH, permissions);
     }
 
     public Request createRequestAll(int requestCode, boolean isRestored, String... permissions) {
@@ -146,10 +676,59 @@ public class PermissionsManager {
     }
 
     private Request createRequest(int requestCode, boolean isRestored, @Request.RequestMode int requestMode, String... permissions) {
-        if (isRestored && mPendingRequests.containsKey(requestCode)) {
-            return mPendingRequests.get(requestCode);
-        } else {
-            return createAndCacheRequest(requestCode, requestMode, permissions);
+        mDeclaredPermissions.checkDeclared(permissions);
+
+        Request request;
+        synchronized (mPendingRequests.lockFor(requestCode)) {
+            Request restoredRequest = isRestored ? findRequest(requestCode) : null;
+
+            if (restoredRequest != null) {
+                request = restoredRequest;
+            } else {
+                request = createAndCacheRequest(requestCode, requestMode, permissions);
+            }
+        }
+
+        evictRequestsIfNeeded();
+        return request;
+    }
+
+    /**
+     * Limits the number of idle requests kept in memory and persisted; least recently used
+     * ones are evicted first. Default is {@value RequestEvictor#DEFAULT_MAX_REQUESTS}.
+     *
+     * @param maxRequests 0 disables the limit
+     */
+    public void setMaxRequests(int maxRequests) {
+        mEvictor.setMaxRequests(maxRequests);
+    }
+
+    /**
+     * Sets how long finished requests are kept after they finished. Default is one day.
+     *
+     * @param ttl time in milliseconds, 0 keeps finished requests until they are evicted by size
+     */
+    public void setFinishedRequestTtl(long ttl) {
+        mEvictor.setFinishedTtl(ttl);
+    }
+
+    private void evictRequestsIfNeeded() {
+        int evicted = mEvictor.evictIfNeeded(System.currentTimeMillis());
+        if (evicted > 0) {
+            mMetrics.onRequestsEvicted(evicted);
+        }
+    }
+
+    /**
+     * Registers the request again, if it was evicted while idle.
+     */
+    private void ensureRegistered(Request request) {
+        synchronized (mPendingRequests.lockFor(request.requestCode)) {
+            if (mPendingRequests.get(request.requestCode) != request) {
+                takeUnrestoredRequestCode(request.requestCode);
+                mPendingRequests.put(request);
+                mStore.markDirty(request);
+            }
         }
     }
 
@@ -157,17 +736,19 @@ public class PermissionsManager {
     private Request createAndCacheRequest(int requestCode, @Request.RequestMode int requestMode, String[] permissions) {
         Request newRequest = new Request(requestCode, requestMode, permissions);
         newRequest.setState(Request.STATE_INIT);
-        mPendingRequests.put(requestCode, newRequest);
+        takeUnrestoredRequestCode(requestCode);
+        mPendingRequests.put(newRequest);
+        mStore.markDirty(newRequest);
         return newRequest;
     }
 
     void runRequest(Request request, Activity activity) {
-        Log.v(TAG, "runRequest, request " + request);
-        if (request.isRunning()) {
+        Trace.event(Trace.LEVEL_DEBUG, TAG, Trace.EVENT_RUN, request.requestCode, request.getState(), request.requestMode);
+        if (!request.tryStart()) {
             return;
         }
+        ensureRegistered(request);
 
-        request.setState(Request.STATE_STARTED);
         @RequestStatus int requestStatus = getRequestStatus(request, activity);
 
         switch(requestStatus) {
@@ -198,32 +779,172 @@ public class PermissionsManager {
         launchRequest(request);
     }
 
+    /**
+     * @return union of permissions of the requests, in order
+     */
+    String[] getPermissions(int... requestCodes) {
+        if (requestCodes.length == 1) {
+            return PermissionTable.names(getRequest(requestCodes[0]).permissionIds);
+        }
+
+        LinkedHashSet<String> permissions = new LinkedHashSet<>();
+        for (int requestCode : requestCodes) {
+            permissions.addAll(getRequest(requestCode).requestedPermissions);
+        }
+        return permissions.toArray(new String[permissions.size()]);
+    }
+
+    /**
+     * Called once the system permissions dialog was requested for the launched requests.
+     */
+    void onPermissionsRequested(@LaunchStrategy int strategy, int... requestCodes) {
+        for (int requestCode : requestCodes) {
+            Request request = getRequest(requestCode);
+
+            long elapsed = request.getLaunchElapsed();
+            if (elapsed >= 0) {
+                mMetrics.onPermissionsRequested(requestCode, strategy, elapsed);
+            }
+            request.setState(Request.STATE_REQUESTED);
+            mScheduler.onRequested(requestCode);
+        }
+    }
+
+    /**
+     * @return false if the launch was preempted or timed out, so it must not request permissions
+     */
+    boolean isLaunchInFlight(long launchId) {
+        return mScheduler.isInFlight(launchId);
+    }
+
+    /**
+     * Enables batching of request launches: requests that become ready to be requested within
+     * {@code windowMs} of each other are requested together, in a single ShadowActivity.
+     *
+     * @param windowMs batching window in milliseconds, 0 disables batching
+     */
+    public void setLaunchBatchWindow(long windowMs) {
+        mLaunchBatchWindow = windowMs;
+    }
+
+    /**
+     * Selects how permissions dialog is shown for launched requests, {@link #LAUNCH_STRATEGY_SHADOW_ACTIVITY}
+     * by default. Batched launches, see {@link #setLaunchBatchWindow(long)}, always use ShadowActivity.
+     */
+    public void setLaunchStrategy(@LaunchStrategy int launchStrategy) {
+        mLaunchStrategy = launchStrategy;
+    }
+
     private void launchRequest(Request request) {
-        Intent intent = ShadowActivity.getStartIntent(mContext, request.requestCode);
-        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-        mContext.startActivity(intent);
+        Request inFlightRequest = mInFlightRequests.attach(request);
+        if (inFlightRequest != null) {
+            Trace.event(Trace.LEVEL_DEBUG, TAG, Trace.EVENT_ATTACH, request.requestCode, inFlightRequest.requestCode);
+            try {
+                request.setState(Request.STATE_REQUESTED);
+            } finally {
+                mInFlightRequests.onAttached(request);
+            }
+            return;
+        }
+
+        if (mLaunchBatchWindow <= 0) {
+            mScheduler.enqueue(new int[] {request.requestCode}, request.getPriority());
+            return;
+        }
+
+        synchronized (mLaunchBatch) {
+            if (!mLaunchBatch.contains(request.requestCode)) {
+                mLaunchBatch.add(request.requestCode);
+            }
+
+            if (mLaunchBatch.size() == 1) {
+                mMainHandler.postDelayed(mLaunchBatchTask, mLaunchBatchWindow);
+            }
+        }
+    }
+
+    private final Runnable mLaunchBatchTask = new Runnable() {
+        @Override
+        public void run() {
+            launchBatch();
+        }
+    };
+
+    /**
+     * Launches requests collected in the batching window together.
+     */
+    void launchBatch() {
+        int[] requestCodes;
+        synchronized (mLaunchBatch) {
+            requestCodes = new int[mLaunchBatch.size()];
+            for (int i = 0; i < requestCodes.length; i++) {
+                requestCodes[i] = mLaunchBatch.get(i);
+            }
+            mLaunchBatch.clear();
+        }
+
+        if (requestCodes.length == 0) {
+            return;
+        }
+
+        int priority = Integer.MIN_VALUE;
+        for (int requestCode : requestCodes) {
+            priority = Math.max(priority, getRequest(requestCode).getPriority());
+        }
+        mScheduler.enqueue(requestCodes, priority);
+    }
+
+    /**
+     * @return false if the request has to be launched in ShadowActivity
+     */
+    private boolean startInFragment(Request request) {
+        if (mLaunchStrategy != LAUNCH_STRATEGY_FRAGMENT || Looper.myLooper() != Looper.getMainLooper()) {
+            return false;
+        }
+
+        Activity activity = request.getActivity();
+        if (activity == null) {
+            return false;
+        }
+
+        request.markLaunched();
+        if (!PermissionsFragment.launch(mFragmentHost, activity, request.requestCode)) {
+            return false;
+        }
+
+        Trace.event(Trace.LEVEL_DEBUG, TAG, Trace.EVENT_LAUNCH, request.requestCode, 1, LAUNCH_STRATEGY_FRAGMENT);
+        return true;
+    }
+
+    private void startRequestPermissions(long launchId, int... requestCodes) {
+        Trace.event(Trace.LEVEL_DEBUG, TAG, Trace.EVENT_LAUNCH, requestCodes[0], requestCodes.length, LAUNCH_STRATEGY_SHADOW_ACTIVITY);
+        for (int requestCode : requestCodes) {
+            getRequest(requestCode).markLaunched();
+        }
+
+        mBackend.requestPermissions(launchId, requestCodes);
     }
 
     @RequestStatus
     private int getRequestStatus(Request request, Activity activity) {
         if (request.requestMode == Request.REQUEST_MODE_ALL) {
-            return getRequestStatusForAll(request, activity);
+            return getRequestStatusForAll(request.requestedPermissions, activity);
         } else {
             return getRequestStatusForEach(request, activity);
         }
     }
 
     @RequestStatus
-    private int getRequestStatusForAll(Request request, Activity activity) {
+    private int getRequestStatusForAll(List<String> permissions, Activity activity) {
         boolean hasDenied = false;
         boolean shouldShowRationale = false;
 
-        for (String permission: request.requestedPermissions) {
+        for (String permission: permissions) {
             if (!isGranted(permission)){
                 hasDenied = true;
             }
 
-            if (ActivityCompat.shouldShowRequestPermissionRationale(activity, permission)) {
+            if (shouldShowRationale(permission, activity)) {
                 shouldShowRationale = true;
             }
         }
@@ -249,7 +970,7 @@ public class PermissionsManager {
                 allGranted = false;
             }
 
-            if (ActivityCompat.shouldShowRequestPermissionRationale(activity, permission)) {
+            if (shouldShowRationale(permission, activity)) {
                 shouldShowRationale = true;
             }
         }
@@ -265,25 +986,107 @@ public class PermissionsManager {
         }
     }
 
+    /**
+     * Read-only status check that doesn't create requests, touch persistence or need an Activity,
+     * e.g. for pre-flight checks from background jobs. Rationale and denied forever statuses of
+     * permissions that are not granted are known only if they were denied in a request since the
+     * process started, otherwise {@link PermissionStatusVector#STATUS_UNKNOWN} is reported.
+     * Permissions not declared in the manifest are reported as denied forever.
+     */
+    public PermissionStatusVector queryStatus(String... permissions) {
+        return queryStatus(null, permissions);
+    }
+
+    /**
+     * Same as {@link #queryStatus(String...)}, but asks the given Activity whether rationale
+     * should be shown for permissions that are not granted.
+     */
+    public PermissionStatusVector queryStatus(Activity activity, String... permissions) {
+        PermissionStatusVector result = new PermissionStatusVector(permissions.length);
+
+        for (int i = 0; i < permissions.length; i++) {
+            result.set(i, getPermissionStatus(permissions[i], activity));
+        }
+
+        return result;
+    }
+
+    @PermissionStatusVector.Status
+    private int getPermissionStatus(String permission, Activity activity) {
+        if (!mDeclaredPermissions.isDeclared(permission)) {
+            return PermissionStatusVector.STATUS_DENIED_FOREVER;
+        }
+
+        //same status a request of the single permission would get
+        switch (getRequestStatusForAll(Collections.singletonList(permission), activity)) {
+            case REQUEST_STATUS_GRANTED:
+                return PermissionStatusVector.STATUS_GRANTED;
+            case REQUEST_STATUS_UNKNOWN_SHOW_RATIONALE:
+                return PermissionStatusVector.STATUS_RATIONALE;
+            case REQUEST_STATUS_UNKNOWN:
+                break;
+            default:
+                throw new RuntimeException("unexpected");
+        }
+
+        Integer denialStatus;
+        synchronized (mDenialStatuses) {
+            denialStatus = mDenialStatuses.get(permission);
+        }
+
+        if (denialStatus == null) {
+            return PermissionStatusVector.STATUS_UNKNOWN;
+        } else if (activity != null && denialStatus == PermissionStatusVector.STATUS_RATIONALE) {
+            // activity reports rationale is no longer needed, e.g. it was reset in settings
+            return PermissionStatusVector.STATUS_UNKNOWN;
+        } else {
+            return denialStatus;
+        }
+    }
+
+    private void rememberDenials(String[] permissions, int[] grantResults, boolean[] shouldShowRationale) {
+        synchronized (mDenialStatuses) {
+            for (int i = 0; i < permissions.length; i++) {
+                if (grantResults[i] == PackageManager.PERMISSION_GRANTED) {
+                    mDenialStatuses.remove(permissions[i]);
+                } else {
+                    mDenialStatuses.put(permissions[i], shouldShowRationale[i]
+                            ? PermissionStatusVector.STATUS_RATIONALE
+                            : PermissionStatusVector.STATUS_DENIED_FOREVER);
+                }
+            }
+        }
+    }
+
     private boolean isMarshmallow() {
-        return Build.VERSION_CODES.M <= Build.VERSION.SDK_INT;
+        return Build.VERSION_CODES.M <= mSdkInt;
     }
 
     private boolean isGranted(String permission) {
+        if (!mDeclaredPermissions.isDeclared(permission)) {
+            return false;
+        }
+
+        //before M declared permissions are granted at install
         return !isMarshmallow() || isGranted_(permission);
     }
 
     @TargetApi(Build.VERSION_CODES.M)
     private boolean isGranted_(String permission) {
-        return mContext.checkSelfPermission(permission) == PackageManager.PERMISSION_GRANTED;
-    }
+        Boolean cached = mPermissionCache.get(permission);
+        if (cached != null) {
+            return cached;
+        }
 
-    private boolean isDeniedForever(String permission, Activity activity) {
-        return isMarshmallow() && isDeniedForever_(permission, activity);
+        boolean granted = mBackend.checkSelfPermission(permission) == PackageManager.PERMISSION_GRANTED;
+        mPermissionCache.put(permission, granted);
+        return granted;
     }
 
-    @TargetApi(Build.VERSION_CODES.M)
-    private boolean isDeniedForever_(String permission, Activity activity) {
-        return activity.shouldShowRequestPermissionRationale(permission);
+    /**
+     * @return false without an Activity to ask
+     */
+    private boolean shouldShowRationale(String permission, Activity activity) {
+        return isMarshmallow() && activity != null && mBackend.shouldShowRequestPermissionRationale(activity, permission);
     }
 }
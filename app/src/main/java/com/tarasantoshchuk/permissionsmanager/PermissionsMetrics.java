@@ -0,0 +1,83 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+/**
+ * Receives request lifecycle measurements. Called on hot paths from any thread, so
+ * implementations should be cheap, thread-safe and avoid allocations.
+ *
+ * @see InMemoryPermissionsMetrics
+ */
+public interface PermissionsMetrics {
+    /**
+     * @param durationNanos time the request spent in {@code fromState}
+     */
+    void onStateTransition(int requestCode, @Request.State int fromState, @Request.State int toState, long durationNanos);
+
+    /**
+     * @param durationNanos time from launch to the system permissions dialog being requested
+     */
+    void onPermissionsRequested(int requestCode, @PermissionsManager.LaunchStrategy int strategy, long durationNanos);
+
+    /**
+     * @param durationNanos time from launch to permissions result
+     */
+    void onLaunchCompleted(int requestCode, long durationNanos);
+
+    /**
+     * @param changeCount number of requests written
+     */
+    void onPersistenceFlush(int changeCount, long durationNanos);
+
+    void onRequestFinished(int requestCode, @Request.Result int result);
+
+    /**
+     * @param requestCode code of the first request of the launch
+     * @param waitNanos time the launch waited for the in-flight slot
+     * @param queueDepth number of launches still waiting
+     */
+    void onLaunchStarted(int requestCode, long waitNanos, int queueDepth);
+
+    /**
+     * @param requestCode code of the first request of the launch, that didn't request
+     *                    permissions within the launch timeout
+     */
+    void onLaunchTimedOut(int requestCode);
+
+    /**
+     * @param count number of idle requests removed from the registry and persistence in one pass
+     */
+    void onRequestsEvicted(int count);
+
+    PermissionsMetrics NO_OP = new PermissionsMetrics() {
+        @Override
+        public void onStateTransition(int requestCode, @Request.State int fromState, @Request.State int toState, long durationNanos) {
+        }
+
+        @Override
+        public void onPermissionsRequested(int requestCode, @PermissionsManager.LaunchStrategy int strategy, long durationNanos) {
+        }
+
+        @Override
+        public void onLaunchCompleted(int requestCode, long durationNanos) {
+        }
+
+        @Override
+        public void onPersistenceFlush(int changeCount, long durationNanos) {
+        }
+
+        @Override
+        public void onRequestFinished(int requestCode, @Request.Result int result) {
+        }
+
+        @Override
+        public void onLaunchStarted(int requestCode, long waitNanos, int queueDepth) {
+        }
+
+        @Override
+        public void onLaunchTimedOut(int requestCode) {
+        }
+
+        @Override
+        public void onRequestsEvicted(int count) {
+        }
+    };
+}
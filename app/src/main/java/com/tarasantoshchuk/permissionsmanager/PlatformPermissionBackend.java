@@ -0,0 +1,37 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+
+/**
+ * Checks permissions through the application context and requests them in {@link ShadowActivity}.
+ */
+final class PlatformPermissionBackend implements PermissionBackend {
+    private final Context mContext;
+
+    PlatformPermissionBackend(Context context) {
+        mContext = context;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    @Override
+    public int checkSelfPermission(String permission) {
+        return mContext.checkSelfPermission(permission);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    @Override
+    public boolean shouldShowRequestPermissionRationale(Activity activity, String permission) {
+        return activity.shouldShowRequestPermissionRationale(permission);
+    }
+
+    @Override
+    public void requestPermissions(long launchId, int[] requestCodes) {
+        Intent intent = ShadowActivity.getStartIntent(mContext, launchId, requestCodes);
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        mContext.startActivity(intent);
+    }
+}
@@ -2,7 +2,6 @@ package com.tarasantoshchuk.permissionsmanager;
 
 import android.app.Activity;
 import android.support.annotation.IntDef;
-import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -11,9 +10,10 @@ import org.json.JSONObject;
 import java.io.Serializable;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class Request implements Serializable {
     private static final String TAG = Request.class.getSimpleName();
@@ -23,15 +23,73 @@ public final class Request implements Serializable {
     @RequestMode
     final int requestMode;
 
+    /**
+     * {@link PermissionTable} ids of requested permissions.
+     */
+    final int[] permissionIds;
+
+    /**
+     * Requested permission names, backed by {@link #permissionIds}.
+     */
     final List<String> requestedPermissions;
 
+    /**
+     * Names of requested permissions for listener callbacks, created on first delivery.
+     */
+    private String[] mPermissionNames;
+
     @State
-    private int state;
+    private volatile int state;
 
     @Result
     private int result;
 
-    private Listener mListener;
+    /**
+     * Per-permission results, in order of {@link #requestedPermissions}.
+     */
+    private final int[] permissionResults;
+
+    /**
+     * Held weakly, like every listener of the request, so a forgotten listener doesn't keep its
+     * Activity alive.
+     */
+    private volatile WeakReference<Listener> mListener;
+
+    /**
+     * Listeners bound to an Activity, in addition to {@link #mListener}.
+     */
+    private final ListenerList mListeners = new ListenerList();
+
+    /**
+     * Activity of the last {@link #run(Activity)}, that permissions can be requested from.
+     */
+    private volatile WeakReference<Activity> mActivity;
+
+    private volatile int mPriority = PRIORITY_NORMAL;
+
+    /**
+     * {@link System#nanoTime()} when the current state was entered, and when the request was launched.
+     */
+    private long stateEnteredAt = System.nanoTime();
+    private long launchedAt;
+
+    private static final AtomicLong sUseSequence = new AtomicLong();
+
+    /**
+     * Sequence number of the last use, for least recently used eviction.
+     */
+    private volatile long lastUsedAt = sUseSequence.incrementAndGet();
+
+    /**
+     * {@link System#currentTimeMillis()} of the last finish, or -1 if the request never finished;
+     * persisted, so the finished ttl survives process death.
+     */
+    private volatile long finishedAt = -1;
+
+    /**
+     * Future of the current run, shared by all {@link #runAsync(Activity)} callers.
+     */
+    private ResultFuture mFuture;
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({REQUEST_MODE_ALL, REQUEST_MODE_EACH})
@@ -56,32 +114,64 @@ public final class Request implements Serializable {
     public static final int STATE_REQUESTED = 4;
     public static final int STATE_FINISHED = 5;
 
-    private Request(int requestCode, @RequestMode int requestMode, @State int state, String[] permissions) {
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    Request(int requestCode, @RequestMode int requestMode, @State int state, int[] permissionIds) {
         this.requestCode = requestCode;
         this.requestMode = requestMode;
         this.state = state;
-        ArrayList<String> array = new ArrayList<>();
+        this.permissionIds = permissionIds;
 
-        for (int i = 0; i < permissions.length; i++) {
-            array.add(i, permissions[i]);
-        }
+        requestedPermissions = new PermissionTable.NameList(permissionIds);
+        permissionResults = new int[permissionIds.length];
+    }
 
-        requestedPermissions = Collections.unmodifiableList(array);
+    Request(int requestCode, @RequestMode int requestMode, @State int state, String[] permissions) {
+        this(requestCode, requestMode, state, PermissionTable.intern(permissions));
     }
 
     Request(int requestCode, @RequestMode int requestMode, String[] permissions) {
         this(requestCode, requestMode, STATE_INIT, permissions);
     }
 
+    @State
+    int getState() {
+        return state;
+    }
+
     public boolean isRunning() {
         return state >= STATE_STARTED;
     }
 
+    /**
+     * Sets the listener, that the request holds weakly, so the caller must keep a reference to it,
+     * e.g. in a field of the Activity, for as long as it has to be called.
+     */
     public void setListener(Listener listener) {
-        mListener = listener;
+        mListener = listener == null ? null : new WeakReference<>(listener);
+        markUsed();
 
         //invoke current state callbacks, that might be missed by the listener
-        setState(state);
+        if (listener != null) {
+            replayState(listener);
+        } else {
+            setState(state);
+        }
+    }
+
+    /**
+     * Sets priority of the permissions dialog launch, {@link #PRIORITY_NORMAL} by default.
+     * Launches wait for each other in order of priority; a launch of higher priority goes ahead
+     * of a launch, that didn't show the permissions dialog yet.
+     */
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    public int getPriority() {
+        return mPriority;
     }
 
     public void stop() {
@@ -90,29 +180,225 @@ public final class Request implements Serializable {
         }
     }
 
+    private Listener getListener() {
+        WeakReference<Listener> listener = mListener;
+        return listener == null ? null : listener.get();
+    }
+
+    /**
+     * Adds a listener, that is removed automatically when the Activity is destroyed. The request
+     * holds both weakly, so it never keeps them alive, and the caller must keep a reference to the
+     * listener, like with {@link #setListener(Listener)}. Any number of listeners can be added; the request proceeds
+     * after rationale only if every listener's {@link Listener#onShowRationale()} returns true.
+     * Adding a listener again rebinds it to the given Activity.
+     */
+    public void addListener(Activity owner, Listener listener) {
+        mListeners.add(owner, listener);
+        markUsed();
+
+        //invoke current state callbacks, that might be missed by the listener
+        replayState(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return true if any listener was removed
+     */
+    boolean removeListenersOwnedBy(Activity activity) {
+        return mListeners.removeOwnedBy(activity) > 0;
+    }
+
+    private void replayState(Listener listener) {
+        int state = this.state;
+        if (state == STATE_RATIONALE || state == STATE_FINISHED) {
+            dispatchState(state, listener);
+        }
+    }
+
     public void reset() {
         setState(STATE_INIT);
     }
 
     public void run(Activity activity) {
+        mActivity = activity == null ? null : new WeakReference<>(activity);
         PermissionsManager.getInstance().runRequest(this, activity);
     }
 
+    /**
+     * Runs the request, or joins its current run, and returns the future of its result.
+     * Concurrent callers share the same run and the same future. A run, that ends without
+     * permissions results, completes it as {@link RequestResult#isInterrupted() interrupted}.
+     *
+     * Rationale is still reported to {@link Listener#onShowRationale()}; without a listener
+     * the request proceeds without showing rationale.
+     */
+    public ResultFuture runAsync(Activity activity) {
+        ResultFuture future;
+        synchronized (this) {
+            if (mFuture == null) {
+                mFuture = new ResultFuture(PermissionsManager.getInstance().getResultExecutor());
+            }
+            future = mFuture;
+        }
+
+        run(activity);
+        return future;
+    }
+
     void setState(@State int state) {
-        Log.v(TAG, "setState, state " + state);
-        this.state = state;
+        boolean changed;
+        synchronized (this) {
+            Trace.event(Trace.LEVEL_VERBOSE, TAG, Trace.EVENT_STATE, requestCode, this.state, state);
+            changed = this.state != state;
+            if (changed) {
+                onStateLeft(this.state, state);
+            }
+            this.state = state;
+        }
+
+        onStateSet(state, changed);
+    }
+
+    private void onStateLeft(@State int fromState, @State int toState) {
+        long now = System.nanoTime();
+        PermissionsManager.getInstance().getMetrics().onStateTransition(requestCode, fromState, toState, now - stateEnteredAt);
+        stateEnteredAt = now;
+    }
+
+    /**
+     * @return Activity the request was last run from, or null if it is gone
+     */
+    Activity getActivity() {
+        WeakReference<Activity> activity = mActivity;
+        return activity == null ? null : activity.get();
+    }
+
+    private void markUsed() {
+        lastUsedAt = sUseSequence.incrementAndGet();
+    }
+
+    long getLastUsedAt() {
+        return lastUsedAt;
+    }
+
+    long getFinishedAt() {
+        return finishedAt;
+    }
+
+    void setFinishedAt(long finishedAt) {
+        this.finishedAt = finishedAt;
+    }
+
+    synchronized void markLaunched() {
+        launchedAt = System.nanoTime();
+    }
+
+    /**
+     * @return nanoseconds since {@link #markLaunched()}, or -1 if the request was not launched
+     */
+    synchronized long getLaunchElapsed() {
+        return launchedAt == 0 ? -1 : System.nanoTime() - launchedAt;
+    }
+
+    /**
+     * @return nanoseconds since {@link #markLaunched()}, or -1 if the request was not launched;
+     * the launch is not reported again afterwards
+     */
+    synchronized long takeLaunchDuration() {
+        if (launchedAt == 0) {
+            return -1;
+        }
+        long duration = System.nanoTime() - launchedAt;
+        launchedAt = 0;
+        return duration;
+    }
+
+    /**
+     * Resets the request if it is still in the given state.
+     *
+     * @return true if the request was reset
+     */
+    boolean timeOut(@State int expectedState) {
+        synchronized (this) {
+            if (state != expectedState) {
+                return false;
+            }
+            onStateLeft(state, STATE_INIT);
+            state = STATE_INIT;
+        }
+
+        onStateSet(STATE_INIT, true);
+        return true;
+    }
+
+    /**
+     * Takes over a state set by another process, without persisting or dispatching it. A request
+     * finished there becomes idle here.
+     *
+     * @return true if the state changed
+     */
+    boolean adoptState(@State int state) {
+        int adopted = state == STATE_FINISHED ? STATE_INIT : state;
+        synchronized (this) {
+            if (this.state == adopted) {
+                return false;
+            }
+            onStateLeft(this.state, adopted);
+            this.state = adopted;
+        }
+
+        if (adopted == STATE_INIT) {
+            completeFuture(true);
+        }
+        return true;
+    }
+
+    /**
+     * Atomically moves a request, that is not running, to {@link #STATE_STARTED}.
+     *
+     * @return false if the request is already running, here or in another process
+     */
+    boolean tryStart() {
+        synchronized (this) {
+            if (isRunning()) {
+                return false;
+            }
+            markUsed();
+            onStateLeft(state, STATE_STARTED);
+            state = STATE_STARTED;
+        }
+
+        //persisted by the manager, which takes over the state if the request runs in another process
+        return PermissionsManager.getInstance().onRequestStarted(this);
+    }
+
+    private void onStateSet(@State int state, boolean changed) {
+        if (state == STATE_FINISHED) {
+            finishedAt = System.currentTimeMillis();
+        }
+        if (changed) {
+            PermissionsManager.getInstance().onRequestChanged(this);
+        }
 
         switch(state) {
             case STATE_RATIONALE:
-                if(mListener.onShowRationale()) {
-                    proceed();
-                }
+                dispatchState(state);
                 break;
             case STATE_FINISHED:
-                mListener.onRequestResult(result, requestCode, requestedPermissions.toArray(new String[requestedPermissions.size()]));
+                PermissionsManager.getInstance().getMetrics().onRequestFinished(requestCode, result);
+                completeFuture(false);
+                dispatchState(state);
                 break;
-            case STATE_BEFORE_REQUEST:
             case STATE_INIT:
+                //reset or timed out before finishing, so a run's awaiters are not left waiting
+                if (changed) {
+                    completeFuture(true);
+                }
+                break;
+            case STATE_BEFORE_REQUEST:
             case STATE_STARTED:
             case STATE_REQUESTED:
                 //ok, just do nothing
@@ -122,19 +408,183 @@ public final class Request implements Serializable {
         }
     }
 
+    private synchronized boolean hasFuture() {
+        return mFuture != null;
+    }
+
+    /**
+     * @param interrupted whether the run ended without results, which completes it as denied
+     */
+    private void completeFuture(boolean interrupted) {
+        ResultFuture future;
+        RequestResult requestResult = null;
+        synchronized (this) {
+            future = mFuture;
+            mFuture = null;
+            if (future != null && interrupted) {
+                int[] denied = new int[permissionIds.length];
+                Arrays.fill(denied, RESULT_DENIED);
+                requestResult = new RequestResult(requestCode, RESULT_DENIED, getPermissionNames(), denied, true);
+            } else if (future != null) {
+                requestResult = new RequestResult(requestCode, result, getPermissionNames(), permissionResults.clone());
+            }
+        }
+
+        if (future != null) {
+            future.complete(requestResult);
+        }
+    }
+
+    private void dispatchState(@State int state) {
+        dispatchState(state, null);
+    }
+
+    /**
+     * Invokes listener callbacks for the state on the main thread, keeping the dispatch order.
+     * On the main thread, with no callbacks queued, listeners are invoked inline.
+     *
+     * @param only listener to notify, or null to notify all listeners
+     */
+    private void dispatchState(@State final int state, final Listener only) {
+        MainThreadDispatcher dispatcher = PermissionsManager.getInstance().getDispatcher();
+
+        if (dispatcher.canRunInline()) {
+            notifyListeners(state, result, permissionResults, only);
+            return;
+        }
+
+        final int result;
+        final int[] permissionResults;
+        synchronized (this) {
+            result = this.result;
+            permissionResults = this.permissionResults.clone();
+        }
+
+        dispatcher.dispatch(new Runnable() {
+            @Override
+            public void run() {
+                notifyListeners(state, result, permissionResults, only);
+            }
+        });
+    }
+
+    private void notifyListeners(@State int state, @Result int result, int[] permissionResults, Listener only) {
+        boolean notified = false;
+        boolean proceed = true;
+
+        Listener listener = only != null ? only : getListener();
+        if (listener != null) {
+            proceed = notifyListener(listener, state, result, permissionResults);
+            notified = true;
+        }
+
+        if (only == null) {
+            boolean stale = false;
+            for (ListenerList.Binding binding : mListeners.get()) {
+                Listener bound = binding.getListener();
+                if (bound == null) {
+                    stale = true;
+                    continue;
+                }
+                proceed &= notifyListener(bound, state, result, permissionResults);
+                notified = true;
+            }
+
+            if (stale) {
+                mListeners.removeOwnedBy(null);
+            }
+        }
+
+        if (state == STATE_RATIONALE && (notified ? proceed : hasFuture())) {
+            proceed();
+        }
+    }
+
+    /**
+     * @return for {@link #STATE_RATIONALE}, whether the listener lets the request proceed
+     */
+    private boolean notifyListener(Listener listener, @State int state, @Result int result, int[] permissionResults) {
+        switch(state) {
+            case STATE_RATIONALE:
+                return listener.onShowRationale();
+            case STATE_FINISHED:
+                String[] permissions = getPermissionNames();
+                listener.onRequestResult(result, requestCode, permissions);
+                if (listener instanceof EachListener) {
+                    ((EachListener) listener).onRequestEachResult(requestCode, permissions, permissionResults);
+                }
+                return true;
+            default:
+                throw new RuntimeException("unexpected");
+        }
+    }
+
+    /**
+     * @return permission names shared by all deliveries, must not be modified
+     */
+    private synchronized String[] getPermissionNames() {
+        if (mPermissionNames == null) {
+            mPermissionNames = PermissionTable.names(permissionIds);
+        }
+        return mPermissionNames;
+    }
+
+    /**
+     * @return true if every permission of the other request is requested by this one
+     */
+    boolean containsAllPermissions(Request other) {
+        return PermissionTable.containsAll(permissionIds, other.permissionIds);
+    }
+
     public void proceed() {
         PermissionsManager.getInstance().proceedRequest(this);
     }
 
-    void setResult(@Result int result) {
+    /**
+     * Sets the same result for the request and each of its permissions.
+     */
+    synchronized void setResult(@Result int result) {
         this.result = result;
+        Arrays.fill(permissionResults, result);
+    }
+
+    /**
+     * Sets per-permission result; request result becomes the worst of results set so far.
+     */
+    synchronized void setPermissionResult(int index, @Result int result) {
+        permissionResults[index] = result;
+        this.result = Math.max(this.result, result);
     }
 
+    /**
+     * Called on the main thread. Unlike {@link ResultFuture} callbacks, listeners are not posted:
+     * when the request finishes on the main thread, they run inline, e.g. inside
+     * {@link PermissionsManager#handleRequestResult(int, String[], int[], boolean[])}, before the
+     * request is reset, so running the request again right from the callback has no effect.
+     */
     public interface Listener {
         boolean onShowRationale();
+
+        /**
+         * @param permissions owned by the request and shared between deliveries, must not be modified
+         */
         void onRequestResult(@Result int result, int requestCode, String... permissions);
     }
 
+    /**
+     * Listener for {@link #REQUEST_MODE_EACH} requests, that also receives results per permission.
+     */
+    public interface EachListener extends Listener {
+        /**
+         * Called right after {@link #onRequestResult(int, int, String...)}.
+         *
+         * @param permissions same array as passed to {@link #onRequestResult(int, int, String...)}
+         * @param results {@link Result} for each of permissions, owned by the request and
+         *                valid only during this call
+         */
+        void onRequestEachResult(int requestCode, String[] permissions, int[] results);
+    }
+
     public static String toJson(Request request) {
         JSONObject json = new JSONObject();
         try {
@@ -177,7 +627,7 @@ public final class Request implements Serializable {
     public String toString() {
         return "Request{" +
                 "result=" + result +
-                ", mListener=" + mListener +
+                ", mListener=" + getListener() +
                 ", state=" + state +
                 ", requestedPermissions=" + requestedPermissions +
                 ", requestMode=" + requestMode +
@@ -0,0 +1,357 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Compact, versioned binary format for {@link Request}.
+ *
+ * Layout: version byte, varint request code, request mode byte, state byte, varint permissions
+ * count and one entry per permission. Well-known permissions are written as varint (id << 2),
+ * permissions from a {@link PermissionDictionary} as varint (index << 2 | 2), any other
+ * permission as varint (length << 2 | 1) followed by its UTF-8 bytes. Version 1 used a single
+ * tag bit, without dictionary entries. A request, that finished, is followed by varint finish
+ * time, which older readers ignore.
+ *
+ * Encoded bytes are stored as base64 text, so they can live in SharedPreferences.
+ */
+final class RequestCodec {
+    static final int VERSION = 2;
+    static final int VERSION_1 = 1;
+
+    private static final int TAG_KNOWN = 0;
+    private static final int TAG_UTF8 = 1;
+    private static final int TAG_DICTIONARY = 2;
+
+    private static final char[] BASE64_CHARS =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] BASE64_VALUES = new int[128];
+
+    static {
+        for (int i = 0; i < BASE64_VALUES.length; i++) {
+            BASE64_VALUES[i] = -1;
+        }
+        for (int i = 0; i < BASE64_CHARS.length; i++) {
+            BASE64_VALUES[BASE64_CHARS[i]] = i;
+        }
+    }
+
+    private RequestCodec() {
+    }
+
+    /**
+     * @return true if the value was written by {@link Request#toJson(Request)}
+     */
+    static boolean isLegacyJson(String value) {
+        return value.length() > 0 && value.charAt(0) == '{';
+    }
+
+    /**
+     * Encodes permissions, that are not well-known, inline.
+     */
+    static String encode(Request request) {
+        return encode(request, null);
+    }
+
+    static String encode(Request request, PermissionDictionary dictionary) {
+        return toBase64(encodeBytes(request, dictionary));
+    }
+
+    /**
+     * @return decoded request or null if the value is malformed or has unknown version
+     */
+    static Request decode(String value) {
+        return decode(value, null);
+    }
+
+    static Request decode(String value, PermissionDictionary dictionary) {
+        byte[] bytes = fromBase64(value);
+        return bytes == null ? null : decodeBytes(bytes, dictionary);
+    }
+
+    static byte[] encodeBytes(Request request, PermissionDictionary dictionary) {
+        int[] permissionIds = request.permissionIds;
+
+        Writer writer = new Writer(8 + permissionIds.length * 2);
+        writer.writeByte(VERSION);
+        writer.writeVarint(request.requestCode);
+        writer.writeByte(request.requestMode);
+        writer.writeByte(request.getState());
+        writer.writeVarint(permissionIds.length);
+
+        for (int id : permissionIds) {
+            if (PermissionTable.isKnown(id)) {
+                writer.writeVarint(id << 2 | TAG_KNOWN);
+            } else if (dictionary != null) {
+                writer.writeVarint(dictionary.indexOf(PermissionTable.name(id)) << 2 | TAG_DICTIONARY);
+            } else {
+                byte[] utf8 = utf8(PermissionTable.name(id));
+                writer.writeVarint(utf8.length << 2 | TAG_UTF8);
+                writer.writeBytes(utf8);
+            }
+        }
+
+        long finishedAt = request.getFinishedAt();
+        if (finishedAt >= 0) {
+            writer.writeVarlong(finishedAt);
+        }
+
+        return writer.toByteArray();
+    }
+
+    @SuppressWarnings("WrongConstant")
+    static Request decodeBytes(byte[] bytes, PermissionDictionary dictionary) {
+        Reader reader = new Reader(bytes);
+        try {
+            int version = reader.readByte();
+            if (version != VERSION && version != VERSION_1) {
+                return null;
+            }
+            int tagBits = version == VERSION_1 ? 1 : 2;
+
+            int requestCode = reader.readVarint();
+            int requestMode = reader.readByte();
+            int state = reader.readByte();
+            if (!isValidRequestMode(requestMode) || !isValidState(state)) {
+                return null;
+            }
+
+            //every permission takes at least a byte
+            int count = reader.readVarint();
+            if (count < 0 || count > reader.remaining()) {
+                return null;
+            }
+            int[] permissionIds = new int[count];
+
+            for (int i = 0; i < permissionIds.length; i++) {
+                int header = reader.readVarint();
+                int tag = header & (1 << tagBits) - 1;
+                int value = header >>> tagBits;
+
+                if (tag == TAG_KNOWN) {
+                    if (!PermissionTable.isKnown(value)) {
+                        return null;
+                    }
+                    permissionIds[i] = value;
+                } else if (tag == TAG_UTF8) {
+                    permissionIds[i] = PermissionTable.intern(reader.readUtf8(value));
+                } else if (tag == TAG_DICTIONARY) {
+                    String permission = dictionary == null ? null : dictionary.get(value);
+                    if (permission == null) {
+                        return null;
+                    }
+                    permissionIds[i] = PermissionTable.intern(permission);
+                } else {
+                    return null;
+                }
+            }
+
+            Request request = new Request(requestCode, requestMode, state, permissionIds);
+            if (reader.remaining() > 0) {
+                request.setFinishedAt(reader.readVarlong());
+            }
+            return request;
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads only the state of an encoded request.
+     *
+     * @return state or -1 if the bytes can't be decoded
+     */
+    static int decodeStateBytes(byte[] bytes) {
+        Reader reader = new Reader(bytes);
+        try {
+            int version = reader.readByte();
+            if (version != VERSION && version != VERSION_1) {
+                return -1;
+            }
+            reader.readVarint();
+            reader.readByte();
+            int state = reader.readByte();
+            return isValidState(state) ? state : -1;
+        } catch (IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isValidRequestMode(int requestMode) {
+        return requestMode == Request.REQUEST_MODE_ALL || requestMode == Request.REQUEST_MODE_EACH;
+    }
+
+    private static boolean isValidState(int state) {
+        return Request.STATE_INIT <= state && state <= Request.STATE_FINISHED;
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String toBase64(byte[] bytes) {
+        char[] chars = new char[(bytes.length * 4 + 2) / 3];
+        int c = 0;
+
+        for (int i = 0; i < bytes.length; i += 3) {
+            int b0 = bytes[i] & 0xff;
+            int b1 = i + 1 < bytes.length ? bytes[i + 1] & 0xff : 0;
+            int b2 = i + 2 < bytes.length ? bytes[i + 2] & 0xff : 0;
+
+            chars[c++] = BASE64_CHARS[b0 >>> 2];
+            chars[c++] = BASE64_CHARS[(b0 << 4 | b1 >>> 4) & 0x3f];
+            if (i + 1 < bytes.length) {
+                chars[c++] = BASE64_CHARS[(b1 << 2 | b2 >>> 6) & 0x3f];
+            }
+            if (i + 2 < bytes.length) {
+                chars[c++] = BASE64_CHARS[b2 & 0x3f];
+            }
+        }
+
+        return new String(chars);
+    }
+
+    static byte[] fromBase64(String value) {
+        int length = value.length();
+        if (length % 4 == 1) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length * 3 / 4];
+        int b = 0;
+        int buffer = 0;
+        int bits = 0;
+
+        for (int i = 0; i < length; i++) {
+            char ch = value.charAt(i);
+            int v = ch < BASE64_VALUES.length ? BASE64_VALUES[ch] : -1;
+            if (v < 0) {
+                return null;
+            }
+
+            buffer = buffer << 6 | v;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                bytes[b++] = (byte) (buffer >>> bits);
+            }
+        }
+
+        return bytes;
+    }
+
+    private static final class Writer {
+        private byte[] mBytes;
+        private int mSize;
+
+        Writer(int capacity) {
+            mBytes = new byte[capacity];
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            mBytes[mSize++] = (byte) value;
+        }
+
+        void writeVarint(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7f) != 0) {
+                mBytes[mSize++] = (byte) (value & 0x7f | 0x80);
+                value >>>= 7;
+            }
+            mBytes[mSize++] = (byte) value;
+        }
+
+        void writeVarlong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7fL) != 0) {
+                mBytes[mSize++] = (byte) (value & 0x7f | 0x80);
+                value >>>= 7;
+            }
+            mBytes[mSize++] = (byte) value;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, mBytes, mSize, bytes.length);
+            mSize += bytes.length;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (mSize + extra > mBytes.length) {
+                byte[] bytes = new byte[Math.max(mBytes.length * 2, mSize + extra)];
+                System.arraycopy(mBytes, 0, bytes, 0, mSize);
+                mBytes = bytes;
+            }
+        }
+
+        byte[] toByteArray() {
+            if (mSize == mBytes.length) {
+                return mBytes;
+            }
+            byte[] bytes = new byte[mSize];
+            System.arraycopy(mBytes, 0, bytes, 0, mSize);
+            return bytes;
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] mBytes;
+        private int mPosition;
+
+        Reader(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        int readByte() {
+            if (mPosition >= mBytes.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            return mBytes[mPosition++] & 0xff;
+        }
+
+        int readVarint() {
+            int result = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                result |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IndexOutOfBoundsException();
+        }
+
+        long readVarlong() {
+            long result = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IndexOutOfBoundsException();
+        }
+
+        int remaining() {
+            return mBytes.length - mPosition;
+        }
+
+        String readUtf8(int length) {
+            if (length > remaining()) {
+                throw new IndexOutOfBoundsException();
+            }
+            try {
+                String result = new String(mBytes, mPosition, length, "UTF-8");
+                mPosition += length;
+                return result;
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Removes idle requests from the registry and from persistence: requests that finished longer
+ * than ttl ago, and least recently used ones while the registry is over its size limit.
+ *
+ * Persisted requests, that were not restored yet, count against the size limit too, and are
+ * evicted first, since they were not used by this process.
+ *
+ * Running requests are never evicted. An evicted request object stays usable, it is registered
+ * again when it is run.
+ */
+final class RequestEvictor {
+    static final int DEFAULT_MAX_REQUESTS = 100;
+    static final long DEFAULT_FINISHED_TTL_MS = 24 * 60 * 60 * 1000;
+
+    /**
+     * Minimal interval between ttl passes, while the registry is within its size limit.
+     */
+    static final long PASS_INTERVAL_MS = 60 * 1000;
+
+    private static final Comparator<Request> LEAST_RECENTLY_USED = new Comparator<Request>() {
+        @Override
+        public int compare(Request lhs, Request rhs) {
+            long lhsUsedAt = lhs.getLastUsedAt();
+            long rhsUsedAt = rhs.getLastUsedAt();
+            return lhsUsedAt < rhsUsedAt ? -1 : (lhsUsedAt == rhsUsedAt ? 0 : 1);
+        }
+    };
+
+    interface UnrestoredRequests {
+        int count();
+
+        /**
+         * @return codes of up to the given number of persisted requests, that were not restored;
+         * they are not restored afterwards
+         */
+        int[] take(int max);
+    }
+
+    private final RequestRegistry mRegistry;
+    private final RequestStore mStore;
+    private final UnrestoredRequests mUnrestored;
+
+    private volatile int mMaxRequests = DEFAULT_MAX_REQUESTS;
+    private volatile long mFinishedTtl = DEFAULT_FINISHED_TTL_MS;
+
+    private long mLastPassAt = -PASS_INTERVAL_MS;
+
+    RequestEvictor(RequestRegistry registry, RequestStore store, UnrestoredRequests unrestored) {
+        mRegistry = registry;
+        mStore = store;
+        mUnrestored = unrestored;
+    }
+
+    /**
+     * @param maxRequests 0 disables the size limit
+     */
+    void setMaxRequests(int maxRequests) {
+        mMaxRequests = maxRequests;
+    }
+
+    /**
+     * @param ttl 0 disables eviction by time since finish
+     */
+    void setFinishedTtl(long ttl) {
+        mFinishedTtl = ttl;
+    }
+
+    /**
+     * Runs an eviction pass if the registry is over its size limit or the last pass was long enough ago.
+     *
+     * @return number of evicted requests
+     */
+    int evictIfNeeded(long now) {
+        int maxRequests = mMaxRequests;
+        boolean overLimit = maxRequests > 0 && mRegistry.size() + mUnrestored.count() > maxRequests;
+
+        synchronized (this) {
+            if (!overLimit && (mFinishedTtl <= 0 || now - mLastPassAt < PASS_INTERVAL_MS)) {
+                return 0;
+            }
+            mLastPassAt = now;
+        }
+
+        return evict(now);
+    }
+
+    /**
+     * @return number of evicted requests
+     */
+    synchronized int evict(long now) {
+        long ttl = mFinishedTtl;
+        int maxRequests = mMaxRequests;
+        List<Request> requests = mRegistry.values();
+        int size = requests.size() + mUnrestored.count();
+        int evicted = 0;
+
+        List<Request> idle = new ArrayList<>();
+        for (Request request : requests) {
+            if (request.isRunning()) {
+                continue;
+            }
+
+            long finishedAt = request.getFinishedAt();
+            if (ttl > 0 && finishedAt >= 0 && now - finishedAt >= ttl) {
+                if (remove(request)) {
+                    evicted++;
+                    size--;
+                }
+            } else {
+                idle.add(request);
+            }
+        }
+
+        if (maxRequests > 0 && size > maxRequests) {
+            for (int requestCode : mUnrestored.take(size - maxRequests)) {
+                mStore.markRemoved(requestCode);
+                evicted++;
+                size--;
+            }
+        }
+
+        if (maxRequests > 0 && size > maxRequests) {
+            Collections.sort(idle, LEAST_RECENTLY_USED);
+            for (int i = 0; i < idle.size() && size > maxRequests; i++) {
+                if (remove(idle.get(i))) {
+                    evicted++;
+                    size--;
+                }
+            }
+        }
+
+        return evicted;
+    }
+
+    private boolean remove(Request request) {
+        synchronized (mRegistry.lockFor(request.requestCode)) {
+            if (request.isRunning() || mRegistry.get(request.requestCode) != request) {
+                return false;
+            }
+
+            mRegistry.remove(request.requestCode);
+            mStore.markRemoved(request.requestCode);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,892 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.os.Process;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of request changes, so the latest state of every request survives process
+ * death between write-behind flushes of {@link RequestStore}.
+ *
+ * Record layout: type byte, change time, id of the process that made the change, request code,
+ * payload length, payload and CRC32 of the preceding bytes, so a record torn by process death is
+ * detected, and cut off on replay. Records are written in batches with a single fsync, at most
+ * {@link #SYNC_DELAY_MS} after the change. The journal is rewritten with the latest record per
+ * request once it grows past {@link #COMPACT_THRESHOLD} records; removals are dropped then,
+ * unless the removed request can still be read from the {@link Fallback}.
+ *
+ * A multi-process journal is shared by all processes of the app. Changes are written by the same
+ * batched sync, under an exclusive file lock, after reading records appended by other processes
+ * since the last access, so the file order is the order of batches across processes, and a change
+ * that is not written yet takes precedence over changes read meanwhile. The lock file is mapped to
+ * memory and holds a generation counter, that compaction bumps, and the journal length as of the
+ * last write, so accesses skip file I/O unless another process changed the journal. A request is
+ * started right away under the file lock, along with pending changes, unless the journal shows it
+ * running in another process, that is still alive.
+ */
+final class RequestJournal {
+    private static final String TAG = RequestJournal.class.getSimpleName();
+
+    static final String FILE_NAME = "com.tarasantoshchuk.permissionsmanager.journal";
+
+    static final long SYNC_DELAY_MS = 20;
+    static final int COMPACT_THRESHOLD = 1024;
+
+    private static final int TYPE_PUT = 1;
+    private static final int TYPE_REMOVE = 2;
+
+    /**
+     * Type, time, process id, request code and payload length.
+     */
+    private static final int HEADER_SIZE = 1 + 8 + 4 + 4 + 4;
+    private static final int MAX_PAYLOAD_SIZE = 64 * 1024;
+
+    /**
+     * Generation and journal length, at the start of the lock file.
+     */
+    private static final int SHARED_STATE_SIZE = 4 + 8;
+    private static final int SHARED_LENGTH_OFFSET = 4;
+
+    private final File mFile;
+    private final ScheduledExecutorService mExecutor;
+
+    private final boolean mMultiProcess;
+    private final File mLockFile;
+    private final Processes mProcesses;
+    private final Fallback mFallback;
+
+    /**
+     * Latest change by request code, including ones that are not synced yet.
+     */
+    private final HashMap<Integer, Entry> mLatest = new HashMap<>();
+
+    private ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    private int mPendingCount;
+    private boolean mSyncScheduled;
+
+    /**
+     * Codes of requests with pending records in multi-process mode, and changes of them by other
+     * processes, that the pending records will follow in the journal.
+     */
+    private HashSet<Integer> mPendingCodes = new HashSet<>();
+    private final HashMap<Integer, Entry> mShadowed = new HashMap<>();
+
+    /**
+     * Guarded by {@link #mFileLock}.
+     */
+    private boolean mReplayed;
+    private int mRecordCount;
+
+    /**
+     * Length of the journal read so far, and its generation, in multi-process mode.
+     */
+    private long mOffset;
+    private int mGeneration;
+    private final Object mFileLock;
+
+    /**
+     * File locks are held on behalf of the whole process, so multi-process journals of one process
+     * take turns on a single monitor, rather than fail to lock a file locked by another one.
+     */
+    private static final Object SHARED_FILE_LOCK = new Object();
+
+    /**
+     * Lock file of a multi-process journal, open for the lifetime of the process, and its
+     * {@link #SHARED_STATE_SIZE} bytes mapped to memory. Guarded by {@link #mFileLock}.
+     */
+    private FileChannel mLockChannel;
+    private MappedByteBuffer mSharedState;
+
+    /**
+     * Whether records were written to a multi-process journal without fsync.
+     */
+    private boolean mUnsynced;
+
+    private final Runnable mSyncTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (RequestJournal.this) {
+                mSyncScheduled = false;
+            }
+            sync();
+        }
+    };
+
+    RequestJournal(File file, ScheduledExecutorService executor) {
+        this(file, executor, false);
+    }
+
+    RequestJournal(File file, ScheduledExecutorService executor, boolean multiProcess) {
+        this(file, executor, multiProcess, PLATFORM_PROCESSES, KEEP_REMOVALS);
+    }
+
+    RequestJournal(File file, ScheduledExecutorService executor, boolean multiProcess, Processes processes, Fallback fallback) {
+        mFile = file;
+        mExecutor = executor;
+        mMultiProcess = multiProcess;
+        mFileLock = multiProcess ? SHARED_FILE_LOCK : new Object();
+        mLockFile = new File(file.getPath() + ".lock");
+        mProcesses = processes;
+        mFallback = fallback;
+    }
+
+    /**
+     * Storage, that reads fall back to for requests without journal records.
+     */
+    interface Fallback {
+        /**
+         * @return true if the request may still be read from the fallback, so its removal has to
+         * stay in the journal
+         */
+        boolean contains(int requestCode);
+    }
+
+    private static final Fallback KEEP_REMOVALS = new Fallback() {
+        @Override
+        public boolean contains(int requestCode) {
+            return true;
+        }
+    };
+
+    /**
+     * Tells which process made a change, and whether it is still running.
+     */
+    interface Processes {
+        int myPid();
+
+        /**
+         * @return false only if the process is known to be dead
+         */
+        boolean isAlive(int pid);
+    }
+
+    /**
+     * A process is alive while a process of this app runs with its id, which tells it apart
+     * from an unrelated process, that reused the id.
+     */
+    static final Processes PLATFORM_PROCESSES = new Processes() {
+        @Override
+        public int myPid() {
+            return Process.myPid();
+        }
+
+        @Override
+        public boolean isAlive(int pid) {
+            String name = readProcessName(String.valueOf(pid));
+            if (name == null) {
+                return false;
+            }
+
+            String ownName = readProcessName("self");
+            return ownName == null || packageOf(name).equals(packageOf(ownName));
+        }
+
+        /**
+         * @return name the process was started with, or null if there is no such process
+         */
+        private String readProcessName(String pid) {
+            FileReader reader = null;
+            try {
+                reader = new FileReader("/proc/" + pid + "/cmdline");
+                StringBuilder name = new StringBuilder();
+                int c;
+                while ((c = reader.read()) > 0) {
+                    name.append((char) c);
+                }
+                return name.toString();
+            } catch (IOException e) {
+                return null;
+            } finally {
+                close(reader);
+            }
+        }
+
+        /**
+         * @return process name without the suffix of a secondary process, e.g. ":sync"
+         */
+        private String packageOf(String processName) {
+            int separator = processName.indexOf(':');
+            return separator < 0 ? processName : processName.substring(0, separator);
+        }
+    };
+
+    static final class Entry {
+        final long time;
+
+        /**
+         * Id of the process, that made the change.
+         */
+        final int pid;
+
+        /**
+         * Encoded request, null if the request was removed.
+         */
+        final byte[] request;
+
+        /**
+         * Whether the change was made by another process, or before this process started.
+         */
+        final boolean foreign;
+
+        Entry(long time, int pid, byte[] request, boolean foreign) {
+            this.time = time;
+            this.pid = pid;
+            this.request = request;
+            this.foreign = foreign;
+        }
+
+        boolean isSameChange(Entry other) {
+            return other != null && time == other.time && Arrays.equals(request, other.request);
+        }
+    }
+
+    private static void traceFailure(final String operation, final IOException e) {
+        if (Trace.isEnabled(Trace.LEVEL_WARN)) {
+            Trace.message(Trace.LEVEL_WARN, TAG, new Trace.Message() {
+                @Override
+                public String get() {
+                    return operation + " failed, " + e;
+                }
+            });
+        }
+    }
+
+    void appendPut(Request request) {
+        append(TYPE_PUT, request.requestCode, RequestCodec.encodeBytes(request, null));
+    }
+
+    void appendRemove(int requestCode) {
+        append(TYPE_REMOVE, requestCode, null);
+    }
+
+    /**
+     * Appends the change of a request, that was just moved to {@link Request#STATE_STARTED},
+     * unless the request is running in another process.
+     *
+     * @return false if another process, that is still alive, started the request and didn't
+     * finish it
+     */
+    boolean appendStart(Request request) {
+        byte[] payload = RequestCodec.encodeBytes(request, null);
+        long time = System.currentTimeMillis();
+
+        if (mMultiProcess) {
+            return appendStartShared(time, request.requestCode, payload);
+        }
+
+        appendPending(TYPE_PUT, time, request.requestCode, payload);
+        return true;
+    }
+
+    private void append(int type, int requestCode, byte[] payload) {
+        appendPending(type, System.currentTimeMillis(), requestCode, payload);
+    }
+
+    private void appendPending(int type, long time, int requestCode, byte[] payload) {
+        int pid = mProcesses.myPid();
+        synchronized (this) {
+            writeRecord(mPending, type, time, pid, requestCode, payload);
+            mPendingCount++;
+            mLatest.put(requestCode, new Entry(time, pid, payload, false));
+            if (mMultiProcess) {
+                mPendingCodes.add(requestCode);
+            }
+        }
+
+        scheduleSync();
+    }
+
+    /**
+     * Writes the record right away, after pending ones, so other processes see the request
+     * running on their next access; fsync is left to the next sync.
+     *
+     * @return false if the record was skipped, since the latest change of the request is
+     * a running state set by another process, that is still alive
+     */
+    private boolean appendStartShared(long time, int requestCode, byte[] payload) {
+        synchronized (mFileLock) {
+            FileLock lock = null;
+            try {
+                try {
+                    lock = lockShared();
+                    readTail();
+                } catch (IOException e) {
+                    traceFailure("append", e);
+                }
+
+                if (lock != null && isRunningElsewhere(requestCode)) {
+                    return false;
+                }
+
+                appendPending(TYPE_PUT, time, requestCode, payload);
+                if (lock != null) {
+                    writePending(false);
+                }
+                return true;
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    private boolean isRunningElsewhere(int requestCode) {
+        Entry latest;
+        Entry shadowed;
+        synchronized (this) {
+            latest = mLatest.get(requestCode);
+            shadowed = mShadowed.get(requestCode);
+        }
+
+        return isRunningElsewhere(latest) || isRunningElsewhere(shadowed);
+    }
+
+    private boolean isRunningElsewhere(Entry entry) {
+        if (entry == null || entry.request == null || !isOwnerAlive(entry)) {
+            return false;
+        }
+
+        int state = RequestCodec.decodeStateBytes(entry.request);
+        return state >= Request.STATE_STARTED && state != Request.STATE_FINISHED;
+    }
+
+    /**
+     * @return true if the change was made by another process of a multi-process journal, that is
+     * still alive; changes recorded with the id of this process were made by an earlier one
+     */
+    boolean isOwnerAlive(Entry entry) {
+        return mMultiProcess && entry.foreign && entry.pid != mProcesses.myPid() && mProcesses.isAlive(entry.pid);
+    }
+
+    private void scheduleSync() {
+        synchronized (this) {
+            if (mSyncScheduled) {
+                return;
+            }
+            mSyncScheduled = true;
+        }
+
+        mExecutor.schedule(mSyncTask, SYNC_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules pending records to be synced right away.
+     */
+    void requestSync() {
+        mExecutor.execute(mSyncTask);
+    }
+
+    /**
+     * Writes and fsyncs pending records. Blocks on file I/O. Records, that fail to be written,
+     * are kept for the next sync.
+     */
+    void sync() {
+        if (mMultiProcess) {
+            syncShared();
+            return;
+        }
+
+        synchronized (mFileLock) {
+            replay();
+
+            Batch batch = takePending();
+            if (batch == null) {
+                return;
+            }
+
+            long length = mFile.length();
+            try {
+                write(batch.bytes, true, true);
+            } catch (IOException e) {
+                traceFailure("sync", e);
+                restorePending(batch, length);
+                return;
+            }
+            mRecordCount += batch.count;
+
+            try {
+                if (mRecordCount > COMPACT_THRESHOLD) {
+                    compact();
+                }
+            } catch (IOException e) {
+                traceFailure("compact", e);
+            }
+        }
+    }
+
+    /**
+     * Pending records taken to be written.
+     */
+    private static final class Batch {
+        final byte[] bytes;
+        final int count;
+        final HashSet<Integer> requestCodes;
+
+        Batch(byte[] bytes, int count, HashSet<Integer> requestCodes) {
+            this.bytes = bytes;
+            this.count = count;
+            this.requestCodes = requestCodes;
+        }
+    }
+
+    /**
+     * @return pending records, or null if there are none
+     */
+    private synchronized Batch takePending() {
+        if (mPendingCount == 0) {
+            return null;
+        }
+
+        Batch batch = new Batch(mPending.toByteArray(), mPendingCount, mPendingCodes);
+        mPending = new ByteArrayOutputStream();
+        mPendingCount = 0;
+        mPendingCodes = new HashSet<>();
+        return batch;
+    }
+
+    /**
+     * Puts records, that failed to be written, back ahead of records appended meanwhile, and cuts
+     * off whatever part of them was written, so the next sync doesn't append after a torn record.
+     */
+    private void restorePending(Batch batch, long length) {
+        cutTornTail(length);
+
+        synchronized (this) {
+            ByteArrayOutputStream pending = new ByteArrayOutputStream(batch.bytes.length + mPending.size());
+            pending.write(batch.bytes, 0, batch.bytes.length);
+            try {
+                mPending.writeTo(pending);
+            } catch (IOException e) {
+                throw new RuntimeException("unexpected", e);
+            }
+            mPending = pending;
+            mPendingCount += batch.count;
+            mPendingCodes.addAll(batch.requestCodes);
+        }
+    }
+
+    /**
+     * Writes pending records of a multi-process journal in a single append, and fsyncs the
+     * journal once for them and for start records written since the last sync.
+     */
+    private void syncShared() {
+        synchronized (mFileLock) {
+            FileLock lock = null;
+            try {
+                lock = lockShared();
+                readTail();
+
+                if (!writePending(true) && mUnsynced) {
+                    RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+                    try {
+                        file.getFD().sync();
+                    } finally {
+                        close(file);
+                    }
+                    mUnsynced = false;
+                }
+
+                if (mRecordCount > COMPACT_THRESHOLD) {
+                    compact();
+                    mSharedState.putInt(0, ++mGeneration);
+                    mOffset = mFile.length();
+                    mSharedState.putLong(SHARED_LENGTH_OFFSET, mOffset);
+                }
+            } catch (IOException e) {
+                traceFailure("sync", e);
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    /**
+     * Appends pending records to a multi-process journal. Must hold the file lock, with the tail
+     * read.
+     *
+     * @return true if records were written
+     */
+    private boolean writePending(boolean fsync) {
+        Batch batch = takePending();
+        if (batch == null) {
+            return false;
+        }
+
+        try {
+            write(batch.bytes, true, fsync);
+        } catch (IOException e) {
+            traceFailure("sync", e);
+            restorePending(batch, mOffset);
+            return false;
+        }
+        mOffset += batch.bytes.length;
+        mRecordCount += batch.count;
+        mUnsynced = !fsync;
+        mSharedState.putLong(SHARED_LENGTH_OFFSET, mOffset);
+
+        synchronized (this) {
+            //the records follow changes, that other processes made meanwhile
+            mShadowed.keySet().removeAll(batch.requestCodes);
+        }
+        return true;
+    }
+
+    /**
+     * Opens and maps the lock file once.
+     */
+    private void openSharedState() throws IOException {
+        if (mSharedState != null) {
+            return;
+        }
+
+        RandomAccessFile lockFile = new RandomAccessFile(mLockFile, "rw");
+        try {
+            FileChannel channel = lockFile.getChannel();
+            mSharedState = channel.map(FileChannel.MapMode.READ_WRITE, 0, SHARED_STATE_SIZE);
+            mLockChannel = channel;
+        } catch (IOException e) {
+            close(lockFile);
+            throw e;
+        }
+    }
+
+    private FileLock lockShared() throws IOException {
+        openSharedState();
+        return mLockChannel.lock();
+    }
+
+    /**
+     * @return latest change of the request, or null if the journal has none
+     */
+    Entry get(int requestCode) {
+        catchUp();
+        synchronized (this) {
+            return mLatest.get(requestCode);
+        }
+    }
+
+    /**
+     * Adds codes of requests, that exist according to the journal, to the set, and removes codes
+     * of removed ones.
+     */
+    void applyIndex(Set<Integer> requestCodes) {
+        catchUp();
+        synchronized (this) {
+            for (Map.Entry<Integer, Entry> entry : mLatest.entrySet()) {
+                if (entry.getValue().request != null) {
+                    requestCodes.add(entry.getKey());
+                } else {
+                    requestCodes.remove(entry.getKey());
+                }
+            }
+        }
+    }
+
+    private void catchUp() {
+        synchronized (mFileLock) {
+            if (!mMultiProcess) {
+                replay();
+                return;
+            }
+
+            //most accesses find nothing new, which is checked without the file lock
+            if (mReplayed && !isChangedElsewhere()) {
+                return;
+            }
+
+            FileLock lock = null;
+            try {
+                lock = lockShared();
+                readTail();
+            } catch (IOException e) {
+                traceFailure("read", e);
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    /**
+     * Reads the journal once, cutting off a torn tail, so new records are appended after
+     * the last valid one. Changes made in this process before replay take precedence.
+     */
+    private void replay() {
+        if (mReplayed) {
+            return;
+        }
+        mReplayed = true;
+
+        if (!mFile.exists()) {
+            return;
+        }
+
+        HashMap<Integer, Entry> replayed = new HashMap<>();
+        mRecordCount = 0;
+        cutTornTail(readRecords(0, replayed));
+
+        synchronized (this) {
+            for (Map.Entry<Integer, Entry> entry : replayed.entrySet()) {
+                if (!mLatest.containsKey(entry.getKey())) {
+                    mLatest.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads records appended by other processes since the last access, or the whole journal if
+     * it was compacted meanwhile, and publishes the length read. Must hold the file lock.
+     */
+    private void readTail() {
+        int generation = mSharedState.getInt(0);
+        long length = mFile.length();
+        if (generation != mGeneration || length < mOffset || !mReplayed) {
+            mGeneration = generation;
+            mOffset = 0;
+            mRecordCount = 0;
+        }
+        mReplayed = true;
+
+        if (length != mOffset) {
+            HashMap<Integer, Entry> read = new HashMap<>();
+            long validLength = readRecords(mOffset, read);
+            cutTornTail(validLength);
+            mOffset = validLength;
+
+            synchronized (this) {
+                for (Map.Entry<Integer, Entry> entry : read.entrySet()) {
+                    if (mPendingCodes.contains(entry.getKey())) {
+                        mShadowed.put(entry.getKey(), entry.getValue());
+                        continue;
+                    }
+
+                    Entry latest = mLatest.get(entry.getKey());
+                    // a journal compacted by another process includes own changes too
+                    if (!entry.getValue().isSameChange(latest)) {
+                        mLatest.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+
+        // the length is left behind by a process, that died between writing and publishing it
+        mSharedState.putLong(SHARED_LENGTH_OFFSET, mOffset);
+    }
+
+    /**
+     * @return true if another process may have changed the journal since the last access; checked
+     * in the mapped lock file without the file lock, so a change being made at the moment may be
+     * seen on the next access
+     */
+    private boolean isChangedElsewhere() {
+        try {
+            openSharedState();
+        } catch (IOException e) {
+            return true;
+        }
+
+        return mSharedState.getInt(0) != mGeneration || mSharedState.getLong(SHARED_LENGTH_OFFSET) != mOffset;
+    }
+
+    /**
+     * Reads valid records starting at the offset, which are all considered foreign, and counts them.
+     *
+     * @return offset after the last valid record
+     */
+    private long readRecords(long offset, HashMap<Integer, Entry> into) {
+        long validLength = offset;
+
+        DataInputStream input = null;
+        try {
+            FileInputStream file = new FileInputStream(mFile);
+            input = new DataInputStream(file);
+            file.getChannel().position(offset);
+            while (true) {
+                byte[] header = new byte[HEADER_SIZE];
+                input.readFully(header);
+                DataInputStream headerInput = new DataInputStream(new ByteArrayInputStream(header));
+                int type = headerInput.readByte();
+                long time = headerInput.readLong();
+                int pid = headerInput.readInt();
+                int requestCode = headerInput.readInt();
+                int length = headerInput.readInt();
+
+                if ((type != TYPE_PUT && type != TYPE_REMOVE) || length < 0 || length > MAX_PAYLOAD_SIZE) {
+                    break;
+                }
+
+                byte[] payload = new byte[length];
+                input.readFully(payload);
+
+                CRC32 crc = new CRC32();
+                crc.update(header);
+                crc.update(payload);
+                if ((int) crc.getValue() != input.readInt()) {
+                    break;
+                }
+
+                into.put(requestCode, new Entry(time, pid, type == TYPE_PUT ? payload : null, true));
+                validLength += HEADER_SIZE + length + 4;
+                mRecordCount++;
+            }
+        } catch (EOFException e) {
+            // torn or complete tail
+        } catch (IOException e) {
+            traceFailure("replay", e);
+        } finally {
+            close(input);
+        }
+
+        return validLength;
+    }
+
+    private void cutTornTail(long validLength) {
+        try {
+            if (validLength < mFile.length()) {
+                truncate(validLength);
+            }
+        } catch (IOException e) {
+            traceFailure("truncate", e);
+        }
+    }
+
+    /**
+     * Rewrites the journal with the latest record per request; records pending at this point
+     * are already included in it. Removals of requests, that the fallback doesn't have, are
+     * dropped, so the journal doesn't grow with every request ever removed.
+     */
+    private void compact() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int count = 0;
+        Batch pending;
+        synchronized (this) {
+            Iterator<Map.Entry<Integer, Entry>> iterator = mLatest.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Integer, Entry> entry = iterator.next();
+                Entry value = entry.getValue();
+                if (value.request == null && !mFallback.contains(entry.getKey())) {
+                    iterator.remove();
+                    continue;
+                }
+                writeRecord(bytes, value.request == null ? TYPE_REMOVE : TYPE_PUT, value.time, value.pid, entry.getKey(), value.request);
+                count++;
+            }
+
+            // pending records are covered by the snapshot above, and follow any shadowed change
+            pending = takePending();
+            mShadowed.clear();
+        }
+
+        try {
+            File compacted = new File(mFile.getPath() + ".tmp");
+            FileOutputStream output = new FileOutputStream(compacted);
+            try {
+                output.write(bytes.toByteArray());
+                output.getFD().sync();
+            } finally {
+                close(output);
+            }
+
+            if (!compacted.renameTo(mFile)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException e) {
+            if (pending != null) {
+                restorePending(pending, mFile.length());
+            }
+            throw e;
+        }
+        mRecordCount = count;
+    }
+
+    private void write(byte[] bytes, boolean append, boolean fsync) throws IOException {
+        FileOutputStream output = new FileOutputStream(mFile, append);
+        try {
+            output.write(bytes);
+            if (fsync) {
+                output.getFD().sync();
+            }
+        } finally {
+            close(output);
+        }
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(length);
+            file.getFD().sync();
+        } finally {
+            close(file);
+        }
+    }
+
+    private static void writeRecord(ByteArrayOutputStream bytes, int type, long time, int pid, int requestCode, byte[] payload) {
+        int length = payload == null ? 0 : payload.length;
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(HEADER_SIZE + length + 4);
+        DataOutputStream output = new DataOutputStream(record);
+        try {
+            output.writeByte(type);
+            output.writeLong(time);
+            output.writeInt(pid);
+            output.writeInt(requestCode);
+            output.writeInt(length);
+            if (payload != null) {
+                output.write(payload);
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(record.toByteArray());
+            output.writeInt((int) crc.getValue());
+
+            record.writeTo(bytes);
+        } catch (IOException e) {
+            throw new RuntimeException("unexpected", e);
+        }
+    }
+
+    private static void release(FileLock lock) {
+        if (lock == null) {
+            return;
+        }
+        try {
+            lock.release();
+        } catch (IOException e) {
+            // released when the file is closed
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import java.util.List;
+
+/**
+ * Registry of requests by request code. Implementations are thread-safe.
+ */
+interface RequestRegistry {
+    Request get(int requestCode);
+
+    void put(Request request);
+
+    Request remove(int requestCode);
+
+    int size();
+
+    /**
+     * @return snapshot of registered requests
+     */
+    List<Request> values();
+
+    /**
+     * @return monitor, that serializes compound operations on the given request code
+     */
+    Object lockFor(int requestCode);
+}
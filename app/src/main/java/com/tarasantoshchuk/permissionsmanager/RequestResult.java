@@ -0,0 +1,72 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+/**
+ * Immutable outcome of a finished request.
+ */
+public final class RequestResult {
+    private final int mRequestCode;
+
+    @Request.Result
+    private final int mResult;
+
+    private final String[] mPermissions;
+    private final int[] mPermissionResults;
+    private final boolean mInterrupted;
+
+    RequestResult(int requestCode, @Request.Result int result, String[] permissions, int[] permissionResults) {
+        this(requestCode, result, permissions, permissionResults, false);
+    }
+
+    RequestResult(int requestCode, @Request.Result int result, String[] permissions, int[] permissionResults, boolean interrupted) {
+        mRequestCode = requestCode;
+        mResult = result;
+        mPermissions = permissions;
+        mPermissionResults = permissionResults;
+        mInterrupted = interrupted;
+    }
+
+    public int getRequestCode() {
+        return mRequestCode;
+    }
+
+    @Request.Result
+    public int getResult() {
+        return mResult;
+    }
+
+    public int getPermissionCount() {
+        return mPermissions.length;
+    }
+
+    public String getPermission(int index) {
+        return mPermissions[index];
+    }
+
+    @Request.Result
+    @SuppressWarnings("WrongConstant")
+    public int getPermissionResult(int index) {
+        return mPermissionResults[index];
+    }
+
+    public boolean isGranted() {
+        return mResult == Request.RESULT_GRANTED;
+    }
+
+    /**
+     * @return true if the run ended without permissions results, e.g. it was reset or timed out,
+     * or finished in another process; the request and its permissions are then denied
+     */
+    public boolean isInterrupted() {
+        return mInterrupted;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestResult{" +
+                "requestCode=" + mRequestCode +
+                ", result=" + mResult +
+                ", permissions=" + mPermissions.length +
+                ", interrupted=" + mInterrupted +
+                '}';
+    }
+}
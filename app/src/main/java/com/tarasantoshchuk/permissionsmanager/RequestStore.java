@@ -0,0 +1,491 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.annotation.TargetApi;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind persistence for requests.
+ *
+ * Every request is kept under its own preferences key, so only requests that changed since the
+ * last flush are serialized. Changes are coalesced and flushed on a background thread after
+ * {@link #FLUSH_DELAY_MS}; {@link #flush()} writes pending changes immediately.
+ *
+ * With a {@link RequestJournal}, every change is also journaled, and reads prefer the journal,
+ * which is ahead of preferences until the next flush.
+ *
+ * In multi-process mode the journal is shared by all processes of the app and is the only place
+ * changes are written to, since preferences don't support concurrent writers; preferences are
+ * only read, for requests persisted before.
+ */
+final class RequestStore {
+    private static final String TAG = RequestStore.class.getSimpleName();
+
+    static final String PREFS_KEY_REQUEST_PREFIX = "PREFS_KEY_REQUEST_CODE_";
+    static final String PREFS_KEY_LEGACY_REQUEST_JSONS = "PREFS_KEY_REQUEST_JSONS";
+    static final String PREFS_KEY_PERMISSION_DICTIONARY = "PREFS_KEY_PERMISSION_DICTIONARY";
+    /**
+     * Comma separated codes of requests persisted under {@link #PREFS_KEY_REQUEST_PREFIX} keys.
+     */
+    static final String PREFS_KEY_REQUEST_INDEX = "PREFS_KEY_REQUEST_INDEX";
+
+    static final long FLUSH_DELAY_MS = 100;
+
+    private final SharedPreferences mPrefs;
+    private final ScheduledExecutorService mExecutor;
+    private final RequestJournal mJournal;
+    private final boolean mMultiProcess;
+
+    /**
+     * Requests changed since the last flush, by request code; null value means removal.
+     */
+    private final LinkedHashMap<Integer, Request> mDirty = new LinkedHashMap<>();
+    private boolean mFlushScheduled;
+
+    /**
+     * Loaded on first use, see {@link #dictionary()}.
+     */
+    private PermissionDictionary mDictionary;
+
+    /**
+     * Loaded on first use, see {@link #index()}.
+     */
+    private Set<Integer> mIndex;
+
+    private volatile PermissionsMetrics mMetrics = PermissionsMetrics.NO_OP;
+
+    /**
+     * Serializes background and foreground writes, so an older snapshot never overwrites a newer one.
+     */
+    private final Object mWriteLock = new Object();
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mDirty) {
+                mFlushScheduled = false;
+            }
+            write(true);
+        }
+    };
+
+    RequestStore(SharedPreferences prefs) {
+        this(prefs, null, false);
+    }
+
+    /**
+     * @param journalFile file for {@link RequestJournal}, or null to rely on preferences only
+     * @param multiProcess whether the journal is shared with other processes, requires a journal file
+     */
+    RequestStore(SharedPreferences prefs, File journalFile, boolean multiProcess) {
+        this(prefs, journalFile, multiProcess, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    RequestStore(SharedPreferences prefs, File journalFile, boolean multiProcess, ScheduledExecutorService executor) {
+        this(prefs, journalFile, multiProcess, executor, RequestJournal.PLATFORM_PROCESSES);
+    }
+
+    RequestStore(SharedPreferences prefs, File journalFile, boolean multiProcess, ScheduledExecutorService executor, RequestJournal.Processes processes) {
+        if (multiProcess && journalFile == null) {
+            throw new IllegalArgumentException("multi-process store requires a journal file");
+        }
+
+        mPrefs = prefs;
+        mExecutor = executor;
+        mMultiProcess = multiProcess;
+        mJournal = journalFile == null ? null : new RequestJournal(journalFile, executor, multiProcess, processes, new RequestJournal.Fallback() {
+            @Override
+            public boolean contains(int requestCode) {
+                return isInPreferences(requestCode);
+            }
+        });
+    }
+
+    /**
+     * @return true if the request is in preferences, or its removal is not written there yet
+     */
+    private boolean isInPreferences(int requestCode) {
+        synchronized (mDirty) {
+            if (mDirty.containsKey(requestCode)) {
+                return true;
+            }
+        }
+        return mPrefs.contains(key(requestCode));
+    }
+
+    void setMetrics(PermissionsMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    static String key(int requestCode) {
+        return PREFS_KEY_REQUEST_PREFIX + requestCode;
+    }
+
+    private synchronized PermissionDictionary dictionary() {
+        if (mDictionary == null) {
+            mDictionary = PermissionDictionary.parse(mPrefs.getString(PREFS_KEY_PERMISSION_DICTIONARY, null));
+        }
+        return mDictionary;
+    }
+
+    /**
+     * Adds dictionary entries created by encoding to the same edit, as requests referring to them.
+     */
+    private void putDictionary(SharedPreferences.Editor editor) {
+        PermissionDictionary dictionary = dictionary();
+        if (dictionary.hasUnpersistedEntries()) {
+            editor.putString(PREFS_KEY_PERMISSION_DICTIONARY, dictionary.serialize());
+        }
+    }
+
+    /**
+     * Reads request codes of all persisted requests without decoding them, migrating the legacy
+     * single-set format first if it is present.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    Set<Integer> readIndex() {
+        Set<String> legacyJsons = mPrefs.getStringSet(PREFS_KEY_LEGACY_REQUEST_JSONS, null);
+        if (legacyJsons != null) {
+            migrateLegacy(legacyJsons);
+        }
+
+        Set<Integer> result;
+        synchronized (mWriteLock) {
+            result = new HashSet<>(index());
+        }
+
+        if (mJournal != null) {
+            mJournal.applyIndex(result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Must be called with {@link #mWriteLock} held.
+     */
+    private Set<Integer> index() {
+        if (mIndex == null) {
+            String value = mPrefs.getString(PREFS_KEY_REQUEST_INDEX, null);
+            if (value != null) {
+                mIndex = parseIndex(value);
+            } else {
+                mIndex = scanIndex();
+                if (!mMultiProcess) {
+                    mPrefs.edit().putString(PREFS_KEY_REQUEST_INDEX, serializeIndex(mIndex)).apply();
+                }
+            }
+        }
+        return mIndex;
+    }
+
+    private static Set<Integer> parseIndex(String value) {
+        Set<Integer> index = new HashSet<>();
+        int start = 0;
+        while (start < value.length()) {
+            int end = value.indexOf(',', start);
+            if (end < 0) {
+                end = value.length();
+            }
+            try {
+                index.add(Integer.parseInt(value.substring(start, end)));
+            } catch (NumberFormatException e) {
+                traceUnexpectedKey(value.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return index;
+    }
+
+    private static String serializeIndex(Set<Integer> index) {
+        StringBuilder value = new StringBuilder();
+        for (int requestCode : index) {
+            if (value.length() > 0) {
+                value.append(',');
+            }
+            value.append(requestCode);
+        }
+        return value.toString();
+    }
+
+    /**
+     * Builds the index from preferences keys, for requests persisted before the index key was.
+     */
+    private Set<Integer> scanIndex() {
+        Set<Integer> index = new HashSet<>();
+        for (String key : mPrefs.getAll().keySet()) {
+            if (key.startsWith(PREFS_KEY_REQUEST_PREFIX)) {
+                try {
+                    index.add(Integer.parseInt(key.substring(PREFS_KEY_REQUEST_PREFIX.length())));
+                } catch (NumberFormatException e) {
+                    traceUnexpectedKey(key);
+                }
+            }
+        }
+        return index;
+    }
+
+    private static void traceUnexpectedKey(final String key) {
+        if (Trace.isEnabled(Trace.LEVEL_WARN)) {
+            Trace.message(Trace.LEVEL_WARN, TAG, new Trace.Message() {
+                @Override
+                public String get() {
+                    return "readIndex, unexpected entry " + key;
+                }
+            });
+        }
+    }
+
+    /**
+     * @return persisted request or null if there is none or it can't be decoded
+     */
+    Request read(int requestCode) {
+        RequestJournal.Entry entry = mJournal == null ? null : mJournal.get(requestCode);
+        if (entry != null) {
+            return entry.request == null ? null : RequestCodec.decodeBytes(entry.request, null);
+        }
+
+        String value = mPrefs.getString(key(requestCode), null);
+        return value == null ? null : decode(value);
+    }
+
+    /**
+     * @return time of the last change of the request according to {@link System#currentTimeMillis()},
+     * or -1 if it is unknown
+     */
+    long getChangeTime(int requestCode) {
+        RequestJournal.Entry entry = mJournal == null ? null : mJournal.get(requestCode);
+        return entry == null ? -1 : entry.time;
+    }
+
+    /**
+     * @return state of the request, if another process changed it last, or -1 otherwise
+     */
+    int readStateChangedElsewhere(int requestCode) {
+        if (!mMultiProcess) {
+            return -1;
+        }
+
+        RequestJournal.Entry entry = mJournal.get(requestCode);
+        if (entry == null || !entry.foreign || entry.request == null) {
+            return -1;
+        }
+
+        return RequestCodec.decodeStateBytes(entry.request);
+    }
+
+    /**
+     * @return true if another process, that is still alive, changed the request last, so it may
+     * still be running there
+     */
+    boolean isChangedByLiveProcess(int requestCode) {
+        if (!mMultiProcess) {
+            return false;
+        }
+
+        RequestJournal.Entry entry = mJournal.get(requestCode);
+        return entry != null && mJournal.isOwnerAlive(entry);
+    }
+
+    /**
+     * Reads all persisted requests. Entries in legacy JSON formats are decoded and scheduled
+     * for rewrite with {@link RequestCodec}.
+     */
+    List<Request> readAll() {
+        List<Request> result = new ArrayList<>();
+
+        for (int requestCode : readIndex()) {
+            Request request = read(requestCode);
+            if (request != null) {
+                result.add(request);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads all persisted requests on the background thread.
+     */
+    void readAllAsync(final ReadCallback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onRequestsRead(readAll());
+            }
+        });
+    }
+
+    interface ReadCallback {
+        void onRequestsRead(List<Request> requests);
+    }
+
+    private void migrateLegacy(Set<String> legacyJsons) {
+        Trace.event(Trace.LEVEL_INFO, TAG, Trace.EVENT_MIGRATE, 0, legacyJsons.size());
+
+        synchronized (mWriteLock) {
+            SharedPreferences.Editor editor = mPrefs.edit();
+            Set<Integer> index = index();
+            for (String json : legacyJsons) {
+                Request request = Request.fromJson(json);
+                if (request != null && !mPrefs.contains(key(request.requestCode))) {
+                    editor.putString(key(request.requestCode), RequestCodec.encode(request, dictionary()));
+                    index.add(request.requestCode);
+                }
+            }
+            putDictionary(editor);
+            editor.putString(PREFS_KEY_REQUEST_INDEX, serializeIndex(index));
+            editor.remove(PREFS_KEY_LEGACY_REQUEST_JSONS).apply();
+        }
+    }
+
+    private Request decode(String value) {
+        if (!RequestCodec.isLegacyJson(value)) {
+            return RequestCodec.decode(value, dictionary());
+        }
+
+        Request request = Request.fromJson(value);
+        if (request != null) {
+            markDirty(request);
+        }
+        return request;
+    }
+
+    void markDirty(Request request) {
+        if (mJournal != null) {
+            mJournal.appendPut(request);
+        }
+        if (!mMultiProcess) {
+            enqueue(request.requestCode, request);
+        }
+    }
+
+    /**
+     * Same as {@link #markDirty(Request)} for a request, that was just moved to
+     * {@link Request#STATE_STARTED}; in multi-process mode the change is made only if the request
+     * is not running in another process, atomically across processes.
+     *
+     * @return false if the request is running in another process
+     */
+    boolean markStarted(Request request) {
+        if (!mMultiProcess) {
+            markDirty(request);
+            return true;
+        }
+
+        return mJournal.appendStart(request);
+    }
+
+    void markRemoved(int requestCode) {
+        if (mJournal != null) {
+            mJournal.appendRemove(requestCode);
+        }
+        if (!mMultiProcess) {
+            enqueue(requestCode, null);
+        }
+    }
+
+    private void enqueue(int requestCode, Request request) {
+        synchronized (mDirty) {
+            mDirty.put(requestCode, request);
+
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mExecutor.schedule(mFlushTask, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Writes pending changes right away. Uses {@link SharedPreferences.Editor#apply()}, which
+     * updates the in-memory state synchronously and is awaited by the framework before the
+     * process is allowed to go to background, so calling it from onPause keeps state durable.
+     */
+    void flush() {
+        write(false);
+        if (mJournal != null) {
+            mJournal.requestSync();
+        }
+    }
+
+    /**
+     * Writes pending journal records and waits until they are on disk.
+     */
+    void syncJournal() {
+        if (mJournal != null) {
+            mJournal.sync();
+        }
+    }
+
+    boolean hasPendingChanges() {
+        synchronized (mDirty) {
+            return !mDirty.isEmpty();
+        }
+    }
+
+    private void write(boolean blocking) {
+        synchronized (mWriteLock) {
+            Map<Integer, Request> changes;
+            synchronized (mDirty) {
+                if (mDirty.isEmpty()) {
+                    return;
+                }
+                changes = new LinkedHashMap<>(mDirty);
+                mDirty.clear();
+            }
+
+            long start = System.nanoTime();
+            write(changes, blocking);
+            mMetrics.onPersistenceFlush(changes.size(), System.nanoTime() - start);
+        }
+    }
+
+    private void write(Map<Integer, Request> changes, boolean blocking) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        Set<Integer> index = index();
+        boolean indexChanged = false;
+        for (Map.Entry<Integer, Request> change : changes.entrySet()) {
+            String key = key(change.getKey());
+            Request request = change.getValue();
+
+            if (request == null) {
+                editor.remove(key);
+                indexChanged |= index.remove(change.getKey());
+            } else {
+                editor.putString(key, RequestCodec.encode(request, dictionary()));
+                indexChanged |= index.add(change.getKey());
+            }
+        }
+        putDictionary(editor);
+        if (indexChanged) {
+            editor.putString(PREFS_KEY_REQUEST_INDEX, serializeIndex(index));
+        }
+
+        if (blocking) {
+            editor.commit();
+        } else {
+            editor.apply();
+        }
+
+        Trace.event(Trace.LEVEL_DEBUG, TAG, Trace.EVENT_WRITE, 0, changes.size(), blocking ? 1 : 0);
+    }
+}
@@ -0,0 +1,125 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pending result of a request started with {@link Request#runAsync(android.app.Activity)}.
+ *
+ * Any number of callbacks and blocking waiters may share one future; callbacks are always
+ * delivered through an executor, never inline from the code that finishes the request.
+ */
+public final class ResultFuture implements Future<RequestResult> {
+    private final Executor mDefaultExecutor;
+
+    private RequestResult mResult;
+    private List<Runnable> mPendingCallbacks = new ArrayList<>();
+
+    ResultFuture(Executor defaultExecutor) {
+        mDefaultExecutor = defaultExecutor;
+    }
+
+    public interface Callback {
+        void onResult(RequestResult result);
+    }
+
+    /**
+     * Delivers the result to callback on the executor set with {@link PermissionsManager#setResultExecutor(Executor)}.
+     */
+    public void addCallback(Callback callback) {
+        addCallback(callback, mDefaultExecutor);
+    }
+
+    public void addCallback(final Callback callback, final Executor executor) {
+        Runnable delivery = new Runnable() {
+            @Override
+            public void run() {
+                final RequestResult result;
+                synchronized (ResultFuture.this) {
+                    result = mResult;
+                }
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResult(result);
+                    }
+                });
+            }
+        };
+
+        synchronized (this) {
+            if (mResult == null) {
+                mPendingCallbacks.add(delivery);
+                return;
+            }
+        }
+        delivery.run();
+    }
+
+    void complete(RequestResult result) {
+        List<Runnable> callbacks;
+        synchronized (this) {
+            if (mResult != null) {
+                return;
+            }
+            mResult = result;
+            callbacks = mPendingCallbacks;
+            mPendingCallbacks = null;
+            notifyAll();
+        }
+
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Requests can't be cancelled once started, so this always returns false.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mResult != null;
+    }
+
+    /**
+     * Blocks until the request finishes. Must not be called on the main thread: the result is
+     * delivered there, so the call would never return.
+     */
+    @Override
+    public synchronized RequestResult get() throws InterruptedException {
+        while (mResult == null) {
+            wait();
+        }
+        return mResult;
+    }
+
+    /**
+     * Same as {@link #get()}, so on the main thread it always times out.
+     */
+    @Override
+    public synchronized RequestResult get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (mResult == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return mResult;
+    }
+}
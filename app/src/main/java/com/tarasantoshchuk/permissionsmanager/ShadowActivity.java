@@ -10,33 +10,52 @@ import android.support.annotation.NonNull;
 
 @TargetApi(Build.VERSION_CODES.M)
 public class ShadowActivity extends Activity {
-    private static final String KEY_REQUEST_CODE = "KEY_REQUEST_CODE";
+    private static final String KEY_REQUEST_CODES = "KEY_REQUEST_CODES";
+    private static final String KEY_LAUNCH_ID = "KEY_LAUNCH_ID";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
         if (savedInstanceState == null) {
-            int requestCode = retrieveRequestCode(getIntent().getExtras());
-            requestPermissions(requestCode);
+            requestPermissionsIfInFlight();
         }
     }
 
-    @TargetApi(Build.VERSION_CODES.M)
-    private void requestPermissions(int requestCode) {
-        Request request = PermissionsManager.getInstance().getRequest(requestCode);
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+
+        //launch, that preempted the one this instance was started for
+        setIntent(intent);
+        requestPermissionsIfInFlight();
+    }
+
+    private void requestPermissionsIfInFlight() {
+        Bundle extras = getIntent().getExtras();
+        if (!PermissionsManager.getInstance().isLaunchInFlight(extras.getLong(KEY_LAUNCH_ID))) {
+            //preempted or timed out before it was shown, the launch is retried or reset by the scheduler
+            finish();
+            return;
+        }
 
-        requestPermissions(request.requestedPermissions.toArray(new String[0]), requestCode);
+        requestPermissions(retrieveRequestCodes(extras));
+    }
 
-        request.setState(Request.STATE_REQUESTED);
+    @TargetApi(Build.VERSION_CODES.M)
+    private void requestPermissions(int[] requestCodes) {
+        PermissionsManager permissionsManager = PermissionsManager.getInstance();
+
+        requestPermissions(permissionsManager.getPermissions(requestCodes), requestCodes[0]);
+        permissionsManager.onPermissionsRequested(PermissionsManager.LAUNCH_STRATEGY_SHADOW_ACTIVITY, requestCodes);
     }
 
-    private int retrieveRequestCode(Bundle extras) {
-        if (!extras.containsKey(KEY_REQUEST_CODE)) {
+    private int[] retrieveRequestCodes(Bundle extras) {
+        if (!extras.containsKey(KEY_REQUEST_CODES)) {
             throw new RuntimeException("unexpected");
         }
 
-        return extras.getInt(KEY_REQUEST_CODE);
+        return extras.getIntArray(KEY_REQUEST_CODES);
     }
 
     @Override
@@ -53,14 +72,19 @@ public class ShadowActivity extends Activity {
             shouldShowRationale[i] = shouldShowRequestPermissionRationale(permissions[i]);
         }
 
-        PermissionsManager.getInstance().handleRequestResult(requestCode, permissions, grantResults, shouldShowRationale);
+        //finish first, so the next launch started from the result handling gets a new instance
+        //instead of being delivered to this one
         finish();
+
+        int[] requestCodes = retrieveRequestCodes(getIntent().getExtras());
+        PermissionsManager.getInstance().handleBatchResult(requestCodes, permissions, grantResults, shouldShowRationale);
     }
 
-    public static Intent getStartIntent(Context mContext, int requestCode) {
+    public static Intent getStartIntent(Context mContext, long launchId, int... requestCodes) {
         Intent intent = new Intent(mContext, ShadowActivity.class);
         Bundle bundle = new Bundle();
-        bundle.putInt(KEY_REQUEST_CODE, requestCode);
+        bundle.putLong(KEY_LAUNCH_ID, launchId);
+        bundle.putIntArray(KEY_REQUEST_CODES, requestCodes);
         intent.putExtras(bundle);
         return intent;
     }
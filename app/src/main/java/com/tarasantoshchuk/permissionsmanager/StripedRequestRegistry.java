@@ -0,0 +1,75 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link RequestRegistry} split into stripes by request code, each stripe is an
+ * {@link IntRequestMap} guarded by its own monitor.
+ */
+final class StripedRequestRegistry implements RequestRegistry {
+    private static final int STRIPES = 16;
+
+    private final IntRequestMap[] mStripes = new IntRequestMap[STRIPES];
+
+    StripedRequestRegistry() {
+        for (int i = 0; i < STRIPES; i++) {
+            mStripes[i] = new IntRequestMap();
+        }
+    }
+
+    private IntRequestMap stripe(int requestCode) {
+        return mStripes[(requestCode ^ (requestCode >>> 16)) & (STRIPES - 1)];
+    }
+
+    @Override
+    public Request get(int requestCode) {
+        IntRequestMap stripe = stripe(requestCode);
+        synchronized (stripe) {
+            return stripe.get(requestCode);
+        }
+    }
+
+    @Override
+    public void put(Request request) {
+        IntRequestMap stripe = stripe(request.requestCode);
+        synchronized (stripe) {
+            stripe.put(request.requestCode, request);
+        }
+    }
+
+    @Override
+    public Request remove(int requestCode) {
+        IntRequestMap stripe = stripe(requestCode);
+        synchronized (stripe) {
+            return stripe.remove(requestCode);
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (IntRequestMap stripe : mStripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public List<Request> values() {
+        List<Request> result = new ArrayList<>();
+        for (IntRequestMap stripe : mStripes) {
+            synchronized (stripe) {
+                stripe.addValuesTo(result);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Object lockFor(int requestCode) {
+        return stripe(requestCode);
+    }
+}
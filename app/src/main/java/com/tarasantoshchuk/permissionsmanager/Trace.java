@@ -0,0 +1,254 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.os.SystemClock;
+import android.support.annotation.IntDef;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Diagnostic tracing of request lifecycle.
+ *
+ * Events are recorded as primitives into a fixed-size ring buffer, so tracing on hot paths does
+ * not allocate; messages are formatted only when the buffer is {@link #dump(PrintWriter) dumped}
+ * or when events are mirrored to logcat. Tracing is off by default, and a disabled level costs a
+ * single volatile read.
+ */
+public final class Trace {
+    public static final int LEVEL_OFF = 0;
+    public static final int LEVEL_ERROR = 1;
+    public static final int LEVEL_WARN = 2;
+    public static final int LEVEL_INFO = 3;
+    public static final int LEVEL_DEBUG = 4;
+    public static final int LEVEL_VERBOSE = 5;
+
+    @IntDef({LEVEL_OFF, LEVEL_ERROR, LEVEL_WARN, LEVEL_INFO, LEVEL_DEBUG, LEVEL_VERBOSE})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Level {}
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    static final int EVENT_MESSAGE = 0;
+    static final int EVENT_STATE = 1;
+    static final int EVENT_RUN = 2;
+    static final int EVENT_ATTACH = 3;
+    static final int EVENT_LAUNCH = 4;
+    static final int EVENT_RESTORE_INDEX = 5;
+    static final int EVENT_MIGRATE = 6;
+    static final int EVENT_WRITE = 7;
+    static final int EVENT_ORPHAN = 8;
+    static final int EVENT_ENQUEUE = 9;
+    static final int EVENT_PREEMPT = 10;
+    static final int EVENT_LAUNCH_TIMEOUT = 11;
+    static final int EVENT_RUNNING_ELSEWHERE = 12;
+
+    /**
+     * Event name and argument names, indexed by event id.
+     */
+    private static final String[][] EVENT_FORMATS = {
+            {"message"},
+            {"setState", "from", "to"},
+            {"runRequest", "state", "mode"},
+            {"attach", "inFlightCode"},
+            {"launch", "batchSize", "strategy"},
+            {"restoreIndex", "count"},
+            {"migrate", "count"},
+            {"write", "changes", "blocking"},
+            {"orphanTimeout", "state"},
+            {"enqueue", "priority", "queueDepth"},
+            {"preempt", "byRequestCode"},
+            {"launchTimeout", "batchSize"},
+            {"runningElsewhere", "state"},
+    };
+
+    private static final String[] LEVEL_NAMES = {"OFF", "E", "W", "I", "D", "V"};
+    private static final int[] LOG_PRIORITIES = {0, Log.ERROR, Log.WARN, Log.INFO, Log.DEBUG, Log.VERBOSE};
+
+    private static volatile int sLevel = LEVEL_OFF;
+    private static volatile boolean sLogcat;
+
+    private static final Object sLock = new Object();
+
+    private static long[] sTimes;
+    private static long[] sThreads;
+    private static byte[] sLevels;
+    private static byte[] sEvents;
+    private static int[] sRequestCodes;
+    private static int[] sArgs0;
+    private static int[] sArgs1;
+    private static String[] sTags;
+    private static Message[] sMessages;
+
+    /**
+     * Index of the next slot to write.
+     */
+    private static int sHead;
+    private static long sRecordedCount;
+
+    static {
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    private Trace() {
+    }
+
+    /**
+     * Lazily formatted message, evaluated only when the event is dumped or mirrored to logcat.
+     */
+    public interface Message {
+        String get();
+    }
+
+    /**
+     * @param level most verbose level that is recorded, {@link #LEVEL_OFF} disables tracing
+     */
+    public static void setLevel(@Level int level) {
+        sLevel = level;
+    }
+
+    @Level
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    /**
+     * @param logcat whether recorded events are also written to logcat; formatting them allocates
+     */
+    public static void setLogcatEnabled(boolean logcat) {
+        sLogcat = logcat;
+    }
+
+    /**
+     * Resizes the ring buffer, dropping all recorded events.
+     */
+    public static void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        synchronized (sLock) {
+            allocate(capacity);
+        }
+    }
+
+    public static void clear() {
+        synchronized (sLock) {
+            allocate(sTimes.length);
+        }
+    }
+
+    /**
+     * Callers should check this before building a {@link Message}, so disabled tracing does not
+     * allocate one.
+     */
+    public static boolean isEnabled(@Level int level) {
+        return level <= sLevel && level != LEVEL_OFF;
+    }
+
+    static void event(@Level int level, String tag, int event, int requestCode, int arg0) {
+        event(level, tag, event, requestCode, arg0, 0);
+    }
+
+    static void event(@Level int level, String tag, int event, int requestCode, int arg0, int arg1) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        record(level, tag, event, requestCode, arg0, arg1, null);
+    }
+
+    public static void message(@Level int level, String tag, Message message) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        record(level, tag, EVENT_MESSAGE, 0, 0, 0, message);
+    }
+
+    private static void record(int level, String tag, int event, int requestCode, int arg0, int arg1, Message message) {
+        synchronized (sLock) {
+            int i = sHead;
+            sTimes[i] = SystemClock.elapsedRealtime();
+            sThreads[i] = Thread.currentThread().getId();
+            sLevels[i] = (byte) level;
+            sEvents[i] = (byte) event;
+            sRequestCodes[i] = requestCode;
+            sArgs0[i] = arg0;
+            sArgs1[i] = arg1;
+            sTags[i] = tag;
+            sMessages[i] = message;
+
+            sHead = (i + 1) % sTimes.length;
+            sRecordedCount++;
+        }
+
+        if (sLogcat) {
+            Log.println(LOG_PRIORITIES[level], tag, format(event, requestCode, arg0, arg1, message));
+        }
+    }
+
+    /**
+     * @return number of events recorded since the buffer was last cleared, including
+     * overwritten ones
+     */
+    public static long getRecordedCount() {
+        synchronized (sLock) {
+            return sRecordedCount;
+        }
+    }
+
+    /**
+     * Writes recorded events, oldest first, one per line.
+     */
+    public static void dump(PrintWriter writer) {
+        synchronized (sLock) {
+            int capacity = sTimes.length;
+            int count = (int) Math.min(sRecordedCount, capacity);
+            int start = (sHead - count + capacity) % capacity;
+
+            for (int n = 0; n < count; n++) {
+                int i = (start + n) % capacity;
+                writer.print(sTimes[i]);
+                writer.print(' ');
+                writer.print(LEVEL_NAMES[sLevels[i]]);
+                writer.print('/');
+                writer.print(sTags[i]);
+                writer.print(" [");
+                writer.print(sThreads[i]);
+                writer.print("] ");
+                writer.println(format(sEvents[i], sRequestCodes[i], sArgs0[i], sArgs1[i], sMessages[i]));
+            }
+        }
+        writer.flush();
+    }
+
+    private static String format(int event, int requestCode, int arg0, int arg1, Message message) {
+        if (event == EVENT_MESSAGE) {
+            return message.get();
+        }
+
+        String[] format = EVENT_FORMATS[event];
+        StringBuilder builder = new StringBuilder(format[0]);
+        builder.append(", requestCode ").append(requestCode);
+        if (format.length > 1) {
+            builder.append(", ").append(format[1]).append(' ').append(arg0);
+        }
+        if (format.length > 2) {
+            builder.append(", ").append(format[2]).append(' ').append(arg1);
+        }
+        return builder.toString();
+    }
+
+    private static void allocate(int capacity) {
+        sTimes = new long[capacity];
+        sThreads = new long[capacity];
+        sLevels = new byte[capacity];
+        sEvents = new byte[capacity];
+        sRequestCodes = new int[capacity];
+        sArgs0 = new int[capacity];
+        sArgs1 = new int[capacity];
+        sTags = new String[capacity];
+        sMessages = new Message[capacity];
+        sHead = 0;
+        sRecordedCount = 0;
+    }
+}
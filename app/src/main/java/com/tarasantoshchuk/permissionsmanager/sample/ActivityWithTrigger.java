@@ -8,12 +8,14 @@ import android.os.Bundle;
 import android.view.View;
 import android.widget.Toast;
 
-import com.tarasantoshchuk.permissionsmanager.PermissionsManager;
+import com.tarasantoshchuk.permissionsmanager.PermissionRequests;
 import com.tarasantoshchuk.permissionsmanager.R;
 import com.tarasantoshchuk.permissionsmanager.Request;
+import com.tarasantoshchuk.permissionsmanager.annotations.OnPermissionsResult;
+import com.tarasantoshchuk.permissionsmanager.annotations.OnShowRationale;
 
 public class ActivityWithTrigger extends Activity {
-    private Request mPermissionRequest;
+    private final PermissionRequests mPermissionRequests = new ActivityWithTrigger_PermissionRequests(this);
     private boolean isRestored;
     private AlertDialog mRationale;
 
@@ -25,7 +27,7 @@ public class ActivityWithTrigger extends Activity {
         findViewById(R.id.request_trigger).setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                mPermissionRequest.run(ActivityWithTrigger.this);
+                mPermissionRequests.get(R.id.request_on_button_click).run(ActivityWithTrigger.this);
             }
         });
 
@@ -35,62 +37,61 @@ public class ActivityWithTrigger extends Activity {
     @Override
     protected void onStop() {
         super.onStop();
-        mPermissionRequest.stop();
+        mPermissionRequests.stop();
 
         if (mRationale != null && mRationale.isShowing()) {
             mRationale.dismiss();
 
             //uncomment if you want rationale request to be restored
-            //mPermissionRequest.reset();
+            //mPermissionRequests.get(R.id.request_on_button_click).reset();
         }
     }
 
     @Override
     protected void onStart() {
         super.onStart();
-        mPermissionRequest = PermissionsManager.init(this).createRequestAll(R.id.request_on_button_click, isRestored, Manifest.permission.WRITE_EXTERNAL_STORAGE);
-        mPermissionRequest.setListener(new Request.Listener() {
-            @Override
-            public boolean onShowRationale() {
-                mRationale = new AlertDialog.Builder(ActivityWithTrigger.this)
-                        .setTitle("Rationale title")
-                        .setMessage("Rationale message")
-                        .setPositiveButton("OK", new DialogInterface.OnClickListener() {
-                            @Override
-                            public void onClick(DialogInterface dialog, int which) {
-                                mPermissionRequest.proceed();
-                            }
-                        })
-                        .setCancelable(true)
-                        .setOnCancelListener(new DialogInterface.OnCancelListener() {
-                            @Override
-                            public void onCancel(DialogInterface dialog) {
-                                mPermissionRequest.reset();
-                            }
-                        })
-                        .show();
-                return false;
-            }
+        mPermissionRequests.start(isRestored);
+    }
 
-            @Override
-            public void onRequestResult(@Request.Result int result, int requestCode, String... permissions) {
-                String message;
-                switch(result) {
-                    case Request.RESULT_GRANTED:
-                        message = "permission granted";
-                        break;
-                    case Request.RESULT_DENIED:
-                        message = "permission denied";
-                        break;
-                    case Request.RESULT_DENIED_FOREVER:
-                        message = "permission denied forever";
-                        break;
-                    default:
-                        throw new RuntimeException("unexpected");
-                }
+    @OnShowRationale(R.id.request_on_button_click)
+    boolean onShowStorageRationale(final Request request) {
+        mRationale = new AlertDialog.Builder(ActivityWithTrigger.this)
+                .setTitle("Rationale title")
+                .setMessage("Rationale message")
+                .setPositiveButton("OK", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        request.proceed();
+                    }
+                })
+                .setCancelable(true)
+                .setOnCancelListener(new DialogInterface.OnCancelListener() {
+                    @Override
+                    public void onCancel(DialogInterface dialog) {
+                        request.reset();
+                    }
+                })
+                .show();
+        return false;
+    }
 
-                Toast.makeText(ActivityWithTrigger.this, message, Toast.LENGTH_SHORT).show();
-            }
-        });
+    @OnPermissionsResult(requestCode = R.id.request_on_button_click, permissions = Manifest.permission.WRITE_EXTERNAL_STORAGE)
+    void onStoragePermissionResult(@Request.Result int result) {
+        String message;
+        switch(result) {
+            case Request.RESULT_GRANTED:
+                message = "permission granted";
+                break;
+            case Request.RESULT_DENIED:
+                message = "permission denied";
+                break;
+            case Request.RESULT_DENIED_FOREVER:
+                message = "permission denied forever";
+                break;
+            default:
+                throw new RuntimeException("unexpected");
+        }
+
+        Toast.makeText(ActivityWithTrigger.this, message, Toast.LENGTH_SHORT).show();
     }
 }
@@ -0,0 +1,41 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import java.lang.reflect.Method;
+
+/**
+ * Per-thread allocated bytes from the HotSpot ThreadMXBean, resolved reflectively because unit
+ * tests compile against android.jar. Returns -1 when the running JVM does not support it.
+ */
+final class Allocations {
+    private static final Object sBean;
+    private static final Method sGetThreadAllocatedBytes;
+
+    static {
+        Object bean = null;
+        Method method = null;
+        try {
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            bean = factory.getMethod("getThreadMXBean").invoke(null);
+            method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception e) {
+            bean = null;
+            method = null;
+        }
+        sBean = bean;
+        sGetThreadAllocatedBytes = method;
+    }
+
+    private Allocations() {
+    }
+
+    static long currentThreadAllocatedBytes() {
+        if (sGetThreadAllocatedBytes == null) {
+            return -1;
+        }
+        try {
+            return (Long) sGetThreadAllocatedBytes.invoke(sBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DeclaredPermissionsTest {
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String CUSTOM = "com.example.permission.CUSTOM";
+
+    @Test
+    public void cached_isReadForSameSourceOnly() throws Exception {
+        FakeSharedPreferences prefs = new FakeSharedPreferences();
+        DeclaredPermissions.of(CAMERA, CUSTOM).write(prefs, "/data/app/base.apk:1");
+
+        DeclaredPermissions cached = DeclaredPermissions.read(prefs, "/data/app/base.apk:1");
+        assertTrue(cached.isDeclared(CAMERA));
+        assertTrue(cached.isDeclared(CUSTOM));
+        assertFalse(cached.isDeclared("android.permission.READ_CONTACTS"));
+
+        // reinstalled, declared permissions might have changed
+        assertNull(DeclaredPermissions.read(prefs, "/data/app/base.apk:2"));
+        assertNull(DeclaredPermissions.read(prefs, null));
+    }
+
+    @Test
+    public void noneDeclared_cachedAsEmpty() throws Exception {
+        FakeSharedPreferences prefs = new FakeSharedPreferences();
+        DeclaredPermissions.of((String[]) null).write(prefs, "source");
+
+        assertFalse(DeclaredPermissions.read(prefs, "source").isDeclared(CAMERA));
+    }
+
+    @Test
+    public void unknown_declaresEverything() throws Exception {
+        assertTrue(DeclaredPermissions.UNKNOWN.isDeclared(CAMERA));
+        DeclaredPermissions.UNKNOWN.checkDeclared(CAMERA, CUSTOM);
+    }
+}
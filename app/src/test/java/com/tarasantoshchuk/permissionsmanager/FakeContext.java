@@ -0,0 +1,48 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Application context stub for JVM tests, relies on android.jar default values for the rest.
+ */
+class FakeContext extends ContextWrapper {
+    final FakeSharedPreferences prefs = new FakeSharedPreferences();
+    final AtomicInteger startedActivities = new AtomicInteger();
+    File filesDir;
+
+    FakeContext() {
+        super(null);
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        return prefs;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return filesDir;
+    }
+
+    @Override
+    public void startActivity(Intent intent) {
+        startedActivities.incrementAndGet();
+    }
+
+    @Override
+    public int checkSelfPermission(String permission) {
+        return PackageManager.PERMISSION_GRANTED;
+    }
+}
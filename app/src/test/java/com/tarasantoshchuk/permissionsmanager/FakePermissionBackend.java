@@ -0,0 +1,77 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.app.Activity;
+import android.content.pm.PackageManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link PermissionBackend} for JVM tests: permissions are denied unless granted, and launches
+ * are recorded instead of showing a dialog.
+ */
+class FakePermissionBackend implements PermissionBackend {
+    final Set<String> granted = new HashSet<>();
+    final Set<String> showRationale = new HashSet<>();
+    final List<int[]> launches = new ArrayList<>();
+    final List<Long> launchIds = new ArrayList<>();
+
+    private PermissionsManager mManager;
+    private Executor mDialogExecutor;
+
+    /**
+     * Answers launches on the executor, as ShadowActivity does on the main thread, denying every
+     * requested permission with rationale.
+     */
+    synchronized void answerOn(PermissionsManager manager, Executor executor) {
+        mManager = manager;
+        mDialogExecutor = executor;
+    }
+
+    @Override
+    public synchronized int checkSelfPermission(String permission) {
+        return granted.contains(permission) ? PackageManager.PERMISSION_GRANTED : PackageManager.PERMISSION_DENIED;
+    }
+
+    @Override
+    public synchronized boolean shouldShowRequestPermissionRationale(Activity activity, String permission) {
+        return showRationale.contains(permission);
+    }
+
+    @Override
+    public synchronized void requestPermissions(final long launchId, final int[] requestCodes) {
+        launchIds.add(launchId);
+        launches.add(requestCodes);
+
+        if (mDialogExecutor == null) {
+            return;
+        }
+
+        final PermissionsManager manager = mManager;
+        mDialogExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!manager.isLaunchInFlight(launchId)) {
+                    return;
+                }
+
+                String[] permissions = manager.getPermissions(requestCodes);
+                manager.onPermissionsRequested(PermissionsManager.LAUNCH_STRATEGY_SHADOW_ACTIVITY, requestCodes);
+
+                int[] grantResults = new int[permissions.length];
+                boolean[] shouldShowRationale = new boolean[permissions.length];
+                Arrays.fill(grantResults, PackageManager.PERMISSION_DENIED);
+                Arrays.fill(shouldShowRationale, true);
+                manager.handleBatchResult(requestCodes, permissions, grantResults, shouldShowRationale);
+            }
+        });
+    }
+
+    synchronized int[] lastLaunch() {
+        return launches.get(launches.size() - 1);
+    }
+}
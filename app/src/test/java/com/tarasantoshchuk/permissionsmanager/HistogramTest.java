@@ -0,0 +1,44 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+    @Test
+    public void record_statistics() throws Exception {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(1000, histogram.getMin());
+        assertEquals(100000, histogram.getMax());
+        assertEquals(50500, histogram.getMean());
+
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 50000 && p50 < 2 * 50000);
+        assertEquals(100000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void empty() throws Exception {
+        Histogram histogram = new Histogram();
+
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void copy_isIndependent() throws Exception {
+        Histogram histogram = new Histogram();
+        histogram.record(10);
+        Histogram copy = histogram.copy();
+        histogram.record(20);
+
+        assertEquals(1, copy.getCount());
+        assertEquals(2, histogram.getCount());
+    }
+}
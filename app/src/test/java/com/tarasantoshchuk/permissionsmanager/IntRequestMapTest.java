@@ -0,0 +1,57 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class IntRequestMapTest {
+    @Test
+    public void randomOperations_matchHashMap() throws Exception {
+        IntRequestMap map = new IntRequestMap();
+        HashMap<Integer, Request> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 100000; i++) {
+            int key = 0x7f0b0000 + random.nextInt(512);
+
+            switch (random.nextInt(3)) {
+                case 0:
+                    Request request = new Request(key, Request.REQUEST_MODE_ALL, new String[0]);
+                    assertSame(expected.put(key, request), map.put(key, request));
+                    break;
+                case 1:
+                    assertSame(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertSame(expected.get(key), map.get(key));
+                    break;
+            }
+
+            assertEquals(expected.size(), map.size());
+        }
+
+        List<Request> values = new ArrayList<>();
+        map.addValuesTo(values);
+        assertEquals(expected.size(), values.size());
+        assertTrue(values.containsAll(expected.values()));
+    }
+
+    @Test
+    public void negativeAndZeroKeys() throws Exception {
+        IntRequestMap map = new IntRequestMap();
+        Request zero = new Request(0, Request.REQUEST_MODE_ALL, new String[0]);
+        Request negative = new Request(-5, Request.REQUEST_MODE_ALL, new String[0]);
+
+        map.put(0, zero);
+        map.put(-5, negative);
+
+        assertSame(zero, map.get(0));
+        assertSame(negative, map.get(-5));
+        assertNull(map.get(5));
+    }
+}
@@ -0,0 +1,160 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LaunchSchedulerTest {
+    private RecordingLauncher mLauncher;
+    private LaunchScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mLauncher = new RecordingLauncher();
+        mScheduler = new LaunchScheduler(mLauncher, new Handler(Looper.getMainLooper()));
+    }
+
+    @Test
+    public void queuedLaunches_startInPriorityThenArrivalOrder() throws Exception {
+        mScheduler.enqueue(new int[]{1}, Request.PRIORITY_NORMAL);
+        mScheduler.onRequested(1);
+        mScheduler.enqueue(new int[]{2}, Request.PRIORITY_LOW);
+        mScheduler.enqueue(new int[]{3}, Request.PRIORITY_NORMAL);
+        mScheduler.enqueue(new int[]{4}, Request.PRIORITY_HIGH);
+        mScheduler.enqueue(new int[]{5}, Request.PRIORITY_NORMAL);
+
+        assertEquals(1, mLauncher.started.size());
+        assertEquals(4, mScheduler.getQueueDepth());
+
+        for (int requestCode : new int[]{1, 4, 3, 5}) {
+            assertEquals(requestCode, mLauncher.last().requestCodes[0]);
+            mScheduler.onRequested(requestCode);
+            mScheduler.onCompleted(requestCode);
+        }
+        assertEquals(2, mLauncher.last().requestCodes[0]);
+        assertEquals(0, mScheduler.getQueueDepth());
+    }
+
+    @Test
+    public void batchedLaunch_completesAfterEveryRequest() throws Exception {
+        mScheduler.enqueue(new int[]{1, 2}, Request.PRIORITY_NORMAL);
+        mScheduler.enqueue(new int[]{3}, Request.PRIORITY_NORMAL);
+
+        mScheduler.onCompleted(1);
+        mScheduler.onCompleted(3);
+        assertEquals(1, mLauncher.started.size());
+
+        mScheduler.onCompleted(2);
+        assertEquals(2, mLauncher.started.size());
+        assertEquals(3, mLauncher.last().requestCodes[0]);
+    }
+
+    @Test
+    public void higherPriority_preemptsLaunchNotRequestedYet() throws Exception {
+        mScheduler.enqueue(new int[]{1}, Request.PRIORITY_NORMAL);
+        LaunchScheduler.Launch preempted = mLauncher.last();
+        mScheduler.enqueue(new int[]{2}, Request.PRIORITY_HIGH);
+
+        assertEquals(2, mLauncher.started.size());
+        assertFalse(mScheduler.isInFlight(preempted.id));
+        assertTrue(mScheduler.isInFlight(mLauncher.last().id));
+
+        // a request, that showed the dialog, is not preempted
+        mScheduler.onRequested(2);
+        mScheduler.enqueue(new int[]{3}, Request.PRIORITY_HIGH + 1);
+        assertEquals(2, mLauncher.started.size());
+
+        mScheduler.onCompleted(2);
+        assertEquals(3, mLauncher.last().requestCodes[0]);
+        mScheduler.onCompleted(3);
+        assertSame(preempted, mLauncher.last());
+        assertTrue(mScheduler.isInFlight(preempted.id));
+    }
+
+    @Test
+    public void timedOutLaunch_startsNext() throws Exception {
+        InMemoryPermissionsMetrics metrics = new InMemoryPermissionsMetrics();
+        mScheduler.setMetrics(metrics);
+        mScheduler.enqueue(new int[]{1}, Request.PRIORITY_NORMAL);
+        mScheduler.enqueue(new int[]{2}, Request.PRIORITY_NORMAL);
+        mScheduler.enqueue(new int[]{3}, Request.PRIORITY_NORMAL);
+        LaunchScheduler.Launch timedOut = mLauncher.last();
+
+        mScheduler.timeOut(timedOut, 1);
+
+        assertEquals(1, mLauncher.timedOut.size());
+        assertFalse(mScheduler.isInFlight(timedOut.id));
+        assertEquals(2, mLauncher.last().requestCodes[0]);
+
+        // a launch, that requested permissions, waits for the result
+        mScheduler.onRequested(2);
+        mScheduler.timeOut(mLauncher.last(), 1);
+        assertEquals(1, mLauncher.timedOut.size());
+        assertTrue(mScheduler.isInFlight(mLauncher.last().id));
+
+        InMemoryPermissionsMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(2, snapshot.getLaunchWait().getCount());
+        assertEquals(1, snapshot.getMaxLaunchQueueDepth());
+        assertEquals(1, snapshot.getTimedOutLaunchCount());
+    }
+
+    @Test
+    public void preemptedLaunch_ignoresTimerOfEarlierStart() throws Exception {
+        mScheduler.enqueue(new int[]{1}, Request.PRIORITY_NORMAL);
+        LaunchScheduler.Launch preempted = mLauncher.last();
+        mScheduler.enqueue(new int[]{2}, Request.PRIORITY_HIGH);
+        mScheduler.onRequested(2);
+        mScheduler.onCompleted(2);
+        assertSame(preempted, mLauncher.last());
+
+        // timer of the first start fires after the restart
+        mScheduler.timeOut(preempted, 1);
+        assertTrue(mLauncher.timedOut.isEmpty());
+        assertTrue(mScheduler.isInFlight(preempted.id));
+
+        mScheduler.timeOut(preempted, 2);
+        assertSame(preempted, mLauncher.timedOut.get(0));
+        assertFalse(mScheduler.isInFlight(preempted.id));
+    }
+
+    @Test
+    public void requestedLaunch_timesOutWithoutResults() throws Exception {
+        mScheduler.enqueue(new int[]{1}, Request.PRIORITY_NORMAL);
+        mScheduler.enqueue(new int[]{2}, Request.PRIORITY_NORMAL);
+        LaunchScheduler.Launch requested = mLauncher.last();
+        mScheduler.onRequested(1);
+
+        // timer of the request stage
+        mScheduler.timeOut(requested, 2);
+
+        assertSame(requested, mLauncher.timedOut.get(0));
+        assertEquals(2, mLauncher.last().requestCodes[0]);
+        assertTrue(mScheduler.isInFlight(mLauncher.last().id));
+    }
+
+    private static final class RecordingLauncher implements LaunchScheduler.Launcher {
+        final List<LaunchScheduler.Launch> started = new ArrayList<>();
+        final List<LaunchScheduler.Launch> timedOut = new ArrayList<>();
+
+        @Override
+        public void start(LaunchScheduler.Launch launch) {
+            started.add(launch);
+        }
+
+        @Override
+        public void onTimedOut(LaunchScheduler.Launch launch) {
+            timedOut.add(launch);
+        }
+
+        LaunchScheduler.Launch last() {
+            return started.get(started.size() - 1);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.app.Activity;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PermissionCacheTest {
+    private static final String CAMERA = "android.permission.CAMERA";
+
+    @Test
+    public void entry_expiresAfterTtl() throws Exception {
+        PermissionCache cache = new PermissionCache();
+        cache.setTtl(100);
+        cache.put(CAMERA, true, 1000);
+
+        assertEquals(Boolean.TRUE, cache.get(CAMERA, 1099));
+        assertNull(cache.get(CAMERA, 1100));
+
+        cache.put(CAMERA, false, 1100);
+        assertEquals(Boolean.FALSE, cache.get(CAMERA, 1150));
+    }
+
+    @Test
+    public void hitsAndMisses_areCounted() throws Exception {
+        PermissionCache cache = new PermissionCache();
+
+        assertNull(cache.get(CAMERA, 0));
+        cache.put(CAMERA, true, 0);
+        assertEquals(Boolean.TRUE, cache.get(CAMERA, 0));
+        assertEquals(Boolean.TRUE, cache.get(CAMERA, 0));
+        cache.invalidate();
+        assertNull(cache.get(CAMERA, 0));
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void zeroTtl_disablesCaching() throws Exception {
+        PermissionCache cache = new PermissionCache();
+        cache.setTtl(0);
+        cache.put(CAMERA, true, 0);
+
+        assertNull(cache.get(CAMERA, 0));
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void foregroundTracker_notifiesWhenFirstActivityStarts() throws Exception {
+        final List<String> events = new ArrayList<>();
+        ForegroundTracker tracker = new ForegroundTracker(new ForegroundTracker.Listener() {
+            @Override
+            public void onForeground() {
+                events.add("foreground");
+            }
+
+            @Override
+            public void onActivityDestroyed(Activity activity) {
+                events.add("destroyed");
+            }
+        });
+        Activity first = new Activity();
+        Activity second = new Activity();
+
+        tracker.onActivityStarted(first);
+        // activity transition, the app stays in foreground
+        tracker.onActivityStarted(second);
+        tracker.onActivityStopped(first);
+        tracker.onActivityDestroyed(first);
+        tracker.onActivityStopped(second);
+        tracker.onActivityStarted(second);
+
+        assertEquals(3, events.size());
+        assertEquals("foreground", events.get(0));
+        assertEquals("destroyed", events.get(1));
+        assertEquals("foreground", events.get(2));
+    }
+}
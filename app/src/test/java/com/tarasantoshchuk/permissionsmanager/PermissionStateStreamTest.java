@@ -0,0 +1,155 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class PermissionStateStreamTest {
+    private static final String STORAGE = "android.permission.WRITE_EXTERNAL_STORAGE";
+    private static final String CAMERA = "android.permission.CAMERA";
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final PermissionStateStream mStream = new PermissionStateStream(new PermissionStateStream.StatusSource() {
+        @Override
+        public int getStatus(String permission) {
+            return PermissionStatusVector.STATUS_UNKNOWN;
+        }
+    });
+
+    @Test
+    public void subscribe_deliversCurrentThenDistinctChanges() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        mStream.subscribe(subscriber, DIRECT, 4, STORAGE);
+
+        mStream.publish(STORAGE, PermissionStatusVector.STATUS_RATIONALE);
+        mStream.publish(STORAGE, PermissionStatusVector.STATUS_RATIONALE);
+        mStream.publish(CAMERA, PermissionStatusVector.STATUS_GRANTED);
+        mStream.publish(STORAGE, PermissionStatusVector.STATUS_GRANTED);
+
+        assertEquals("[" + STORAGE + "=1, " + STORAGE + "=2, " + STORAGE + "=0]", subscriber.events.toString());
+    }
+
+    @Test
+    public void subscribe_unchangedStatus_deliveredOnlyToNewSubscriber() throws Exception {
+        RecordingSubscriber first = new RecordingSubscriber();
+        RecordingSubscriber second = new RecordingSubscriber();
+
+        mStream.subscribe(first, DIRECT, 4, STORAGE);
+        mStream.subscribe(second, DIRECT, 4, STORAGE);
+
+        assertEquals(1, first.events.size());
+        assertEquals(1, second.events.size());
+    }
+
+    @Test
+    public void slowSubscriber_dropsOldest() throws Exception {
+        QueueExecutor executor = new QueueExecutor();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        PermissionStateStream.Subscription subscription = mStream.subscribe(subscriber, executor, 2);
+
+        mStream.publish(STORAGE, PermissionStatusVector.STATUS_RATIONALE);
+        mStream.publish(STORAGE, PermissionStatusVector.STATUS_DENIED_FOREVER);
+        mStream.publish(STORAGE, PermissionStatusVector.STATUS_GRANTED);
+        executor.runAll();
+
+        assertEquals("[" + STORAGE + "=3, " + STORAGE + "=0]", subscriber.events.toString());
+        assertEquals(1, subscription.getDroppedCount());
+    }
+
+    @Test
+    public void slowSubscriber_keepsLatestStatusOfEveryPermission() throws Exception {
+        QueueExecutor executor = new QueueExecutor();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        PermissionStateStream.Subscription subscription = mStream.subscribe(subscriber, executor, 2);
+
+        mStream.publish(STORAGE, PermissionStatusVector.STATUS_RATIONALE);
+        mStream.publish(CAMERA, PermissionStatusVector.STATUS_RATIONALE);
+        mStream.publish(STORAGE, PermissionStatusVector.STATUS_DENIED_FOREVER);
+        mStream.publish(STORAGE, PermissionStatusVector.STATUS_GRANTED);
+        executor.runAll();
+
+        assertEquals("[" + CAMERA + "=2, " + STORAGE + "=0]", subscriber.events.toString());
+        assertEquals(2, subscription.getDroppedCount());
+    }
+
+    @Test
+    public void concurrentPublish_deliversChangesInPublishOrder() throws Exception {
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        PermissionStateStream.Subscription subscription = mStream.subscribe(subscriber, DIRECT, 1 << 20, STORAGE);
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final int seed = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        mStream.publish(STORAGE, (seed + j) % 4);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // every published status differs from the previous one, so does every delivered one
+        // unless changes were delivered out of order
+        assertEquals(0, subscription.getDroppedCount());
+        synchronized (subscriber) {
+            for (int i = 1; i < subscriber.events.size(); i++) {
+                assertFalse(subscriber.events.get(i - 1) + " twice", subscriber.events.get(i - 1).equals(subscriber.events.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void cancel_stopsDelivery() throws Exception {
+        QueueExecutor executor = new QueueExecutor();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        PermissionStateStream.Subscription subscription = mStream.subscribe(subscriber, executor, 4);
+
+        mStream.publish(STORAGE, PermissionStatusVector.STATUS_GRANTED);
+        subscription.cancel();
+        mStream.publish(CAMERA, PermissionStatusVector.STATUS_GRANTED);
+        executor.runAll();
+
+        assertTrue(subscriber.events.isEmpty());
+        assertFalse(mStream.hasSubscribers());
+    }
+
+    static class RecordingSubscriber implements PermissionStateStream.Subscriber {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public synchronized void onPermissionStateChanged(String permission, @PermissionStatusVector.Status int status) {
+            events.add(permission + "=" + status);
+        }
+    }
+
+    private static class QueueExecutor implements Executor {
+        private final List<Runnable> mQueue = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+
+        void runAll() {
+            while (!mQueue.isEmpty()) {
+                mQueue.remove(0).run();
+            }
+        }
+    }
+}
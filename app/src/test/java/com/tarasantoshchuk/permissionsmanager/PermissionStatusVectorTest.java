@@ -0,0 +1,38 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PermissionStatusVectorTest {
+    @Test
+    public void set_get_acrossWords() throws Exception {
+        PermissionStatusVector vector = new PermissionStatusVector(40);
+        for (int i = 0; i < 40; i++) {
+            vector.set(i, i % 4);
+        }
+
+        for (int i = 0; i < 40; i++) {
+            assertEquals(i % 4, vector.get(i));
+        }
+        assertEquals(10, vector.count(PermissionStatusVector.STATUS_DENIED_FOREVER));
+        assertEquals(2, vector.toPackedArray().length);
+        assertFalse(vector.isAllGranted());
+    }
+
+    @Test
+    public void set_overwrites() throws Exception {
+        PermissionStatusVector vector = new PermissionStatusVector(3);
+        vector.set(1, PermissionStatusVector.STATUS_DENIED_FOREVER);
+        vector.set(1, PermissionStatusVector.STATUS_RATIONALE);
+
+        assertEquals(PermissionStatusVector.STATUS_GRANTED, vector.get(0));
+        assertEquals(PermissionStatusVector.STATUS_RATIONALE, vector.get(1));
+        assertEquals(PermissionStatusVector.STATUS_GRANTED, vector.get(2));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void get_outOfBounds() throws Exception {
+        new PermissionStatusVector(3).get(3);
+    }
+}
@@ -0,0 +1,164 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.app.Activity;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Bundle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives {@link PermissionsFragment} lifecycle by hand. Fragment methods, that android.jar makes
+ * final, keep their default values: the fragment is never added and has no Activity.
+ */
+public class PermissionsFragmentTest {
+    private static final String STORAGE = "android.permission.WRITE_EXTERNAL_STORAGE";
+
+    private PermissionsManager mManager;
+    private FakePermissionBackend mBackend;
+    private FakeFragmentHost mFragmentHost;
+    private PermissionsManagerTest.RecordingListener mListener;
+
+    @Before
+    public void setUp() {
+        PermissionsManager.sInstance = null;
+        mManager = PermissionsManager.init(new FakeContext());
+        mManager.setSdkInt(Build.VERSION_CODES.M);
+        mBackend = new FakePermissionBackend();
+        mManager.setPermissionBackend(mBackend);
+        mManager.setLaunchStrategy(PermissionsManager.LAUNCH_STRATEGY_FRAGMENT);
+        mFragmentHost = new FakeFragmentHost();
+        mManager.setFragmentHost(mFragmentHost);
+        mListener = new PermissionsManagerTest.RecordingListener();
+    }
+
+    @After
+    public void tearDown() {
+        PermissionsManager.sInstance = null;
+    }
+
+    @Test
+    public void launch_addsFragmentThatRequestsOnCreate() throws Exception {
+        Request request = runRequest();
+
+        PermissionsFragment fragment = mFragmentHost.addedFragment();
+        assertEquals(Request.STATE_BEFORE_REQUEST, request.getState());
+        assertTrue(mBackend.launches.isEmpty());
+
+        fragment.onCreate((Bundle) null);
+
+        assertEquals(Request.STATE_REQUESTED, request.getState());
+    }
+
+    @Test
+    public void launch_finishingActivity_fallsBackToShadowActivity() throws Exception {
+        mFragmentHost.finishing = true;
+        runRequest();
+
+        assertTrue(mFragmentHost.added.isEmpty());
+        assertEquals(1, mBackend.launches.size());
+    }
+
+    @Test
+    public void result_deliveredToRequest() throws Exception {
+        Request request = runRequest();
+        PermissionsFragment fragment = mFragmentHost.addedFragment();
+        fragment.onCreate((Bundle) null);
+
+        // ignored, not a result of the fragment's own request
+        fragment.onRequestPermissionsResult(2, new String[]{STORAGE}, new int[]{PackageManager.PERMISSION_GRANTED});
+        assertTrue(request.isRunning());
+
+        mBackend.granted.add(STORAGE);
+        fragment.onRequestPermissionsResult(1, new String[]{STORAGE}, new int[]{PackageManager.PERMISSION_GRANTED});
+
+        assertEquals(Request.RESULT_GRANTED, (int) mListener.results.get(0));
+        assertFalse(request.isRunning());
+    }
+
+    @Test
+    public void destroyWithoutActivity_interruptsRequest() throws Exception {
+        Request request = runRequest();
+        PermissionsFragment fragment = mFragmentHost.addedFragment();
+        fragment.onCreate((Bundle) null);
+
+        fragment.onDestroy();
+
+        assertEquals(Request.RESULT_DENIED, (int) mListener.results.get(0));
+        assertFalse(request.isRunning());
+
+        // a late result of the interrupted request is dropped
+        fragment.onRequestPermissionsResult(1, new String[]{STORAGE}, new int[]{PackageManager.PERMISSION_GRANTED});
+        assertEquals(1, mListener.results.size());
+    }
+
+    @Test
+    public void destroyBeforeRequest_doesNotInterrupt() throws Exception {
+        Request request = runRequest();
+
+        mFragmentHost.addedFragment().onDestroy();
+
+        assertTrue(mListener.results.isEmpty());
+        assertEquals(Request.STATE_BEFORE_REQUEST, request.getState());
+    }
+
+    @Test
+    public void recreatedAfterProcessDeath_deliversResultWithoutRequestingAgain() throws Exception {
+        Request request = mManager.createRequestAll(1, false, STORAGE);
+        request.setListener(mListener);
+        request.setState(Request.STATE_REQUESTED);
+
+        PermissionsFragment fragment = new PermissionsFragment();
+        fragment.onCreate(new int[]{1});
+
+        assertEquals(Request.STATE_REQUESTED, request.getState());
+        assertTrue(mBackend.launches.isEmpty());
+
+        mBackend.granted.add(STORAGE);
+        fragment.onRequestPermissionsResult(1, new String[]{STORAGE}, new int[]{PackageManager.PERMISSION_GRANTED});
+
+        assertEquals(Request.RESULT_GRANTED, (int) mListener.results.get(0));
+    }
+
+    private Request runRequest() {
+        Request request = mManager.createRequestAll(1, false, STORAGE);
+        request.setListener(mListener);
+        request.run(new Activity());
+        return request;
+    }
+
+    /**
+     * Keeps the fragment added to the Activity, which can't take fragments while finishing.
+     */
+    private static class FakeFragmentHost implements PermissionsFragment.Host {
+        final List<PermissionsFragment> added = new ArrayList<>();
+        boolean finishing;
+
+        PermissionsFragment addedFragment() {
+            assertEquals(1, added.size());
+            return added.get(0);
+        }
+
+        @Override
+        public boolean canAdd(Activity activity) {
+            return !finishing;
+        }
+
+        @Override
+        public PermissionsFragment find(Activity activity) {
+            return added.isEmpty() ? null : added.get(0);
+        }
+
+        @Override
+        public void add(Activity activity, PermissionsFragment fragment) {
+            added.add(fragment);
+        }
+    }
+}
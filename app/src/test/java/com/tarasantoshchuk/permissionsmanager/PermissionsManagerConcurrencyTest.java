@@ -0,0 +1,258 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class PermissionsManagerConcurrencyTest {
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 20000;
+    private static final int REQUEST_CODES = 32;
+
+    private static final String[] PERMISSIONS = {
+            "android.permission.WRITE_EXTERNAL_STORAGE",
+            "android.permission.READ_CONTACTS"
+    };
+    private static final String CAMERA = "android.permission.CAMERA";
+
+    private PermissionsManager mManager;
+    /**
+     * Kept, since requests hold their listeners weakly.
+     */
+    private final List<Request.Listener> mListeners = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        PermissionsManager.sInstance = null;
+        mManager = PermissionsManager.init(new FakeContext());
+    }
+
+    @After
+    public void tearDown() {
+        PermissionsManager.sInstance = null;
+    }
+
+    @Test
+    public void tryStart_singleWinner() throws Exception {
+        final Request request = mManager.createRequestAll(1, false, PERMISSIONS);
+        final AtomicInteger started = new AtomicInteger();
+
+        runConcurrently(new Task() {
+            @Override
+            public void run(int thread, Random random) {
+                if (request.tryStart()) {
+                    started.incrementAndGet();
+                }
+            }
+        }, 1);
+
+        assertEquals(1, started.get());
+    }
+
+    @Test
+    public void createRunHandle_stress() throws Exception {
+        final AtomicInteger results = new AtomicInteger();
+        final Request.Listener listener = new Request.Listener() {
+            @Override
+            public boolean onShowRationale() {
+                return true;
+            }
+
+            @Override
+            public void onRequestResult(@Request.Result int result, int requestCode, String... permissions) {
+                results.incrementAndGet();
+            }
+        };
+        final int[] grantResults = {PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_DENIED};
+        final boolean[] shouldShowRationale = {false, true};
+
+        runConcurrently(new Task() {
+            @Override
+            public void run(int thread, Random random) {
+                int requestCode = random.nextInt(REQUEST_CODES);
+
+                switch (random.nextInt(3)) {
+                    case 0:
+                        mManager.createRequestAll(requestCode, random.nextBoolean(), PERMISSIONS).setListener(listener);
+                        break;
+                    case 1:
+                        Request request = mManager.createRequestAll(requestCode, true, PERMISSIONS);
+                        request.setListener(listener);
+                        mManager.runRequest(request, null);
+                        break;
+                    default:
+                        mManager.createRequestAll(requestCode, true, PERMISSIONS).setListener(listener);
+                        mManager.handleRequestResult(requestCode, PERMISSIONS, grantResults, shouldShowRationale);
+                        break;
+                }
+            }
+        }, ITERATIONS);
+
+        assertTrue(results.get() > 0);
+        for (Request request : mManager.mPendingRequests.values()) {
+            assertFalse(request.isRunning());
+        }
+    }
+
+    @Test
+    public void runToResult_marshmallow_stress() throws Exception {
+        final int iterations = 1000;
+        final int grantedPerThread = 3;
+        final int codesPerThread = grantedPerThread + 1;
+
+        final ExecutorService main = Executors.newSingleThreadExecutor();
+        final Thread mainThread = main.submit(new Callable<Thread>() {
+            @Override
+            public Thread call() {
+                return Thread.currentThread();
+            }
+        }).get();
+        mManager.setDispatcher(new MainThreadDispatcher(new MainThreadDispatcher.MainThread() {
+            @Override
+            public boolean isCurrent() {
+                return Thread.currentThread() == mainThread;
+            }
+
+            @Override
+            public void post(Runnable task) {
+                main.execute(task);
+            }
+        }));
+        mManager.setSdkInt(Build.VERSION_CODES.M);
+        FakePermissionBackend backend = new FakePermissionBackend();
+        backend.granted.add(CAMERA);
+        backend.answerOn(mManager, main);
+        mManager.setPermissionBackend(backend);
+
+        final AtomicInteger offMainCallbacks = new AtomicInteger();
+        final List<List<Integer>> callbacks = new ArrayList<>();
+        final List<Semaphore> deniedResults = new ArrayList<>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            final List<Integer> threadCallbacks = new ArrayList<>();
+            final Semaphore deniedResult = new Semaphore(0);
+            callbacks.add(threadCallbacks);
+            deniedResults.add(deniedResult);
+
+            Request.Listener listener = new Request.Listener() {
+                @Override
+                public boolean onShowRationale() {
+                    return true;
+                }
+
+                @Override
+                public void onRequestResult(@Request.Result int result, int requestCode, String... permissions) {
+                    if (Thread.currentThread() != mainThread) {
+                        offMainCallbacks.incrementAndGet();
+                    }
+                    threadCallbacks.add(requestCode % codesPerThread);
+                    threadCallbacks.add(result);
+                    if (result == Request.RESULT_DENIED) {
+                        // the request is reset after this callback returns, so it is handed back
+                        // to the worker from a task that runs after the result handling
+                        main.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                deniedResult.release();
+                            }
+                        });
+                    }
+                }
+            };
+
+            mListeners.add(listener);
+            for (int i = 0; i < codesPerThread; i++) {
+                String[] permissions = i < grantedPerThread ? new String[]{CAMERA} : PERMISSIONS;
+                mManager.createRequestAll(thread * codesPerThread + i, false, permissions).setListener(listener);
+            }
+        }
+
+        runConcurrently(new Task() {
+            @Override
+            public void run(int thread, Random random) throws InterruptedException {
+                // finish right away on this thread, so their callbacks are queued for the main thread
+                for (int i = 0; i < grantedPerThread; i++) {
+                    Request request = mManager.getRequest(thread * codesPerThread + i);
+                    mManager.runRequest(request, null);
+                }
+
+                // launched, possibly attached to a launch of another thread, and answered on the main thread
+                mManager.runRequest(mManager.getRequest(thread * codesPerThread + grantedPerThread), null);
+                deniedResults.get(thread).acquire();
+            }
+        }, iterations);
+
+        main.shutdown();
+        assertTrue(main.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(0, offMainCallbacks.get());
+        for (List<Integer> threadCallbacks : callbacks) {
+            assertEquals(iterations * codesPerThread * 2, threadCallbacks.size());
+            for (int i = 0; i < threadCallbacks.size(); i += 2) {
+                int index = i / 2 % codesPerThread;
+                assertEquals(index, (int) threadCallbacks.get(i));
+                assertEquals(index < grantedPerThread ? Request.RESULT_GRANTED : Request.RESULT_DENIED, (int) threadCallbacks.get(i + 1));
+            }
+        }
+        for (Request request : mManager.mPendingRequests.values()) {
+            assertFalse(request.isRunning());
+        }
+        assertEquals(0, mManager.getLaunchQueueDepth());
+    }
+
+    private interface Task {
+        void run(int thread, Random random) throws InterruptedException;
+    }
+
+    private static void runConcurrently(final Task task, final int iterations) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(thread);
+                    try {
+                        start.await();
+                        for (int j = 0; j < iterations; j++) {
+                            task.run(thread, random);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.app.Activity;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Kills a request run at every state transition, with every earlier transition synced to the
+ * journal, and checks that a manager started anew restores the request, times it out if it was
+ * running, and runs it again.
+ */
+public class PermissionsManagerCrashTest {
+    private static final String STORAGE = "android.permission.WRITE_EXTERNAL_STORAGE";
+
+    /**
+     * States a run with rationale goes through, in order.
+     */
+    private static final int[] LIFECYCLE = {
+            Request.STATE_INIT,
+            Request.STATE_STARTED,
+            Request.STATE_RATIONALE,
+            Request.STATE_BEFORE_REQUEST,
+            Request.STATE_REQUESTED,
+            Request.STATE_FINISHED,
+            Request.STATE_INIT
+    };
+
+    private File mDir;
+    private PermissionsManagerTest.RecordingListener mListener;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("files", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+        Trace.setLevel(Trace.LEVEL_INFO);
+    }
+
+    @After
+    public void tearDown() {
+        PermissionsManager.sInstance = null;
+        Trace.setLevel(Trace.LEVEL_OFF);
+        Trace.clear();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void crashAtEveryTransition_restartRecoversAndRunsAgain() throws Exception {
+        for (int transition = 1; transition < LIFECYCLE.length; transition++) {
+            File files = new File(mDir, "crash" + transition);
+            assertTrue(files.mkdir());
+            String message = "crash at transition to " + LIFECYCLE[transition];
+
+            runUntilCrash(files, transition);
+
+            Trace.clear();
+            FakePermissionBackend backend = new FakePermissionBackend();
+            PermissionsManager manager = start(files, backend);
+            Request restored = manager.createRequestAll(1, true, STORAGE);
+
+            // the state before the crash was restored, and timed out if the request was running
+            @Request.State int lastSynced = LIFECYCLE[transition - 1];
+            assertEquals(message, STORAGE, restored.requestedPermissions.get(0));
+            assertEquals(message, Request.STATE_INIT, restored.getState());
+            assertEquals(message, lastSynced != Request.STATE_INIT,
+                    dumpTrace().contains("orphanTimeout, requestCode 1, state " + lastSynced));
+
+            PermissionsManagerTest.RecordingListener listener = new PermissionsManagerTest.RecordingListener();
+            restored.setListener(listener);
+            restored.run(new Activity());
+            assertEquals(message, 1, backend.launches.size());
+
+            manager.onPermissionsRequested(PermissionsManager.LAUNCH_STRATEGY_SHADOW_ACTIVITY, 1);
+            manager.handleRequestResult(1, new String[]{STORAGE}, new int[]{PackageManager.PERMISSION_GRANTED}, new boolean[]{false});
+
+            assertEquals(message, Request.RESULT_GRANTED, (int) listener.results.get(0));
+            assertFalse(message, restored.isRunning());
+        }
+    }
+
+    /**
+     * Runs the request through {@link #LIFECYCLE}, and crashes right before the given transition
+     * is made, once earlier ones are synced.
+     */
+    private void runUntilCrash(File files, int transition) {
+        FakePermissionBackend backend = new FakePermissionBackend();
+        backend.showRationale.add(STORAGE);
+        PermissionsManager manager = start(files, backend);
+        manager.setMetrics(new CrashingMetrics(manager, transition));
+
+        Request request = manager.createRequestAll(1, false, STORAGE);
+        mListener = new PermissionsManagerTest.RecordingListener();
+        request.setListener(mListener);
+        try {
+            request.run(new Activity());
+            manager.onPermissionsRequested(PermissionsManager.LAUNCH_STRATEGY_SHADOW_ACTIVITY, 1);
+            manager.handleRequestResult(1, new String[]{STORAGE}, new int[]{PackageManager.PERMISSION_DENIED}, new boolean[]{true});
+            fail("no crash at transition " + transition);
+        } catch (Crash e) {
+            // the process is dead from here on, its manager is abandoned
+        }
+    }
+
+    private static PermissionsManager start(File files, FakePermissionBackend backend) {
+        // preferences are lost with the process, so only the journal has the state
+        FakeContext context = new FakeContext();
+        context.filesDir = files;
+        PermissionsManager.sInstance = null;
+        PermissionsManager manager = PermissionsManager.init(context);
+        manager.setSdkInt(Build.VERSION_CODES.M);
+        manager.setPermissionBackend(backend);
+        manager.setOrphanTimeout(0);
+        return manager;
+    }
+
+    private static String dumpTrace() {
+        StringWriter trace = new StringWriter();
+        Trace.dump(new PrintWriter(trace));
+        return trace.toString();
+    }
+
+    private static final class Crash extends RuntimeException {
+    }
+
+    /**
+     * Reports state transitions before they are persisted, so it crashes the run right there.
+     */
+    private static final class CrashingMetrics implements PermissionsMetrics {
+        private final PermissionsManager mManager;
+        private int mTransitionsLeft;
+
+        CrashingMetrics(PermissionsManager manager, int transition) {
+            mManager = manager;
+            mTransitionsLeft = transition;
+        }
+
+        @Override
+        public void onStateTransition(int requestCode, @Request.State int fromState, @Request.State int toState, long durationNanos) {
+            if (--mTransitionsLeft == 0) {
+                mManager.mStore.syncJournal();
+                throw new Crash();
+            }
+        }
+
+        @Override
+        public void onPermissionsRequested(int requestCode, @PermissionsManager.LaunchStrategy int strategy, long durationNanos) {
+        }
+
+        @Override
+        public void onLaunchCompleted(int requestCode, long durationNanos) {
+        }
+
+        @Override
+        public void onPersistenceFlush(int changeCount, long durationNanos) {
+        }
+
+        @Override
+        public void onRequestFinished(int requestCode, @Request.Result int result) {
+        }
+
+        @Override
+        public void onLaunchStarted(int requestCode, long waitNanos, int queueDepth) {
+        }
+
+        @Override
+        public void onLaunchTimedOut(int requestCode) {
+        }
+
+        @Override
+        public void onRequestsEvicted(int count) {
+        }
+    }
+}
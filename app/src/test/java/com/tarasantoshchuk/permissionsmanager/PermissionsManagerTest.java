@@ -0,0 +1,594 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.app.Activity;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class PermissionsManagerTest {
+    private static final String STORAGE = "android.permission.WRITE_EXTERNAL_STORAGE";
+    private static final String CONTACTS = "android.permission.READ_CONTACTS";
+    private static final String CAMERA = "android.permission.CAMERA";
+
+    private FakeContext mContext;
+    private PermissionsManager mManager;
+    /**
+     * Kept, since requests hold their listeners weakly.
+     */
+    private RecordingListener mListener;
+
+    @Before
+    public void setUp() {
+        PermissionsManager.sInstance = null;
+        mContext = new FakeContext();
+        mManager = PermissionsManager.init(mContext);
+        mListener = new RecordingListener();
+    }
+
+    @After
+    public void tearDown() {
+        PermissionsManager.sInstance = null;
+    }
+
+    @Test
+    public void overlappingRequest_attachesToInFlightRequest() throws Exception {
+        Request first = mManager.createRequestAll(1, false, STORAGE, CONTACTS);
+        Request second = mManager.createRequestAll(2, false, STORAGE);
+        RecordingListener firstListener = new RecordingListener();
+        RecordingListener secondListener = new RecordingListener();
+        first.setListener(firstListener);
+        second.setListener(secondListener);
+
+        mManager.proceedRequest(first);
+        mManager.proceedRequest(second);
+
+        assertEquals(1, mContext.startedActivities.get());
+        assertEquals(Request.STATE_REQUESTED, second.getState());
+
+        mManager.handleRequestResult(1, new String[]{STORAGE, CONTACTS},
+                new int[]{PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_DENIED},
+                new boolean[]{false, true});
+
+        assertEquals(Request.RESULT_DENIED, (int) firstListener.results.get(0));
+        assertEquals(Request.RESULT_GRANTED, (int) secondListener.results.get(0));
+        assertFalse(second.isRunning());
+    }
+
+    @Test
+    public void disjointRequest_launchedSeparately() throws Exception {
+        mManager.proceedRequest(mManager.createRequestAll(1, false, STORAGE));
+        mManager.proceedRequest(mManager.createRequestAll(2, false, CONTACTS));
+
+        // second launch waits for the first one's result
+        assertEquals(1, mContext.startedActivities.get());
+        assertEquals(1, mManager.getLaunchQueueDepth());
+
+        mManager.handleRequestResult(1, new String[]{STORAGE}, new int[]{PackageManager.PERMISSION_GRANTED}, new boolean[]{false});
+
+        assertEquals(2, mContext.startedActivities.get());
+        assertEquals(0, mManager.getLaunchQueueDepth());
+    }
+
+    @Test
+    public void partiallyOverlappingRequest_launchedWithAllPermissions() throws Exception {
+        Request first = mManager.createRequestAll(1, false, STORAGE);
+        Request second = mManager.createRequestAll(2, false, STORAGE, CONTACTS);
+        mManager.proceedRequest(first);
+        mManager.proceedRequest(second);
+
+        // not attached, only subset coverage is coalesced
+        assertEquals(Request.STATE_BEFORE_REQUEST, second.getState());
+        assertEquals(1, mManager.getLaunchQueueDepth());
+
+        mManager.handleRequestResult(1, new String[]{STORAGE}, new int[]{PackageManager.PERMISSION_GRANTED}, new boolean[]{false});
+
+        assertEquals(2, mContext.startedActivities.get());
+        assertEquals("[" + STORAGE + ", " + CONTACTS + "]", Arrays.toString(mManager.getPermissions(2)));
+    }
+
+    @Test
+    public void queryStatus_preMarshmallow_allGranted() throws Exception {
+        PermissionStatusVector statuses = mManager.queryStatus(STORAGE, CONTACTS);
+
+        assertEquals(2, statuses.size());
+        assertTrue(statuses.isAllGranted());
+        assertEquals(0, mContext.startedActivities.get());
+        assertTrue(mContext.prefs.getAll().isEmpty());
+    }
+
+    @Test
+    public void queryStatus_marshmallow_remembersDenials() throws Exception {
+        FakePermissionBackend backend = new FakePermissionBackend();
+        backend.granted.add(STORAGE);
+        mManager.setPermissionBackend(backend);
+        mManager.setSdkInt(Build.VERSION_CODES.M);
+
+        assertStatuses(mManager.queryStatus(STORAGE, CONTACTS, CAMERA),
+                PermissionStatusVector.STATUS_GRANTED, PermissionStatusVector.STATUS_UNKNOWN, PermissionStatusVector.STATUS_UNKNOWN);
+
+        Request request = mManager.createRequestEach(1, CONTACTS, CAMERA);
+        request.setListener(mListener);
+        mManager.proceedRequest(request);
+        mManager.handleRequestResult(1, new String[]{CONTACTS, CAMERA},
+                new int[]{PackageManager.PERMISSION_DENIED, PackageManager.PERMISSION_DENIED},
+                new boolean[]{false, true});
+
+        // known without an Activity from the last denial
+        assertStatuses(mManager.queryStatus(STORAGE, CONTACTS, CAMERA),
+                PermissionStatusVector.STATUS_GRANTED, PermissionStatusVector.STATUS_DENIED_FOREVER, PermissionStatusVector.STATUS_RATIONALE);
+    }
+
+    @Test
+    public void queryStatus_marshmallow_asksActivityForRationale() throws Exception {
+        FakePermissionBackend backend = new FakePermissionBackend();
+        backend.showRationale.add(CONTACTS);
+        mManager.setPermissionBackend(backend);
+        mManager.setSdkInt(Build.VERSION_CODES.M);
+        Activity activity = new Activity();
+
+        assertStatuses(mManager.queryStatus(activity, CONTACTS, CAMERA),
+                PermissionStatusVector.STATUS_RATIONALE, PermissionStatusVector.STATUS_UNKNOWN);
+
+        Request request = mManager.createRequestAll(1, false, CAMERA);
+        request.setListener(mListener);
+        mManager.proceedRequest(request);
+        mManager.handleRequestResult(1, new String[]{CAMERA}, new int[]{PackageManager.PERMISSION_DENIED}, new boolean[]{true});
+
+        // the Activity no longer asks for rationale, e.g. it was reset in settings
+        assertStatuses(mManager.queryStatus(activity, CAMERA), PermissionStatusVector.STATUS_UNKNOWN);
+        assertStatuses(mManager.queryStatus(CAMERA), PermissionStatusVector.STATUS_RATIONALE);
+    }
+
+    private static void assertStatuses(PermissionStatusVector statuses, int... expected) {
+        assertEquals(expected.length, statuses.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("status " + i, expected[i], statuses.get(i));
+        }
+    }
+
+    @Test
+    public void eachMode_partialGrant_resultsInRequestOrder() throws Exception {
+        Request request = mManager.createRequestEach(1, STORAGE, CONTACTS, CAMERA);
+        RecordingEachListener listener = new RecordingEachListener();
+        request.setListener(listener);
+
+        mManager.proceedRequest(request);
+        // results come in another order than requested
+        mManager.handleRequestResult(1, new String[]{CAMERA, STORAGE, CONTACTS},
+                new int[]{PackageManager.PERMISSION_DENIED, PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_DENIED},
+                new boolean[]{true, false, false});
+
+        assertEquals(Request.RESULT_DENIED_FOREVER, (int) listener.results.get(0));
+        assertEquals("[" + STORAGE + ", " + CONTACTS + ", " + CAMERA + "]", listener.eachPermissions.get(0));
+        assertArrayEquals(new int[]{Request.RESULT_GRANTED, Request.RESULT_DENIED_FOREVER, Request.RESULT_DENIED},
+                listener.eachResults.get(0));
+        assertFalse(request.isRunning());
+    }
+
+    @Test
+    public void eachMode_addedListener_getsResultsPerPermission() throws Exception {
+        Request request = mManager.createRequestEach(1, STORAGE, CONTACTS, CAMERA);
+        RecordingEachListener listener = new RecordingEachListener();
+        request.addListener(new Activity(), listener);
+
+        mManager.proceedRequest(request);
+        // CAMERA is missing from the results, as when the dialog was interrupted
+        mManager.handleRequestResult(1, new String[]{STORAGE, CONTACTS},
+                new int[]{PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_DENIED},
+                new boolean[]{false, true});
+
+        assertEquals(Request.RESULT_DENIED, (int) listener.results.get(0));
+        assertEquals("[" + STORAGE + ", " + CONTACTS + ", " + CAMERA + "]", listener.eachPermissions.get(0));
+        assertArrayEquals(new int[]{Request.RESULT_GRANTED, Request.RESULT_DENIED, Request.RESULT_DENIED},
+                listener.eachResults.get(0));
+
+        // a new run starts from clean results
+        request.proceed();
+        mManager.handleRequestResult(1, new String[]{STORAGE, CONTACTS, CAMERA},
+                new int[]{PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_GRANTED},
+                new boolean[]{false, false, false});
+
+        assertEquals(Request.RESULT_GRANTED, (int) listener.results.get(1));
+        assertArrayEquals(new int[]{Request.RESULT_GRANTED, Request.RESULT_GRANTED, Request.RESULT_GRANTED},
+                listener.eachResults.get(1));
+    }
+
+    @Test
+    public void batchWindow_coalescesLaunches_missingPermissionDenied() throws Exception {
+        FakePermissionBackend backend = new FakePermissionBackend();
+        mManager.setPermissionBackend(backend);
+        mManager.setSdkInt(Build.VERSION_CODES.M);
+        mManager.setLaunchBatchWindow(100);
+        Request first = mManager.createRequestAll(1, false, STORAGE);
+        Request second = mManager.createRequestAll(2, false, CONTACTS);
+        RecordingListener firstListener = new RecordingListener();
+        RecordingListener secondListener = new RecordingListener();
+        first.setListener(firstListener);
+        second.setListener(secondListener);
+        Activity activity = new Activity();
+
+        first.run(activity);
+        second.run(activity);
+        assertTrue(backend.launches.isEmpty());
+
+        // batching window elapsed
+        mManager.launchBatch();
+        assertEquals(1, backend.launches.size());
+        assertArrayEquals(new int[]{1, 2}, backend.lastLaunch());
+        assertArrayEquals(new String[]{STORAGE, CONTACTS}, mManager.getPermissions(1, 2));
+
+        // the dialog was interrupted before CONTACTS was answered
+        mManager.onPermissionsRequested(PermissionsManager.LAUNCH_STRATEGY_SHADOW_ACTIVITY, 1, 2);
+        mManager.handleBatchResult(new int[]{1, 2}, new String[]{STORAGE},
+                new int[]{PackageManager.PERMISSION_GRANTED}, new boolean[]{false});
+
+        assertEquals(1, firstListener.results.size());
+        assertEquals(Request.RESULT_GRANTED, (int) firstListener.results.get(0));
+        assertEquals(1, secondListener.results.size());
+        assertEquals(Request.RESULT_DENIED, (int) secondListener.results.get(0));
+        assertFalse(first.isRunning());
+        assertFalse(second.isRunning());
+        assertFalse(mManager.isLaunchInFlight(backend.launchIds.get(0)));
+    }
+
+    @Test
+    public void foreground_invalidatesPermissionCache() throws Exception {
+        mManager.setSdkInt(Build.VERSION_CODES.M);
+        PermissionCache cache = mManager.getPermissionCache();
+
+        mManager.queryStatus(STORAGE);
+        mManager.queryStatus(STORAGE);
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+
+        mManager.onForeground();
+        mManager.queryStatus(STORAGE);
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void metrics_recordLifecycle() throws Exception {
+        InMemoryPermissionsMetrics metrics = new InMemoryPermissionsMetrics();
+        mManager.setMetrics(metrics);
+        Request request = mManager.createRequestAll(1, false, STORAGE);
+        request.setListener(mListener);
+
+        mManager.proceedRequest(request);
+        mManager.handleRequestResult(1, new String[]{STORAGE}, new int[]{PackageManager.PERMISSION_GRANTED}, new boolean[]{false});
+
+        InMemoryPermissionsMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.getTimeInState(Request.STATE_INIT).getCount());
+        assertEquals(1, snapshot.getTimeInState(Request.STATE_BEFORE_REQUEST).getCount());
+        assertEquals(1, snapshot.getTimeInState(Request.STATE_FINISHED).getCount());
+        assertEquals(1, snapshot.getLaunchLatency().getCount());
+        assertEquals(1, snapshot.getResultCount(Request.RESULT_GRANTED));
+    }
+
+    @Test
+    public void eviction_leastRecentlyUsedOverLimit() throws Exception {
+        InMemoryPermissionsMetrics metrics = new InMemoryPermissionsMetrics();
+        mManager.setMetrics(metrics);
+        mManager.setMaxRequests(2);
+
+        Request first = mManager.createRequestAll(1, false, STORAGE);
+        mManager.createRequestAll(2, false, STORAGE);
+        first.setListener(mListener);
+        mManager.createRequestAll(3, false, STORAGE);
+
+        assertEquals(2, mManager.mPendingRequests.size());
+        assertNull(mManager.mPendingRequests.get(2));
+        assertSame(first, mManager.mPendingRequests.get(1));
+        assertEquals(1, metrics.snapshot().getEvictedCount());
+
+        mManager.saveState();
+        assertFalse(mContext.prefs.contains(RequestStore.key(2)));
+        assertTrue(mContext.prefs.contains(RequestStore.key(3)));
+    }
+
+    @Test
+    public void eviction_finishedTtl_skipsRunning() throws Exception {
+        mManager.setFinishedRequestTtl(1000);
+        Request finished = mManager.createRequestAll(1, false, STORAGE);
+        Request running = mManager.createRequestAll(2, false, CONTACTS);
+        finished.setListener(mListener);
+
+        mManager.proceedRequest(finished);
+        mManager.handleRequestResult(1, new String[]{STORAGE}, new int[]{PackageManager.PERMISSION_GRANTED}, new boolean[]{false});
+        mManager.proceedRequest(running);
+
+        long finishedAt = finished.getFinishedAt();
+        assertEquals(0, mManager.mEvictor.evict(finishedAt + 999));
+        assertEquals(1, mManager.mEvictor.evict(finishedAt + 1000));
+        assertNull(mManager.mPendingRequests.get(1));
+        assertSame(running, mManager.mPendingRequests.get(2));
+    }
+
+    @Test
+    public void eviction_countsAndRemovesUnrestoredRequests() throws Exception {
+        mManager.setSdkInt(Build.VERSION_CODES.M);
+        for (int requestCode = 1; requestCode <= 3; requestCode++) {
+            mManager.createRequestAll(requestCode, false, STORAGE);
+        }
+        mManager.saveState();
+
+        PermissionsManager.sInstance = null;
+        mManager = PermissionsManager.init(mContext);
+        mManager.setSdkInt(Build.VERSION_CODES.M);
+        InMemoryPermissionsMetrics metrics = new InMemoryPermissionsMetrics();
+        mManager.setMetrics(metrics);
+        mManager.setMaxRequests(2);
+
+        mManager.createRequestAll(4, false, STORAGE);
+        mManager.saveState();
+
+        assertEquals(2, metrics.snapshot().getEvictedCount());
+        assertTrue(mContext.prefs.contains(RequestStore.key(4)));
+        int persisted = 0;
+        for (int requestCode = 1; requestCode <= 3; requestCode++) {
+            persisted += mContext.prefs.contains(RequestStore.key(requestCode)) ? 1 : 0;
+        }
+        assertEquals(1, persisted);
+    }
+
+    @Test
+    public void evictedRequest_registeredAgainOnRun() throws Exception {
+        Request request = mManager.createRequestAll(1, false, STORAGE);
+        mManager.setMaxRequests(1);
+        mManager.createRequestAll(2, false, CONTACTS);
+        assertNull(mManager.mPendingRequests.get(1));
+
+        request.setListener(mListener);
+        mManager.runRequest(request, null);
+
+        assertSame(request, mManager.mPendingRequests.get(1));
+    }
+
+    @Test
+    public void permissionStates_publishedFromResults() throws Exception {
+        PermissionStateStreamTest.RecordingSubscriber subscriber = new PermissionStateStreamTest.RecordingSubscriber();
+        mManager.setResultExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        mManager.getPermissionStates().subscribe(subscriber);
+        Request request = mManager.createRequestEach(1, STORAGE, CONTACTS);
+        request.setListener(mListener);
+
+        mManager.proceedRequest(request);
+        mManager.handleRequestResult(1, new String[]{STORAGE, CONTACTS},
+                new int[]{PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_DENIED},
+                new boolean[]{false, false});
+
+        assertEquals("[" + STORAGE + "=0, " + CONTACTS + "=3]", subscriber.events.toString());
+    }
+
+    @Test
+    public void fragmentStrategy_fallsBackToShadowActivity() throws Exception {
+        InMemoryPermissionsMetrics metrics = new InMemoryPermissionsMetrics();
+        mManager.setMetrics(metrics);
+        mManager.setLaunchStrategy(PermissionsManager.LAUNCH_STRATEGY_FRAGMENT);
+        Request request = mManager.createRequestAll(1, false, STORAGE);
+        request.setListener(mListener);
+        request.run(new Activity());
+
+        mManager.proceedRequest(request);
+        mManager.onPermissionsRequested(PermissionsManager.LAUNCH_STRATEGY_SHADOW_ACTIVITY, 1);
+
+        assertEquals(1, mContext.startedActivities.get());
+        assertEquals(Request.STATE_REQUESTED, request.getState());
+        assertEquals(1, metrics.snapshot().getRequestLatency(PermissionsManager.LAUNCH_STRATEGY_SHADOW_ACTIVITY).getCount());
+    }
+
+    @Test
+    public void timeOut_resetsOnlyUnchangedRequest() throws Exception {
+        Request request = mManager.createRequestAll(1, false, STORAGE);
+        request.setState(Request.STATE_REQUESTED);
+
+        assertFalse(request.timeOut(Request.STATE_STARTED));
+        assertTrue(request.isRunning());
+
+        assertTrue(request.timeOut(Request.STATE_REQUESTED));
+        assertFalse(request.isRunning());
+        assertTrue(request.tryStart());
+    }
+
+    @Test
+    public void journal_restoredRequestedRequest_timesOut() throws Exception {
+        File dir = File.createTempFile("files", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        try {
+            mContext.filesDir = dir;
+            PermissionsManager.sInstance = null;
+            mManager = PermissionsManager.init(mContext);
+            mManager.createRequestAll(1, false, STORAGE).setState(Request.STATE_REQUESTED);
+            mManager.mStore.syncJournal();
+
+            // preferences are flushed later, so only the journal has the change
+            FakeContext restarted = new FakeContext();
+            restarted.filesDir = dir;
+            PermissionsManager.sInstance = null;
+            mManager = PermissionsManager.init(restarted);
+            mManager.setSdkInt(Build.VERSION_CODES.M);
+            mManager.setOrphanTimeout(0);
+            Trace.setLevel(Trace.LEVEL_INFO);
+
+            Request restored = mManager.createRequestAll(1, true, CONTACTS);
+            assertEquals(STORAGE, restored.requestedPermissions.get(0));
+            assertEquals(Request.STATE_INIT, restored.getState());
+
+            StringWriter trace = new StringWriter();
+            Trace.dump(new PrintWriter(trace));
+            assertTrue(trace.toString(), trace.toString().contains("orphanTimeout, requestCode 1, state " + Request.STATE_REQUESTED));
+        } finally {
+            Trace.setLevel(Trace.LEVEL_OFF);
+            Trace.clear();
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void addedListeners_notifiedUntilOwnerDestroyed() throws Exception {
+        Request request = mManager.createRequestAll(1, false, STORAGE);
+        Activity first = new Activity();
+        Activity second = new Activity();
+        RecordingListener firstListener = new RecordingListener();
+        RecordingListener secondListener = new RecordingListener();
+        RecordingListener primaryListener = new RecordingListener();
+        request.addListener(first, firstListener);
+        request.addListener(second, secondListener);
+        request.setListener(primaryListener);
+
+        request.setResult(Request.RESULT_GRANTED);
+        request.setState(Request.STATE_FINISHED);
+        mManager.removeListenersOwnedBy(first);
+        request.setState(Request.STATE_INIT);
+        request.setState(Request.STATE_FINISHED);
+
+        assertEquals(1, firstListener.results.size());
+        assertEquals(2, secondListener.results.size());
+        assertEquals(2, primaryListener.results.size());
+
+        // a listener added later gets only the missed result
+        RecordingListener lateListener = new RecordingListener();
+        request.addListener(second, lateListener);
+        assertEquals(1, lateListener.results.size());
+        assertEquals(2, secondListener.results.size());
+    }
+
+    @Test
+    public void addedListeners_proceedAfterRationaleOnlyIfAllAgree() throws Exception {
+        Request request = mManager.createRequestAll(1, false, STORAGE);
+        Activity activity = new Activity();
+        Request.Listener showingRationale = new RecordingListener() {
+            @Override
+            public boolean onShowRationale() {
+                return false;
+            }
+        };
+        request.addListener(activity, mListener);
+        request.addListener(activity, showingRationale);
+
+        request.setState(Request.STATE_RATIONALE);
+        assertEquals(Request.STATE_RATIONALE, request.getState());
+
+        request.removeListener(showingRationale);
+        request.setState(Request.STATE_RATIONALE);
+        assertFalse(request.getState() == Request.STATE_RATIONALE);
+    }
+
+    @Test
+    public void addedListener_ofFinishingActivity_isDropped() throws Exception {
+        Request request = mManager.createRequestAll(1, false, STORAGE);
+        Activity finishing = new Activity() {
+            @Override
+            public boolean isFinishing() {
+                return true;
+            }
+        };
+        RecordingListener listener = new RecordingListener();
+        request.addListener(finishing, listener);
+
+        request.setState(Request.STATE_FINISHED);
+
+        assertTrue(listener.results.isEmpty());
+        assertFalse(request.removeListenersOwnedBy(finishing));
+    }
+
+    @Test
+    public void listenersCapturingActivity_doNotKeepItAlive() throws Exception {
+        Request request = mManager.createRequestAll(1, false, STORAGE);
+        WeakReference<Activity> activity = bindCapturingListeners(request);
+
+        for (int i = 0; i < 100 && activity.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(activity.get());
+
+        // collected listeners are dropped on dispatch
+        request.setState(Request.STATE_FINISHED);
+        assertFalse(request.removeListenersOwnedBy(null));
+    }
+
+    /**
+     * Binds listeners, that capture their Activity, and forgets both, like a destroyed Activity,
+     * that didn't stop the request.
+     */
+    private static WeakReference<Activity> bindCapturingListeners(Request request) {
+        final Activity activity = new Activity();
+        Request.Listener listener = new RecordingListener() {
+            @Override
+            public boolean onShowRationale() {
+                return !activity.isFinishing();
+            }
+        };
+        request.setListener(listener);
+        request.addListener(activity, listener);
+        return new WeakReference<>(activity);
+    }
+
+    @Test
+    public void undeclaredPermission_isRejectedAndNeverGranted() throws Exception {
+        mManager.setDeclaredPermissions(DeclaredPermissions.of(STORAGE));
+
+        try {
+            mManager.createRequestAll(1, false, STORAGE, CONTACTS);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+
+        assertTrue(mManager.isDeclared(STORAGE));
+        assertFalse(mManager.isDeclared(CONTACTS));
+
+        // before M declared permissions are granted at install
+        PermissionStatusVector statuses = mManager.queryStatus(STORAGE, CONTACTS);
+        assertEquals(PermissionStatusVector.STATUS_GRANTED, statuses.get(0));
+        assertEquals(PermissionStatusVector.STATUS_DENIED_FOREVER, statuses.get(1));
+    }
+
+    static class RecordingEachListener extends RecordingListener implements Request.EachListener {
+        final List<String> eachPermissions = new ArrayList<>();
+        final List<int[]> eachResults = new ArrayList<>();
+
+        @Override
+        public void onRequestEachResult(int requestCode, String[] permissions, int[] results) {
+            eachPermissions.add(Arrays.toString(permissions));
+            // valid only during the call
+            eachResults.add(results.clone());
+        }
+    }
+
+    static class RecordingListener implements Request.Listener {
+        final List<Integer> results = new ArrayList<>();
+
+        @Override
+        public boolean onShowRationale() {
+            return true;
+        }
+
+        @Override
+        public void onRequestResult(@Request.Result int result, int requestCode, String... permissions) {
+            results.add(result);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RequestCodecTest {
+    @Test
+    public void encodeDecode_roundTrip() throws Exception {
+        Request request = new Request(0x7f0b0055, Request.REQUEST_MODE_ALL, Request.STATE_REQUESTED, new String[]{
+                "android.permission.WRITE_EXTERNAL_STORAGE",
+                "com.example.permission.CUSTOM"
+        });
+
+        Request decoded = RequestCodec.decode(RequestCodec.encode(request));
+
+        assertNotNull(decoded);
+        assertEquals(request.requestCode, decoded.requestCode);
+        assertEquals(request.requestMode, decoded.requestMode);
+        assertEquals(request.getState(), decoded.getState());
+        assertEquals(request.requestedPermissions, decoded.requestedPermissions);
+        assertEquals(-1, decoded.getFinishedAt());
+    }
+
+    @Test
+    public void encodeDecode_keepsFinishTime() throws Exception {
+        Request request = new Request(1, Request.REQUEST_MODE_ALL, new String[]{"android.permission.CAMERA"});
+        request.setFinishedAt(1500000000123L);
+
+        assertEquals(1500000000123L, RequestCodec.decode(RequestCodec.encode(request)).getFinishedAt());
+    }
+
+    @Test
+    public void encodeDecode_dictionary() throws Exception {
+        PermissionDictionary dictionary = new PermissionDictionary();
+        Request request = new Request(1, Request.REQUEST_MODE_EACH, new String[]{
+                "com.example.permission.FIRST",
+                "android.permission.CAMERA",
+                "com.example.permission.SECOND"
+        });
+
+        String encoded = RequestCodec.encode(request, dictionary);
+        PermissionDictionary restored = PermissionDictionary.parse(dictionary.serialize());
+
+        assertEquals(request.requestedPermissions, RequestCodec.decode(encoded, restored).requestedPermissions);
+        assertNull(RequestCodec.decode(encoded, new PermissionDictionary()));
+        assertTrue(encoded.length() < RequestCodec.encode(request).length());
+    }
+
+    @Test
+    public void decode_version1() throws Exception {
+        // version 1, request code 5, mode each, state finished, 2 permissions: CAMERA (id 2) and inline "ab"
+        byte[] bytes = {RequestCodec.VERSION_1, 5, Request.REQUEST_MODE_EACH, Request.STATE_FINISHED, 2, 2 << 1, 2 << 1 | 1, 'a', 'b'};
+
+        Request decoded = RequestCodec.decodeBytes(bytes, null);
+
+        assertEquals(5, decoded.requestCode);
+        assertEquals(Request.STATE_FINISHED, decoded.getState());
+        assertEquals(Arrays.asList("android.permission.CAMERA", "ab"), decoded.requestedPermissions);
+    }
+
+    @Test
+    public void store_persistsDictionaryOnce() throws Exception {
+        FakeSharedPreferences prefs = new FakeSharedPreferences();
+        RequestStore store = new RequestStore(prefs);
+        store.markDirty(new Request(1, Request.REQUEST_MODE_ALL, new String[]{"com.example.permission.CUSTOM"}));
+        store.markDirty(new Request(2, Request.REQUEST_MODE_ALL, new String[]{"com.example.permission.CUSTOM", "android.permission.CAMERA"}));
+        store.flush();
+
+        assertEquals("com.example.permission.CUSTOM", prefs.getString(RequestStore.PREFS_KEY_PERMISSION_DICTIONARY, null));
+
+        List<Request> restored = new RequestStore(prefs).readAll();
+        assertEquals(2, restored.size());
+        for (Request request : restored) {
+            assertEquals("com.example.permission.CUSTOM", request.requestedPermissions.get(0));
+        }
+    }
+
+    @Test
+    public void store_readsIndexWithoutScanningPreferences() throws Exception {
+        FakeSharedPreferences prefs = new FakeSharedPreferences();
+        RequestStore store = new RequestStore(prefs);
+        store.markDirty(new Request(1, Request.REQUEST_MODE_ALL, new String[0]));
+        store.markDirty(new Request(2, Request.REQUEST_MODE_ALL, new String[0]));
+        store.flush();
+        store.markRemoved(1);
+        store.flush();
+        int getAllCount = prefs.getGetAllCount();
+
+        assertEquals(Collections.singleton(2), new RequestStore(prefs).readIndex());
+        assertEquals(getAllCount, prefs.getGetAllCount());
+    }
+
+    @Test
+    public void store_buildsIndexOnceForEntriesWithoutIt() throws Exception {
+        FakeSharedPreferences prefs = new FakeSharedPreferences();
+        prefs.edit()
+                .putString(RequestStore.key(3), RequestCodec.encode(new Request(3, Request.REQUEST_MODE_ALL, new String[0])))
+                .apply();
+
+        assertEquals(Collections.singleton(3), new RequestStore(prefs).readIndex());
+        assertEquals(Collections.singleton(3), new RequestStore(prefs).readIndex());
+        assertEquals(1, prefs.getGetAllCount());
+    }
+
+    @Test
+    public void permissionTable_internsNames() throws Exception {
+        String permission = new String("com.example.permission.INTERNED");
+        int id = PermissionTable.intern(permission);
+
+        assertEquals(id, PermissionTable.intern(new String("com.example.permission.INTERNED")));
+        assertSame(permission, PermissionTable.name(id));
+        assertEquals(2, PermissionTable.intern("android.permission.CAMERA"));
+    }
+
+    @Test
+    public void encodeDecode_negativeRequestCode() throws Exception {
+        Request request = new Request(-1, Request.REQUEST_MODE_ALL, new String[0]);
+
+        assertEquals(-1, RequestCodec.decode(RequestCodec.encode(request)).requestCode);
+    }
+
+    @Test
+    public void decode_malformed() throws Exception {
+        assertNull(RequestCodec.decode("not base64!"));
+        assertNull(RequestCodec.decode(RequestCodec.toBase64(new byte[]{RequestCodec.VERSION, 1})));
+        assertNull(RequestCodec.decode(RequestCodec.toBase64(new byte[]{99})));
+    }
+
+    @Test
+    public void decode_invalidCountModeOrState() throws Exception {
+        byte mode = Request.REQUEST_MODE_ALL;
+        byte state = Request.STATE_INIT;
+
+        // negative count, as a 5 byte varint
+        assertNull(RequestCodec.decodeBytes(new byte[]{RequestCodec.VERSION, 1, mode, state, -1, -1, -1, -1, 0x0f}, null));
+        // count larger than the remaining bytes
+        assertNull(RequestCodec.decodeBytes(new byte[]{RequestCodec.VERSION, 1, mode, state, -1, -1, -1, 0x7f, 0}, null));
+        assertNull(RequestCodec.decodeBytes(new byte[]{RequestCodec.VERSION, 1, mode, state, 2, 2 << 2}, null));
+
+        assertNull(RequestCodec.decodeBytes(new byte[]{RequestCodec.VERSION, 1, 7, state, 0}, null));
+        assertNull(RequestCodec.decodeBytes(new byte[]{RequestCodec.VERSION, 1, mode, Request.STATE_FINISHED + 1, 0}, null));
+        assertEquals(-1, RequestCodec.decodeStateBytes(new byte[]{RequestCodec.VERSION, 1, mode, Request.STATE_FINISHED + 1, 0}));
+        assertNotNull(RequestCodec.decodeBytes(new byte[]{RequestCodec.VERSION, 1, mode, state, 0}, null));
+    }
+
+    @Test
+    public void base64_roundTrip() throws Exception {
+        for (int length = 0; length < 10; length++) {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) (i * 97 - 128);
+            }
+
+            assertArrayEquals(bytes, RequestCodec.fromBase64(RequestCodec.toBase64(bytes)));
+        }
+    }
+
+    @Test
+    public void isLegacyJson() throws Exception {
+        assertTrue(RequestCodec.isLegacyJson("{\"requestCode\":1}"));
+        assertFalse(RequestCodec.isLegacyJson(RequestCodec.encode(new Request(1, Request.REQUEST_MODE_ALL, new String[0]))));
+    }
+}
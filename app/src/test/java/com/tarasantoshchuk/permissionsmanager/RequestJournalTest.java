@@ -0,0 +1,363 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+public class RequestJournalTest {
+    private static final String[] PERMISSIONS = {
+            "android.permission.CAMERA",
+            "com.example.permission.CUSTOM"
+    };
+
+    private static final int[] LIFECYCLE = {
+            Request.STATE_STARTED,
+            Request.STATE_BEFORE_REQUEST,
+            Request.STATE_REQUESTED,
+            Request.STATE_FINISHED,
+            Request.STATE_INIT
+    };
+
+    private File mDir;
+    private ScheduledExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("journal", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void replay_restoresLatestChanges() throws Exception {
+        File file = new File(mDir, RequestJournal.FILE_NAME);
+        RequestStore store = newStore(file);
+        store.markDirty(new Request(1, Request.REQUEST_MODE_ALL, Request.STATE_STARTED, PERMISSIONS));
+        store.markDirty(new Request(1, Request.REQUEST_MODE_ALL, Request.STATE_REQUESTED, PERMISSIONS));
+        store.markDirty(new Request(2, Request.REQUEST_MODE_EACH, PERMISSIONS));
+        store.markRemoved(2);
+        store.syncJournal();
+
+        RequestStore restored = newStore(file);
+        Request request = restored.read(1);
+        assertEquals(Request.STATE_REQUESTED, request.getState());
+        assertEquals(PERMISSIONS[1], request.requestedPermissions.get(1));
+        assertNull(restored.read(2));
+        assertTrue(restored.getChangeTime(1) > 0);
+        assertEquals(1, restored.readIndex().size());
+    }
+
+    @Test
+    public void everyPrefixOfJournal_restoresCompletedChange() throws Exception {
+        File file = new File(mDir, RequestJournal.FILE_NAME);
+        RequestStore store = newStore(file);
+
+        List<Long> lengths = new ArrayList<>();
+        for (int state : LIFECYCLE) {
+            store.markDirty(new Request(1, Request.REQUEST_MODE_ALL, state, PERMISSIONS));
+            store.syncJournal();
+            lengths.add(file.length());
+        }
+        byte[] journal = readFile(file);
+
+        File crashed = new File(mDir, "crashed");
+        for (int length = 0; length <= journal.length; length++) {
+            writeFile(crashed, journal, length);
+
+            int synced = 0;
+            while (synced < lengths.size() && lengths.get(synced) <= length) {
+                synced++;
+            }
+
+            Request request = newStore(crashed).read(1);
+            if (synced == 0) {
+                assertNull(request);
+            } else {
+                assertEquals("length " + length, LIFECYCLE[synced - 1], request.getState());
+            }
+
+            // appends after the cut off tail are read back
+            RequestStore next = newStore(crashed);
+            next.markDirty(new Request(1, Request.REQUEST_MODE_ALL, Request.STATE_RATIONALE, PERMISSIONS));
+            next.syncJournal();
+            assertEquals("length " + length, Request.STATE_RATIONALE, newStore(crashed).read(1).getState());
+        }
+    }
+
+    @Test
+    public void corruptRecord_ignoresItAndFollowingOnes() throws Exception {
+        File file = new File(mDir, RequestJournal.FILE_NAME);
+        RequestStore store = newStore(file);
+        store.markDirty(new Request(1, Request.REQUEST_MODE_ALL, Request.STATE_STARTED, PERMISSIONS));
+        store.syncJournal();
+        long validLength = file.length();
+        store.markDirty(new Request(1, Request.REQUEST_MODE_ALL, Request.STATE_REQUESTED, PERMISSIONS));
+        store.syncJournal();
+
+        byte[] journal = readFile(file);
+        journal[journal.length - 6] ^= 1;
+        writeFile(file, journal, journal.length);
+
+        assertEquals(Request.STATE_STARTED, newStore(file).read(1).getState());
+        assertEquals(validLength, file.length());
+    }
+
+    @Test
+    public void failedSync_keepsRecordsForNextSync() throws Exception {
+        File file = new File(mDir, RequestJournal.FILE_NAME);
+        // a directory can't be written to
+        assertTrue(file.mkdir());
+        RequestStore store = newStore(file);
+        store.markDirty(new Request(1, Request.REQUEST_MODE_ALL, Request.STATE_STARTED, PERMISSIONS));
+        store.syncJournal();
+
+        assertTrue(file.delete());
+        store.markDirty(new Request(2, Request.REQUEST_MODE_ALL, Request.STATE_REQUESTED, PERMISSIONS));
+        store.syncJournal();
+
+        RequestStore restored = newStore(file);
+        assertEquals(Request.STATE_STARTED, restored.read(1).getState());
+        assertEquals(Request.STATE_REQUESTED, restored.read(2).getState());
+    }
+
+    @Test
+    public void compaction_keepsLatestChanges() throws Exception {
+        File file = new File(mDir, RequestJournal.FILE_NAME);
+        RequestStore store = newStore(file);
+        for (int i = 0; i <= RequestJournal.COMPACT_THRESHOLD; i++) {
+            store.markDirty(new Request(i % 4, Request.REQUEST_MODE_ALL, LIFECYCLE[i % LIFECYCLE.length], PERMISSIONS));
+        }
+        store.syncJournal();
+
+        RequestStore restored = newStore(file);
+        assertEquals(4, restored.readIndex().size());
+        assertEquals(LIFECYCLE[RequestJournal.COMPACT_THRESHOLD % LIFECYCLE.length],
+                restored.read(RequestJournal.COMPACT_THRESHOLD % 4).getState());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void compaction_dropsRemovalsOfRequestsNotInPreferences() throws Exception {
+        File file = new File(mDir, RequestJournal.FILE_NAME);
+        RequestStore store = newStore(file);
+
+        // create and evict churn, every code used once
+        for (int i = 0; i < 8 * RequestJournal.COMPACT_THRESHOLD; i++) {
+            store.markDirty(new Request(i, Request.REQUEST_MODE_ALL, PERMISSIONS));
+            store.markRemoved(i);
+            if (i % 100 == 0) {
+                store.flush();
+                store.syncJournal();
+            }
+        }
+        store.flush();
+        store.syncJournal();
+
+        // a removal record takes 25 bytes, so all of them would take 200k
+        assertTrue("length " + file.length(), file.length() < 100 * 1024);
+        assertTrue(newStore(file).readIndex().isEmpty());
+    }
+
+    @Test
+    public void compaction_keepsRemovalsOfRequestsInPreferences() throws Exception {
+        File file = new File(mDir, RequestJournal.FILE_NAME);
+        FakeSharedPreferences prefs = new FakeSharedPreferences();
+        Request persisted = new Request(-1, Request.REQUEST_MODE_ALL, PERMISSIONS);
+        prefs.edit().putString(RequestStore.key(-1), RequestCodec.encode(persisted)).commit();
+
+        // preferences are never written in multi-process mode
+        RequestStore store = new RequestStore(prefs, file, true, mExecutor);
+        store.markRemoved(-1);
+        for (int i = 0; i <= RequestJournal.COMPACT_THRESHOLD; i++) {
+            store.markDirty(new Request(i, Request.REQUEST_MODE_ALL, PERMISSIONS));
+            store.markRemoved(i);
+        }
+        store.syncJournal();
+
+        assertNull(new RequestStore(prefs, file, true, mExecutor).read(-1));
+        assertNotNull(new RequestStore(prefs, null, false, mExecutor).read(-1));
+        assertTrue(file.length() < 64 * 1024);
+    }
+
+    @Test
+    public void multiProcess_changesAreSeenByOtherProcess() throws Exception {
+        File file = new File(mDir, RequestJournal.FILE_NAME);
+        FakeSharedPreferences prefs = new FakeSharedPreferences();
+        RequestStore first = new RequestStore(prefs, file, true, mExecutor);
+        RequestStore second = newSharedStore(file);
+
+        first.markDirty(new Request(1, Request.REQUEST_MODE_ALL, Request.STATE_REQUESTED, PERMISSIONS));
+        // changes are written by the write-behind sync
+        assertNull(second.read(1));
+        first.syncJournal();
+        assertEquals(Request.STATE_REQUESTED, second.read(1).getState());
+        assertEquals(Request.STATE_REQUESTED, second.readStateChangedElsewhere(1));
+        assertEquals(-1, first.readStateChangedElsewhere(1));
+
+        second.markDirty(new Request(1, Request.REQUEST_MODE_ALL, Request.STATE_INIT, PERMISSIONS));
+        second.markDirty(new Request(2, Request.REQUEST_MODE_ALL, PERMISSIONS));
+        second.syncJournal();
+        assertEquals(Request.STATE_INIT, first.readStateChangedElsewhere(1));
+        assertEquals(-1, second.readStateChangedElsewhere(1));
+        assertEquals(2, first.readIndex().size());
+
+        first.markRemoved(2);
+        first.syncJournal();
+        assertNull(second.read(2));
+
+        // only the journal is written to, preferences don't support concurrent writers
+        first.flush();
+        assertEquals(0, prefs.getCommitCount());
+    }
+
+    @Test
+    public void multiProcess_compactionByOtherProcess_keepsLatestChanges() throws Exception {
+        File file = new File(mDir, RequestJournal.FILE_NAME);
+        RequestStore first = newSharedStore(file);
+        RequestStore second = newSharedStore(file);
+        second.markDirty(new Request(100, Request.REQUEST_MODE_EACH, Request.STATE_STARTED, PERMISSIONS));
+        second.syncJournal();
+        assertEquals(Request.STATE_STARTED, first.read(100).getState());
+
+        for (int i = 0; i <= RequestJournal.COMPACT_THRESHOLD; i++) {
+            first.markDirty(new Request(i % 4, Request.REQUEST_MODE_ALL, LIFECYCLE[i % LIFECYCLE.length], PERMISSIONS));
+        }
+        first.syncJournal();
+        assertTrue(file.length() < RequestJournal.COMPACT_THRESHOLD);
+
+        second.markDirty(new Request(100, Request.REQUEST_MODE_EACH, Request.STATE_REQUESTED, PERMISSIONS));
+        second.syncJournal();
+        assertEquals(5, second.readIndex().size());
+        assertEquals(LIFECYCLE[RequestJournal.COMPACT_THRESHOLD % LIFECYCLE.length],
+                second.read(RequestJournal.COMPACT_THRESHOLD % 4).getState());
+        assertEquals(Request.STATE_REQUESTED, first.read(100).getState());
+    }
+
+    @Test
+    public void multiProcess_startIsRefusedWhileRunningInLiveProcess() throws Exception {
+        File file = new File(mDir, RequestJournal.FILE_NAME);
+        FakeProcesses firstProcess = new FakeProcesses(1);
+        FakeProcesses secondProcess = new FakeProcesses(2);
+        RequestStore first = new RequestStore(new FakeSharedPreferences(), file, true, mExecutor, firstProcess);
+        RequestStore second = new RequestStore(new FakeSharedPreferences(), file, true, mExecutor, secondProcess);
+
+        assertTrue(first.markStarted(new Request(1, Request.REQUEST_MODE_ALL, Request.STATE_STARTED, PERMISSIONS)));
+        first.markDirty(new Request(1, Request.REQUEST_MODE_ALL, Request.STATE_REQUESTED, PERMISSIONS));
+
+        // the start is written right away, later changes by the write-behind sync
+        assertFalse(second.markStarted(new Request(1, Request.REQUEST_MODE_ALL, Request.STATE_STARTED, PERMISSIONS)));
+        assertTrue(second.isChangedByLiveProcess(1));
+        assertEquals(Request.STATE_STARTED, second.readStateChangedElsewhere(1));
+        first.syncJournal();
+        assertEquals(Request.STATE_REQUESTED, second.readStateChangedElsewhere(1));
+
+        // a request, that finished elsewhere, can be started
+        first.markDirty(new Request(1, Request.REQUEST_MODE_ALL, Request.STATE_FINISHED, PERMISSIONS));
+        first.syncJournal();
+        assertTrue(second.markStarted(new Request(1, Request.REQUEST_MODE_ALL, Request.STATE_STARTED, PERMISSIONS)));
+        assertFalse(first.markStarted(new Request(1, Request.REQUEST_MODE_ALL, Request.STATE_STARTED, PERMISSIONS)));
+
+        // and so can a request of a dead process
+        secondProcess.alive = false;
+        assertFalse(first.isChangedByLiveProcess(1));
+        assertTrue(first.markStarted(new Request(1, Request.REQUEST_MODE_ALL, Request.STATE_STARTED, PERMISSIONS)));
+    }
+
+    @Test
+    public void multiProcess_startIsRefusedOverPendingChange() throws Exception {
+        File file = new File(mDir, RequestJournal.FILE_NAME);
+        RequestStore first = new RequestStore(new FakeSharedPreferences(), file, true, mExecutor, new FakeProcesses(3));
+        RequestStore second = new RequestStore(new FakeSharedPreferences(), file, true, mExecutor, new FakeProcesses(4));
+
+        // the pending change is written after the start, but doesn't hide it from the next one
+        first.markDirty(new Request(1, Request.REQUEST_MODE_ALL, PERMISSIONS));
+        assertTrue(second.markStarted(new Request(1, Request.REQUEST_MODE_ALL, Request.STATE_STARTED, PERMISSIONS)));
+        assertFalse(first.markStarted(new Request(1, Request.REQUEST_MODE_ALL, Request.STATE_STARTED, PERMISSIONS)));
+    }
+
+    private RequestStore newStore(File file) {
+        return new RequestStore(new FakeSharedPreferences(), file, false, mExecutor);
+    }
+
+    private RequestStore newSharedStore(File file) {
+        return new RequestStore(new FakeSharedPreferences(), file, true, mExecutor);
+    }
+
+    /**
+     * Processes with distinct ids, that are alive until told otherwise.
+     */
+    private static final class FakeProcesses implements RequestJournal.Processes {
+        private static final Map<Integer, FakeProcesses> sByPid = new HashMap<>();
+
+        private final int mPid;
+        volatile boolean alive = true;
+
+        FakeProcesses(int pid) {
+            mPid = pid;
+            synchronized (sByPid) {
+                sByPid.put(pid, this);
+            }
+        }
+
+        @Override
+        public int myPid() {
+            return mPid;
+        }
+
+        @Override
+        public boolean isAlive(int pid) {
+            synchronized (sByPid) {
+                FakeProcesses process = sByPid.get(pid);
+                return process != null && process.alive;
+            }
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream input = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += input.read(bytes, offset, bytes.length - offset);
+            }
+        } finally {
+            input.close();
+        }
+        return bytes;
+    }
+
+    private static void writeFile(File file, byte[] bytes, int length) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(bytes, 0, length);
+        } finally {
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ResultFutureTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private PermissionsManager mManager;
+
+    @Before
+    public void setUp() {
+        PermissionsManager.sInstance = null;
+        mManager = PermissionsManager.init(new FakeContext());
+        mManager.setResultExecutor(DIRECT);
+    }
+
+    @After
+    public void tearDown() {
+        PermissionsManager.sInstance = null;
+    }
+
+    @Test
+    public void complete_deliversToAllCallbacks() throws Exception {
+        ResultFuture future = new ResultFuture(DIRECT);
+        final AtomicInteger delivered = new AtomicInteger();
+        ResultFuture.Callback callback = new ResultFuture.Callback() {
+            @Override
+            public void onResult(RequestResult result) {
+                delivered.incrementAndGet();
+            }
+        };
+
+        future.addCallback(callback);
+        future.addCallback(callback);
+        future.complete(new RequestResult(1, Request.RESULT_GRANTED, new String[0], new int[0]));
+        future.addCallback(callback);
+
+        assertEquals(3, delivered.get());
+        assertTrue(future.isDone());
+        assertEquals(1, future.get().getRequestCode());
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void get_timesOut() throws Exception {
+        new ResultFuture(DIRECT).get(10, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void runAsync_joinsRunningRequest() throws Exception {
+        Request request = mManager.createRequestAll(1, false, "android.permission.CAMERA");
+        request.tryStart();
+
+        ResultFuture first = request.runAsync(null);
+        ResultFuture second = request.runAsync(null);
+        assertSame(first, second);
+        assertFalse(first.isDone());
+
+        mManager.handleRequestResult(1, new String[]{"android.permission.CAMERA"}, new int[]{0}, new boolean[]{false});
+
+        assertTrue(first.isDone());
+        assertTrue(first.get().isGranted());
+        assertNotSame(first, request.runAsync(null));
+    }
+
+    @Test
+    public void runAsync_timedOut_releasesAwaiter() throws Exception {
+        final Request request = mManager.createRequestAll(1, false, "android.permission.CAMERA");
+        request.tryStart();
+        request.setState(Request.STATE_REQUESTED);
+        final ResultFuture future = request.runAsync(null);
+
+        final RequestResult[] awaited = new RequestResult[1];
+        Thread awaiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    awaited[0] = future.get();
+                } catch (InterruptedException e) {
+                    // left null
+                }
+            }
+        });
+        awaiter.start();
+
+        assertTrue(request.timeOut(Request.STATE_REQUESTED));
+        awaiter.join(5000);
+
+        assertFalse(awaiter.isAlive());
+        assertTrue(awaited[0].isInterrupted());
+        assertEquals(Request.RESULT_DENIED, awaited[0].getResult());
+        assertEquals(Request.RESULT_DENIED, awaited[0].getPermissionResult(0));
+
+        // the next run gets a new future instead of the completed one
+        assertNotSame(future, request.runAsync(null));
+    }
+
+    @Test
+    public void runAsync_resetOrFinishedElsewhere_completesFuture() throws Exception {
+        Request request = mManager.createRequestAll(1, false, "android.permission.CAMERA");
+        request.tryStart();
+        request.setState(Request.STATE_RATIONALE);
+        ResultFuture reset = request.runAsync(null);
+
+        request.reset();
+
+        assertTrue(reset.isDone());
+        assertTrue(reset.get().isInterrupted());
+
+        request.tryStart();
+        ResultFuture adopted = request.runAsync(null);
+
+        assertTrue(request.adoptState(Request.STATE_FINISHED));
+
+        assertTrue(adopted.isDone());
+        assertTrue(adopted.get().isInterrupted());
+    }
+
+    @Test
+    public void runAsync_finished_notInterrupted() throws Exception {
+        Request request = mManager.createRequestAll(1, false, "android.permission.CAMERA");
+        request.tryStart();
+        ResultFuture future = request.runAsync(null);
+
+        mManager.handleRequestResult(1, new String[]{"android.permission.CAMERA"}, new int[]{-1}, new boolean[]{true});
+
+        assertFalse(future.get().isInterrupted());
+        assertEquals(Request.RESULT_DENIED, future.get().getResult());
+    }
+}
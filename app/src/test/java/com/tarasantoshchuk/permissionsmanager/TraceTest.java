@@ -0,0 +1,88 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class TraceTest {
+    @After
+    public void tearDown() throws Exception {
+        Trace.setLevel(Trace.LEVEL_OFF);
+        Trace.setCapacity(Trace.DEFAULT_CAPACITY);
+    }
+
+    @Test
+    public void disabledLevel_notRecorded() throws Exception {
+        Trace.setLevel(Trace.LEVEL_DEBUG);
+        Trace.clear();
+
+        Trace.event(Trace.LEVEL_VERBOSE, "Test", Trace.EVENT_STATE, 1, 0, 1);
+        Trace.event(Trace.LEVEL_DEBUG, "Test", Trace.EVENT_RUN, 1, 0, 0);
+
+        assertEquals(1, Trace.getRecordedCount());
+        assertTrue(dump().contains("runRequest, requestCode 1"));
+    }
+
+    @Test
+    public void ringBuffer_keepsLatestEvents() throws Exception {
+        Trace.setLevel(Trace.LEVEL_VERBOSE);
+        Trace.setCapacity(4);
+
+        for (int i = 0; i < 10; i++) {
+            Trace.event(Trace.LEVEL_VERBOSE, "Test", Trace.EVENT_STATE, i, 0, 1);
+        }
+
+        String[] lines = dump().split("\n");
+        assertEquals(10, Trace.getRecordedCount());
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].contains("requestCode 6"));
+        assertTrue(lines[3].contains("requestCode 9"));
+    }
+
+    @Test
+    public void message_evaluatedOnDump() throws Exception {
+        Trace.setLevel(Trace.LEVEL_WARN);
+        Trace.clear();
+
+        final int[] evaluations = new int[1];
+        Trace.message(Trace.LEVEL_WARN, "Test", new Trace.Message() {
+            @Override
+            public String get() {
+                evaluations[0]++;
+                return "lazy message";
+            }
+        });
+
+        assertEquals(0, evaluations[0]);
+        assertTrue(dump().contains("W/Test"));
+        assertEquals(1, evaluations[0]);
+    }
+
+    @Test
+    public void event_doesNotAllocate() throws Exception {
+        Trace.setLevel(Trace.LEVEL_VERBOSE);
+        for (int i = 0; i < 10000; i++) {
+            Trace.event(Trace.LEVEL_VERBOSE, "Test", Trace.EVENT_STATE, i, 0, 1);
+        }
+
+        long before = Allocations.currentThreadAllocatedBytes();
+        for (int i = 0; i < 10000; i++) {
+            Trace.event(Trace.LEVEL_VERBOSE, "Test", Trace.EVENT_STATE, i, 0, 1);
+        }
+        long allocated = Allocations.currentThreadAllocatedBytes() - before;
+
+        if (before >= 0) {
+            assertTrue("allocated " + allocated, allocated < 1024);
+        }
+    }
+
+    private static String dump() {
+        StringWriter writer = new StringWriter();
+        Trace.dump(new PrintWriter(writer));
+        return writer.toString();
+    }
+}
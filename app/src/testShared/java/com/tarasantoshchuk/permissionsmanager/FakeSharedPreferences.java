@@ -0,0 +1,167 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.content.SharedPreferences;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory {@link SharedPreferences} for JVM tests and benchmarks. Like the framework implementation, every
+ * commit rewrites the whole file, which is simulated by serializing all entries to a byte array.
+ */
+class FakeSharedPreferences implements SharedPreferences {
+    private final HashMap<String, Object> mValues = new HashMap<>();
+    private int mCommitCount;
+    private long mBytesWritten;
+    private int mGetAllCount;
+
+    int getCommitCount() {
+        return mCommitCount;
+    }
+
+    long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    synchronized int getGetAllCount() {
+        return mGetAllCount;
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        mGetAllCount++;
+        return new HashMap<>(mValues);
+    }
+
+    @Override
+    public synchronized String getString(String key, String defValue) {
+        return mValues.containsKey(key) ? (String) mValues.get(key) : defValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+        return mValues.containsKey(key) ? (Set<String>) mValues.get(key) : defValues;
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defValue) {
+        return mValues.containsKey(key) ? (Integer) mValues.get(key) : defValue;
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defValue) {
+        return mValues.containsKey(key) ? (Long) mValues.get(key) : defValue;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        return mValues.containsKey(key) ? (Boolean) mValues.get(key) : defValue;
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return mValues.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new FakeEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+    }
+
+    private synchronized void writeToDisk() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+                out.write(entry.getKey().getBytes("UTF-8"));
+                out.write(String.valueOf(entry.getValue()).getBytes("UTF-8"));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        mCommitCount++;
+        mBytesWritten += bytes.size();
+    }
+
+    private class FakeEditor implements Editor {
+        private final HashMap<String, Object> mChanges = new HashMap<>();
+        private final Set<String> mRemovals = new HashSet<>();
+        private boolean mClear;
+
+        @Override
+        public Editor putString(String key, String value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            mChanges.put(key, values == null ? null : new HashSet<>(values));
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            mRemovals.add(key);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            synchronized (FakeSharedPreferences.this) {
+                if (mClear) {
+                    mValues.clear();
+                }
+                for (String key : mRemovals) {
+                    mValues.remove(key);
+                }
+                mValues.putAll(mChanges);
+                writeToDisk();
+            }
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+/**
+ * Application context stub for benchmarks: in-memory preferences, no-op activity starts and a
+ * fixed grant state for every permission.
+ */
+class BenchmarkContext extends ContextWrapper {
+    final FakeSharedPreferences prefs = new FakeSharedPreferences();
+    private final int mGrantResult;
+
+    BenchmarkContext(boolean granted) {
+        super(null);
+        mGrantResult = granted ? PackageManager.PERMISSION_GRANTED : PackageManager.PERMISSION_DENIED;
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        return prefs;
+    }
+
+    @Override
+    public void startActivity(Intent intent) {
+    }
+
+    @Override
+    public int checkSelfPermission(String permission) {
+        return mGrantResult;
+    }
+
+    /**
+     * Creates a fresh manager instance on top of the given context. The mockable android.jar
+     * reports SDK_INT 0, so the manager is switched to M for runtime permission paths to be used.
+     */
+    static PermissionsManager newManager(BenchmarkContext context) {
+        PermissionsManager.sInstance = null;
+        PermissionsManager manager = PermissionsManager.init(context);
+        manager.setSdkInt(Build.VERSION_CODES.M);
+        return manager;
+    }
+
+    static final Activity ACTIVITY = new Activity();
+
+    static final Request.Listener NO_OP_LISTENER = new Request.Listener() {
+        @Override
+        public boolean onShowRationale() {
+            return true;
+        }
+
+        @Override
+        public void onRequestResult(@Request.Result int result, int requestCode, String... permissions) {
+        }
+    };
+
+    static final String[] PERMISSIONS = {
+            "android.permission.WRITE_EXTERNAL_STORAGE",
+            "android.permission.READ_CONTACTS",
+            "android.permission.CAMERA"
+    };
+}
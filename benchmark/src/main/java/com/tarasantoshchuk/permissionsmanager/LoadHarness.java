@@ -0,0 +1,253 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Drives request lifecycles, from {@link Request#run(android.app.Activity)} to the result
+ * callback, through a {@link SimulatedPermissionBackend}, and reports throughput, lifecycle
+ * latency percentiles and allocation per lifecycle.
+ *
+ * Options are passed as {@code name=value}, see {@link #DEFAULTS}. Every request runs at most
+ * once at a time; with a dialog latency up to {@code requests} lifecycles are in flight.
+ *
+ * Run with: ./gradlew :benchmark:loadTest [-PloadArgs="lifecycles=100000 grant=0.5"]
+ */
+public final class LoadHarness {
+    private static final String[][] DEFAULTS = {
+            {"lifecycles", "100000"},
+            {"warmup", "20000"},
+            {"requests", "64"},
+            {"grant", "0.5"},
+            {"rationale", "0.5"},
+            {"checkLatencyNs", "0"},
+            {"dialogLatencyUs", "0"},
+            {"seed", "1"},
+    };
+
+    private static final String[] PERMISSIONS = {
+            "android.permission.WRITE_EXTERNAL_STORAGE",
+            "android.permission.READ_CONTACTS",
+            "android.permission.CAMERA",
+            "android.permission.ACCESS_FINE_LOCATION",
+            "android.permission.RECORD_AUDIO",
+            "android.permission.READ_CALENDAR",
+            "android.permission.SEND_SMS",
+            "android.permission.CALL_PHONE"
+    };
+
+    private final HashMap<String, String> mOptions;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private PermissionsManager mManager;
+    private SimulatedPermissionBackend mBackend;
+    private boolean mDeliversOnExecutor;
+    private InMemoryPermissionsMetrics mMetrics;
+    private Request[] mRequests;
+    /**
+     * Requests hold their listeners weakly.
+     */
+    private LifecycleListener[] mListeners;
+    private long[] mStartedAt;
+    private BlockingQueue<Integer> mIdle;
+
+    private Histogram mLatency;
+
+    private LoadHarness(HashMap<String, String> options) {
+        mOptions = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> options = new HashMap<>();
+        for (String[] option : DEFAULTS) {
+            options.put(option[0], option[1]);
+        }
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0 || !options.containsKey(arg.substring(0, separator))) {
+                throw new IllegalArgumentException("unknown option " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+
+        LoadHarness harness = new LoadHarness(options);
+        try {
+            harness.setUp();
+            harness.run(harness.getInt("warmup"));
+            harness.report(harness.run(harness.getInt("lifecycles")), harness.getInt("lifecycles"));
+        } finally {
+            harness.mExecutor.shutdownNow();
+        }
+    }
+
+    private void setUp() {
+        mManager = BenchmarkContext.newManager(new BenchmarkContext(false));
+        mBackend = new SimulatedPermissionBackend(mManager, mExecutor, getLong("seed"));
+        mBackend.setGrantRatio(getDouble("grant"));
+        mBackend.setRationaleRatio(getDouble("rationale"));
+        mBackend.setCheckLatency(getLong("checkLatencyNs"));
+        mBackend.setDialogLatency(getLong("dialogLatencyUs"));
+        mDeliversOnExecutor = getLong("dialogLatencyUs") > 0;
+        mManager.setPermissionBackend(mBackend);
+
+        // every status check goes to the backend, as after a return from settings
+        mManager.getPermissionCache().setTtl(0);
+        // results are delivered on the thread that handles them, instead of the main thread
+        mManager.setResultExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        int count = getInt("requests");
+        mRequests = new Request[count];
+        mListeners = new LifecycleListener[count];
+        mStartedAt = new long[count];
+        mIdle = new ArrayBlockingQueue<>(count);
+        for (int i = 0; i < count; i++) {
+            String[] permissions = new String[1 + i % 3];
+            for (int j = 0; j < permissions.length; j++) {
+                permissions[j] = PERMISSIONS[(i + j) % PERMISSIONS.length];
+            }
+
+            mRequests[i] = i % 2 == 0
+                    ? mManager.createRequestAll(i, false, permissions)
+                    : mManager.createRequestEach(i, false, permissions);
+            mListeners[i] = new LifecycleListener(i);
+            mRequests[i].setListener(mListeners[i]);
+            mIdle.add(i);
+        }
+    }
+
+    /**
+     * @return run time in nanoseconds and bytes allocated by the driving and delivering threads
+     */
+    private long[] run(int lifecycles) throws Exception {
+        mLatency = new Histogram();
+        mMetrics = new InMemoryPermissionsMetrics();
+        mManager.setMetrics(mMetrics);
+
+        long executorThread = mExecutor.submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return Thread.currentThread().getId();
+            }
+        }).get();
+        long[] threads = {Thread.currentThread().getId(), executorThread};
+
+        long allocatedBefore = allocatedBytes(threads);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < lifecycles; i++) {
+            int index = mIdle.take();
+            mStartedAt[index] = System.nanoTime();
+            mRequests[index].run(BenchmarkContext.ACTIVITY);
+        }
+
+        // wait for lifecycles still in flight
+        for (int i = 0; i < mRequests.length; i++) {
+            mIdle.take();
+        }
+        for (int i = 0; i < mRequests.length; i++) {
+            mIdle.add(i);
+        }
+
+        long duration = System.nanoTime() - start;
+        return new long[] {duration, allocatedBytes(threads) - allocatedBefore};
+    }
+
+    private void report(long[] result, int lifecycles) {
+        long duration = result[0];
+        long allocated = result[1];
+        InMemoryPermissionsMetrics.Snapshot snapshot = mMetrics.snapshot();
+
+        System.out.println("LoadHarness, " + mOptions);
+        System.out.println("LoadHarness, " + lifecycles + " lifecycles in " + duration / 1000000 + " ms: "
+                + lifecycles * 1000000000L / Math.max(duration, 1) + " lifecycles/s, "
+                + (allocated < 0 ? "allocation n/a" : allocated / lifecycles + " bytes/lifecycle"));
+        System.out.println("LoadHarness, lifecycle latency ns: p50 " + mLatency.getPercentile(50)
+                + ", p90 " + mLatency.getPercentile(90)
+                + ", p99 " + mLatency.getPercentile(99)
+                + ", p99.9 " + mLatency.getPercentile(99.9)
+                + ", max " + mLatency.getMax());
+        System.out.println("LoadHarness, results: granted " + snapshot.getResultCount(Request.RESULT_GRANTED)
+                + ", denied " + snapshot.getResultCount(Request.RESULT_DENIED)
+                + ", denied forever " + snapshot.getResultCount(Request.RESULT_DENIED_FOREVER)
+                + "; launch wait p99 " + snapshot.getLaunchWait().getPercentile(99)
+                + " ns, max launch queue depth " + snapshot.getMaxLaunchQueueDepth());
+    }
+
+    private final class LifecycleListener implements Request.Listener {
+        private final int mIndex;
+
+        LifecycleListener(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public boolean onShowRationale() {
+            return true;
+        }
+
+        @Override
+        public void onRequestResult(@Request.Result int result, int requestCode, String... permissions) {
+            synchronized (mLatency) {
+                mLatency.record(System.nanoTime() - mStartedAt[mIndex]);
+            }
+
+            // so the next lifecycle of the request shows the dialog again
+            Request request = mRequests[mIndex];
+            for (String permission : request.requestedPermissions) {
+                mBackend.revoke(permission);
+            }
+
+            if (!mDeliversOnExecutor) {
+                mIdle.add(mIndex);
+                return;
+            }
+
+            // the request is reset after this callback returns, so it is handed back to the
+            // driving thread from a task that runs after the result handling
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mIdle.add(mIndex);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return bytes allocated by the threads so far, or -1 if the JVM doesn't report it
+     */
+    private static long allocatedBytes(long[] threads) {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+
+        long total = 0;
+        for (long allocated : ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(threads)) {
+            total += allocated;
+        }
+        return total;
+    }
+
+    private int getInt(String name) {
+        return Integer.parseInt(mOptions.get(name));
+    }
+
+    private long getLong(String name) {
+        return Long.parseLong(mOptions.get(name));
+    }
+
+    private double getDouble(String name) {
+        return Double.parseDouble(mOptions.get(name));
+    }
+}
@@ -0,0 +1,60 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * saveState() after a single request changed, and restoring all persisted requests into a
+ * fresh manager, for growing numbers of registered requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceBenchmark {
+    @Param({"10", "100", "1000"})
+    public int requestCount;
+
+    private BenchmarkContext mContext;
+    private PermissionsManager mManager;
+    private int mNextChanged;
+
+    @Setup
+    public void setUp() {
+        mContext = new BenchmarkContext(true);
+        mManager = BenchmarkContext.newManager(mContext);
+        for (int i = 0; i < requestCount; i++) {
+            mManager.createRequestAll(i, false, BenchmarkContext.PERMISSIONS);
+        }
+        mManager.saveState();
+    }
+
+    @Benchmark
+    public void saveState() {
+        Request request = mManager.getRequest(mNextChanged++ % requestCount);
+        mManager.onRequestChanged(request);
+        mManager.saveState();
+    }
+
+    @Benchmark
+    public void retrieveRequests(Blackhole blackhole) {
+        PermissionsManager manager = BenchmarkContext.newManager(mContext);
+        for (int i = 0; i < requestCount; i++) {
+            blackhole.consume(manager.getRequest(i));
+        }
+    }
+}
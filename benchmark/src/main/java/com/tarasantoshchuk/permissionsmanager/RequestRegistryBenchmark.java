@@ -0,0 +1,96 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link IntRequestMap} and {@link StripedRequestRegistry} against {@code HashMap<Integer, Request>}
+ * for request codes in the resource id range.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestRegistryBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    public int size;
+
+    private Request[] mRequests;
+    private HashMap<Integer, Request> mHashMap;
+    private IntRequestMap mIntMap;
+    private StripedRequestRegistry mRegistry;
+    private int mNextLookup;
+
+    @Setup
+    public void setUp() {
+        mRequests = new Request[size];
+        for (int i = 0; i < size; i++) {
+            mRequests[i] = new Request(0x7f0b0000 + i * 7, Request.REQUEST_MODE_ALL, new String[0]);
+        }
+
+        mHashMap = insertHashMap();
+        mIntMap = insertIntMap();
+        mRegistry = insertRegistry();
+    }
+
+    @Benchmark
+    public HashMap<Integer, Request> insertHashMap() {
+        HashMap<Integer, Request> map = new HashMap<>();
+        for (Request request : mRequests) {
+            map.put(request.requestCode, request);
+        }
+        return map;
+    }
+
+    @Benchmark
+    public IntRequestMap insertIntMap() {
+        IntRequestMap map = new IntRequestMap();
+        for (Request request : mRequests) {
+            map.put(request.requestCode, request);
+        }
+        return map;
+    }
+
+    @Benchmark
+    public StripedRequestRegistry insertRegistry() {
+        StripedRequestRegistry registry = new StripedRequestRegistry();
+        for (Request request : mRequests) {
+            registry.put(request);
+        }
+        return registry;
+    }
+
+    @Benchmark
+    public Request lookupHashMap() {
+        return mHashMap.get(nextRequestCode());
+    }
+
+    @Benchmark
+    public Request lookupIntMap() {
+        return mIntMap.get(nextRequestCode());
+    }
+
+    @Benchmark
+    public Request lookupRegistry() {
+        return mRegistry.get(nextRequestCode());
+    }
+
+    private int nextRequestCode() {
+        mNextLookup = (mNextLookup + 1) % size;
+        return mRequests[mNextLookup].requestCode;
+    }
+}
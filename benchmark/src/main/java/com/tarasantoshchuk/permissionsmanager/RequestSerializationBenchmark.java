@@ -0,0 +1,67 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestSerializationBenchmark {
+    private Request mRequest;
+    private String mJson;
+    private String mBinary;
+    private PermissionDictionary mDictionary;
+    private String mDictionaryBinary;
+
+    @Setup
+    public void setUp() {
+        mRequest = new Request(0x7f0b0055, Request.REQUEST_MODE_ALL, Request.STATE_REQUESTED, BenchmarkContext.PERMISSIONS);
+        mJson = Request.toJson(mRequest);
+        mBinary = RequestCodec.encode(mRequest);
+        mDictionary = new PermissionDictionary();
+        mDictionaryBinary = RequestCodec.encode(mRequest, mDictionary);
+    }
+
+    @Benchmark
+    public String toJson() {
+        return Request.toJson(mRequest);
+    }
+
+    @Benchmark
+    public Request fromJson() {
+        return Request.fromJson(mJson);
+    }
+
+    @Benchmark
+    public String encodeBinary() {
+        return RequestCodec.encode(mRequest);
+    }
+
+    @Benchmark
+    public Request decodeBinary() {
+        return RequestCodec.decode(mBinary);
+    }
+
+    @Benchmark
+    public String encodeBinaryWithDictionary() {
+        return RequestCodec.encode(mRequest, mDictionary);
+    }
+
+    @Benchmark
+    public Request decodeBinaryWithDictionary() {
+        return RequestCodec.decode(mDictionaryBinary, mDictionary);
+    }
+}
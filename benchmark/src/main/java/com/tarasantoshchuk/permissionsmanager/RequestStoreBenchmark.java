@@ -0,0 +1,73 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the incremental {@link RequestStore} against rewriting the whole request set,
+ * for a single request changing its state.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestStoreBenchmark {
+    @Param({"10", "100", "1000"})
+    public int requestCount;
+
+    private List<Request> mRequests;
+    private FakeSharedPreferences mFullRewritePrefs;
+    private RequestStore mStore;
+    private int mNextChanged;
+
+    @Setup
+    public void setUp() {
+        mRequests = new ArrayList<>();
+        for (int i = 0; i < requestCount; i++) {
+            mRequests.add(new Request(i, Request.REQUEST_MODE_ALL, BenchmarkContext.PERMISSIONS));
+        }
+
+        mFullRewritePrefs = new FakeSharedPreferences();
+
+        mStore = new RequestStore(new FakeSharedPreferences());
+        for (Request request : mRequests) {
+            mStore.markDirty(request);
+        }
+        mStore.flush();
+    }
+
+    @Benchmark
+    public void fullRewrite() {
+        Set<String> jsons = new HashSet<>();
+        for (Request request : mRequests) {
+            jsons.add(Request.toJson(request));
+        }
+
+        mFullRewritePrefs.edit()
+                .putStringSet(RequestStore.PREFS_KEY_LEGACY_REQUEST_JSONS, jsons)
+                .commit();
+    }
+
+    @Benchmark
+    public void incremental() {
+        mStore.markDirty(mRequests.get(mNextChanged++ % requestCount));
+        mStore.flush();
+    }
+}
@@ -0,0 +1,149 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.app.Activity;
+import android.content.pm.PackageManager;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory {@link PermissionBackend} with a simulated user: permissions start denied, and each
+ * permission in a dialog is granted with the configured probability. A denied permission asks for
+ * rationale with the configured probability, otherwise it is denied forever, like after
+ * "Never ask again".
+ *
+ * Dialog results are delivered on the given executor after the dialog latency, or right away on
+ * the launching thread when it is 0. Permission checks spin for the check latency, to account for
+ * the IPC of a real check.
+ */
+final class SimulatedPermissionBackend implements PermissionBackend {
+    private final PermissionsManager mManager;
+    private final ScheduledExecutorService mExecutor;
+    private final Random mRandom;
+
+    private final Set<String> mGranted = newSet();
+    private final Set<String> mShowRationale = newSet();
+
+    private volatile double mGrantRatio = 1;
+    private volatile double mRationaleRatio = 1;
+    private volatile long mCheckLatencyNanos;
+    private volatile long mDialogLatencyMicros;
+
+    SimulatedPermissionBackend(PermissionsManager manager, ScheduledExecutorService executor, long seed) {
+        mManager = manager;
+        mExecutor = executor;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * @param grantRatio probability of the user granting a permission in the dialog
+     */
+    void setGrantRatio(double grantRatio) {
+        mGrantRatio = grantRatio;
+    }
+
+    /**
+     * @param rationaleRatio probability of a denied permission asking for rationale, rather than
+     *                       being denied forever
+     */
+    void setRationaleRatio(double rationaleRatio) {
+        mRationaleRatio = rationaleRatio;
+    }
+
+    void setCheckLatency(long nanos) {
+        mCheckLatencyNanos = nanos;
+    }
+
+    void setDialogLatency(long micros) {
+        mDialogLatencyMicros = micros;
+    }
+
+    /**
+     * Revokes the permissions, e.g. in settings; rationale state is kept.
+     */
+    void revoke(String... permissions) {
+        for (String permission : permissions) {
+            mGranted.remove(permission);
+        }
+    }
+
+    @Override
+    public int checkSelfPermission(String permission) {
+        spin(mCheckLatencyNanos);
+        return mGranted.contains(permission) ? PackageManager.PERMISSION_GRANTED : PackageManager.PERMISSION_DENIED;
+    }
+
+    @Override
+    public boolean shouldShowRequestPermissionRationale(Activity activity, String permission) {
+        spin(mCheckLatencyNanos);
+        return mShowRationale.contains(permission);
+    }
+
+    @Override
+    public void requestPermissions(final long launchId, final int[] requestCodes) {
+        long latency = mDialogLatencyMicros;
+        if (latency <= 0) {
+            showDialog(launchId, requestCodes);
+            return;
+        }
+
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                showDialog(launchId, requestCodes);
+            }
+        }, latency, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Does what {@link ShadowActivity} does, with the simulated user answering the dialog.
+     */
+    private void showDialog(long launchId, int[] requestCodes) {
+        if (!mManager.isLaunchInFlight(launchId)) {
+            return;
+        }
+
+        String[] permissions = mManager.getPermissions(requestCodes);
+        mManager.onPermissionsRequested(PermissionsManager.LAUNCH_STRATEGY_SHADOW_ACTIVITY, requestCodes);
+
+        int[] grantResults = new int[permissions.length];
+        boolean[] shouldShowRationale = new boolean[permissions.length];
+        for (int i = 0; i < permissions.length; i++) {
+            String permission = permissions[i];
+            if (mRandom.nextDouble() < mGrantRatio) {
+                mGranted.add(permission);
+                mShowRationale.remove(permission);
+                grantResults[i] = PackageManager.PERMISSION_GRANTED;
+            } else {
+                grantResults[i] = PackageManager.PERMISSION_DENIED;
+                shouldShowRationale[i] = mRandom.nextDouble() < mRationaleRatio;
+                if (shouldShowRationale[i]) {
+                    mShowRationale.add(permission);
+                } else {
+                    mShowRationale.remove(permission);
+                }
+            }
+        }
+
+        mManager.handleBatchResult(requestCodes, permissions, grantResults, shouldShowRationale);
+    }
+
+    private static void spin(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end) {
+            // busy wait, sleeping is too coarse for sub-millisecond latencies
+        }
+    }
+
+    private static Set<String> newSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+}
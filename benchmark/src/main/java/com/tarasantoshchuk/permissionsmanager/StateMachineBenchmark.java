@@ -0,0 +1,73 @@
+package com.tarasantoshchuk.permissionsmanager;
+
+import android.content.pm.PackageManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * runRequest() status evaluation and handleRequestResult() of the request state machine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateMachineBenchmark {
+    private static final int GRANTED_REQUEST_CODE = 1;
+    private static final int DENIED_REQUEST_CODE = 2;
+
+    private PermissionsManager mGrantedManager;
+    private Request mGrantedRequest;
+
+    private PermissionsManager mDeniedManager;
+    private Request mDeniedRequest;
+
+    private final int[] mGrantResults = new int[BenchmarkContext.PERMISSIONS.length];
+    private final boolean[] mShouldShowRationale = new boolean[BenchmarkContext.PERMISSIONS.length];
+
+    @Setup
+    public void setUp() {
+        mGrantedManager = BenchmarkContext.newManager(new BenchmarkContext(true));
+        mGrantedRequest = mGrantedManager.createRequestAll(GRANTED_REQUEST_CODE, false, BenchmarkContext.PERMISSIONS);
+        mGrantedRequest.setListener(BenchmarkContext.NO_OP_LISTENER);
+
+        mDeniedManager = BenchmarkContext.newManager(new BenchmarkContext(false));
+        mDeniedRequest = mDeniedManager.createRequestAll(DENIED_REQUEST_CODE, false, BenchmarkContext.PERMISSIONS);
+        mDeniedRequest.setListener(BenchmarkContext.NO_OP_LISTENER);
+
+        for (int i = 0; i < mGrantResults.length; i++) {
+            mGrantResults[i] = PackageManager.PERMISSION_GRANTED;
+        }
+    }
+
+    /**
+     * All permissions granted: status evaluation finishes the request right away.
+     */
+    @Benchmark
+    public void runRequestGranted() {
+        PermissionsManager.sInstance = mGrantedManager;
+        mGrantedManager.runRequest(mGrantedRequest, BenchmarkContext.ACTIVITY);
+    }
+
+    /**
+     * Permissions denied: status evaluation launches the request, which is then finished by its result.
+     */
+    @Benchmark
+    public void runRequestAndHandleResult() {
+        PermissionsManager.sInstance = mDeniedManager;
+        mDeniedManager.runRequest(mDeniedRequest, BenchmarkContext.ACTIVITY);
+        mDeniedManager.handleRequestResult(DENIED_REQUEST_CODE, BenchmarkContext.PERMISSIONS, mGrantResults, mShouldShowRationale);
+    }
+}
@@ -0,0 +1,370 @@
+package com.tarasantoshchuk.permissionsmanager.processor;
+
+import com.tarasantoshchuk.permissionsmanager.annotations.OnPermissionsResult;
+import com.tarasantoshchuk.permissionsmanager.annotations.OnShowRationale;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a {@code <Activity>_PermissionRequests} class for every Activity with
+ * {@link OnPermissionsResult} methods. Generated classes call the handlers directly, without
+ * reflection, and keep permission arrays in static constants.
+ */
+public final class PermissionRequestsProcessor extends AbstractProcessor {
+    static final String SUFFIX = "_PermissionRequests";
+
+    private static final String PACKAGE = "com.tarasantoshchuk.permissionsmanager";
+    private static final String ACTIVITY = "android.app.Activity";
+    private static final String REQUEST = PACKAGE + ".Request";
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        Set<String> types = new LinkedHashSet<>();
+        types.add(OnPermissionsResult.class.getCanonicalName());
+        types.add(OnShowRationale.class.getCanonicalName());
+        return types;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        Map<TypeElement, Target> targets = new LinkedHashMap<>();
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(OnPermissionsResult.class)) {
+            ExecutableElement method = (ExecutableElement) element;
+            Target target = target(targets, method);
+            if (target == null || !checkMethod(method)) {
+                continue;
+            }
+
+            OnPermissionsResult annotation = method.getAnnotation(OnPermissionsResult.class);
+            if (!checkResultParameters(method) || !checkPermissions(method, annotation.permissions())) {
+                continue;
+            }
+            if (target.find(annotation.requestCode()) != null) {
+                error(method, "duplicate request code " + annotation.requestCode());
+                continue;
+            }
+            target.bindings.add(new Binding(annotation.requestCode(), annotation.permissions(), annotation.each(),
+                    method.getSimpleName().toString(), method.getParameters().size() == 2));
+        }
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(OnShowRationale.class)) {
+            ExecutableElement method = (ExecutableElement) element;
+            Target target = target(targets, method);
+            if (target == null || !checkMethod(method) || !checkRationaleSignature(method)) {
+                continue;
+            }
+
+            int requestCode = method.getAnnotation(OnShowRationale.class).value();
+            Binding binding = target.find(requestCode);
+            if (binding == null) {
+                error(method, "no @OnPermissionsResult for request code " + requestCode);
+            } else if (binding.rationaleMethod != null) {
+                error(method, "duplicate rationale handler for request code " + requestCode);
+            } else {
+                binding.rationaleMethod = method.getSimpleName().toString();
+                binding.rationaleTakesRequest = !method.getParameters().isEmpty();
+            }
+        }
+
+        for (Target target : targets.values()) {
+            if (!target.bindings.isEmpty()) {
+                write(target);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return target of the method, or null if the enclosing class can't be bound
+     */
+    private Target target(Map<TypeElement, Target> targets, ExecutableElement method) {
+        TypeElement type = (TypeElement) method.getEnclosingElement();
+        if (targets.containsKey(type)) {
+            return targets.get(type);
+        }
+
+        Target target = null;
+        TypeElement activity = processingEnv.getElementUtils().getTypeElement(ACTIVITY);
+        if (type.getModifiers().contains(Modifier.PRIVATE)) {
+            error(type, "permission requests can't be declared in a private class");
+        } else if (type.getNestingKind() != NestingKind.TOP_LEVEL && !type.getModifiers().contains(Modifier.STATIC)) {
+            error(type, "permission requests can't be declared in an inner class");
+        } else if (activity != null && !processingEnv.getTypeUtils().isSubtype(type.asType(), activity.asType())) {
+            error(type, "permission requests can only be declared in an Activity");
+        } else {
+            target = new Target(type);
+        }
+
+        // null is kept too, so the class is reported once
+        targets.put(type, target);
+        return target;
+    }
+
+    private boolean checkMethod(ExecutableElement method) {
+        Set<Modifier> modifiers = method.getModifiers();
+        if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC)) {
+            error(method, "handler must not be private or static");
+            return false;
+        }
+        return true;
+    }
+
+    private boolean checkResultParameters(ExecutableElement method) {
+        List<? extends VariableElement> parameters = method.getParameters();
+        boolean valid = method.getReturnType().getKind() == TypeKind.VOID
+                && (parameters.size() == 1 || parameters.size() == 2)
+                && parameters.get(0).asType().getKind() == TypeKind.INT
+                && (parameters.size() == 1 || isStringArray(parameters.get(1).asType()));
+
+        if (!valid) {
+            error(method, "result handler must be void and take (int result) or (int result, String... permissions)");
+        }
+        return valid;
+    }
+
+    private boolean checkRationaleSignature(ExecutableElement method) {
+        List<? extends VariableElement> parameters = method.getParameters();
+        boolean valid = method.getReturnType().getKind() == TypeKind.BOOLEAN
+                && (parameters.isEmpty()
+                || parameters.size() == 1 && parameters.get(0).asType().toString().equals(REQUEST));
+
+        if (!valid) {
+            error(method, "rationale handler must return boolean and take no arguments or (Request request)");
+        }
+        return valid;
+    }
+
+    private boolean checkPermissions(ExecutableElement method, String[] permissions) {
+        if (permissions.length == 0) {
+            error(method, "no permissions");
+            return false;
+        }
+
+        Set<String> unique = new HashSet<>();
+        for (String permission : permissions) {
+            if (!unique.add(permission)) {
+                error(method, "duplicate permission " + permission);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isStringArray(TypeMirror type) {
+        return type.getKind() == TypeKind.ARRAY
+                && ((ArrayType) type).getComponentType().toString().equals(String.class.getName());
+    }
+
+    private void write(Target target) {
+        String packageName = processingEnv.getElementUtils().getPackageOf(target.type).getQualifiedName().toString();
+        String targetName = target.type.getQualifiedName().toString();
+        String className = bindingName(target.type);
+
+        StringBuilder out = new StringBuilder();
+        out.append("// Generated by ").append(getClass().getSimpleName()).append(", do not edit.\n");
+        if (!packageName.isEmpty()) {
+            out.append("package ").append(packageName).append(";\n\n");
+        }
+        out.append("public final class ").append(className).append(" implements ").append(PACKAGE).append(".PermissionRequests {\n");
+
+        for (int i = 0; i < target.bindings.size(); i++) {
+            out.append("    private static final String[] PERMISSIONS_").append(i).append(" = {");
+            for (String permission : target.bindings.get(i).permissions) {
+                out.append("\n            ").append(literal(permission)).append(',');
+            }
+            out.append("\n    };\n");
+        }
+        out.append('\n');
+
+        out.append("    private final ").append(targetName).append(" mTarget;\n");
+        for (int i = 0; i < target.bindings.size(); i++) {
+            out.append("    private ").append(REQUEST).append(" mRequest").append(i).append(";\n");
+        }
+        out.append('\n');
+
+        for (int i = 0; i < target.bindings.size(); i++) {
+            writeListener(out, target.bindings.get(i), i);
+        }
+
+        out.append("    public ").append(className).append('(').append(targetName).append(" target) {\n");
+        out.append("        mTarget = target;\n");
+        out.append("    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    public void start(boolean isRestored) {\n");
+        //requests are created once, later starts only add the listeners back
+        out.append("        if (mRequest0 == null) {\n");
+        out.append("            ").append(PACKAGE).append(".PermissionsManager manager = ").append(PACKAGE).append(".PermissionsManager.init(mTarget);\n");
+        for (int i = 0; i < target.bindings.size(); i++) {
+            Binding binding = target.bindings.get(i);
+            out.append("            mRequest").append(i).append(" = manager.").append(binding.each ? "createRequestEach" : "createRequestAll")
+                    .append('(').append(binding.requestCode).append(", isRestored, PERMISSIONS_").append(i).append(");\n");
+        }
+        out.append("        }\n");
+        for (int i = 0; i < target.bindings.size(); i++) {
+            out.append("        mRequest").append(i).append(".addListener(mTarget, mListener").append(i).append(");\n");
+        }
+        out.append("    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    public void stop() {\n");
+        out.append("        if (mRequest0 == null) {\n");
+        out.append("            return;\n");
+        out.append("        }\n");
+        for (int i = 0; i < target.bindings.size(); i++) {
+            out.append("        mRequest").append(i).append(".removeListener(mListener").append(i).append(");\n");
+        }
+        out.append("    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    public ").append(REQUEST).append(" get(int requestCode) {\n");
+        out.append("        switch (requestCode) {\n");
+        for (int i = 0; i < target.bindings.size(); i++) {
+            out.append("            case ").append(target.bindings.get(i).requestCode).append(":\n");
+            out.append("                return mRequest").append(i).append(";\n");
+        }
+        out.append("            default:\n");
+        out.append("                throw new IllegalArgumentException(\"requestCode \" + requestCode);\n");
+        out.append("        }\n");
+        out.append("    }\n");
+        out.append("}\n");
+
+        String qualifiedName = packageName.isEmpty() ? className : packageName + "." + className;
+        Writer writer = null;
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, target.type);
+            writer = file.openWriter();
+            writer.write(out.toString());
+        } catch (IOException e) {
+            error(target.type, "can't write " + qualifiedName + ": " + e.getMessage());
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static void writeListener(StringBuilder out, Binding binding, int index) {
+        out.append("    private final ").append(REQUEST).append(".Listener mListener").append(index)
+                .append(" = new ").append(REQUEST).append(".Listener() {\n");
+
+        out.append("        @Override\n");
+        out.append("        public boolean onShowRationale() {\n");
+        if (binding.rationaleMethod == null) {
+            out.append("            return true;\n");
+        } else {
+            out.append("            return mTarget.").append(binding.rationaleMethod)
+                    .append(binding.rationaleTakesRequest ? "(mRequest" + index + ")" : "()").append(";\n");
+        }
+        out.append("        }\n\n");
+
+        out.append("        @Override\n");
+        out.append("        public void onRequestResult(int result, int requestCode, String... permissions) {\n");
+        out.append("            mTarget.").append(binding.resultMethod)
+                .append(binding.resultTakesPermissions ? "(result, permissions)" : "(result)").append(";\n");
+        out.append("        }\n");
+
+        out.append("    };\n\n");
+    }
+
+    static String bindingName(TypeElement type) {
+        StringBuilder name = new StringBuilder(type.getSimpleName());
+        Element enclosing = type.getEnclosingElement();
+        while (enclosing.getKind() != ElementKind.PACKAGE) {
+            name.insert(0, enclosing.getSimpleName() + "_");
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return name.append(SUFFIX).toString();
+    }
+
+    private static String literal(String value) {
+        StringBuilder literal = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                literal.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                literal.append(String.format("\\u%04x", (int) c));
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.append('"').toString();
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    private static final class Target {
+        final TypeElement type;
+        final List<Binding> bindings = new ArrayList<>();
+
+        Target(TypeElement type) {
+            this.type = type;
+        }
+
+        Binding find(int requestCode) {
+            for (Binding binding : bindings) {
+                if (binding.requestCode == requestCode) {
+                    return binding;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Binding {
+        final int requestCode;
+        final String[] permissions;
+        final boolean each;
+        final String resultMethod;
+        final boolean resultTakesPermissions;
+
+        String rationaleMethod;
+        boolean rationaleTakesRequest;
+
+        Binding(int requestCode, String[] permissions, boolean each, String resultMethod, boolean resultTakesPermissions) {
+            this.requestCode = requestCode;
+            this.permissions = permissions;
+            this.each = each;
+            this.resultMethod = resultMethod;
+            this.resultTakesPermissions = resultTakesPermissions;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.tarasantoshchuk.permissionsmanager.processor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.*;
+
+public class PermissionRequestsProcessorTest {
+    /**
+     * Minimal library and framework classes the generated code is compiled against.
+     */
+    private static final String[][] STUBS = {
+            {"android/content/Context.java",
+                    "package android.content; public class Context {}"},
+            {"android/app/Activity.java",
+                    "package android.app; public class Activity extends android.content.Context {}"},
+            {"com/tarasantoshchuk/permissionsmanager/Request.java",
+                    "package com.tarasantoshchuk.permissionsmanager; public class Request {"
+                            + " public interface Listener { boolean onShowRationale();"
+                            + " void onRequestResult(int result, int requestCode, String... permissions); }"
+                            + " public void addListener(android.app.Activity owner, Listener listener) {}"
+                            + " public void removeListener(Listener listener) {} }"},
+            {"com/tarasantoshchuk/permissionsmanager/PermissionRequests.java",
+                    "package com.tarasantoshchuk.permissionsmanager; public interface PermissionRequests {"
+                            + " void start(boolean isRestored); void stop(); Request get(int requestCode); }"},
+            {"com/tarasantoshchuk/permissionsmanager/PermissionsManager.java",
+                    "package com.tarasantoshchuk.permissionsmanager; public class PermissionsManager {"
+                            + " public static PermissionsManager init(android.content.Context context) { return null; }"
+                            + " public Request createRequestAll(int requestCode, boolean isRestored, String... permissions) { return null; }"
+                            + " public Request createRequestEach(int requestCode, boolean isRestored, String... permissions) { return null; } }"},
+    };
+
+    private File mDir;
+    private String mDiagnostics;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("processor", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        delete(mDir);
+    }
+
+    @Test
+    public void generatesBindingWithDirectDispatch() throws Exception {
+        assertTrue(mDiagnostics, compile("com/example/MainActivity.java",
+                "package com.example;\n"
+                        + "import com.tarasantoshchuk.permissionsmanager.Request;\n"
+                        + "import com.tarasantoshchuk.permissionsmanager.annotations.*;\n"
+                        + "public class MainActivity extends android.app.Activity {\n"
+                        + "    @OnPermissionsResult(requestCode = 1, permissions = {\"android.permission.CAMERA\", \"com.example.A\\\"B\"})\n"
+                        + "    void onCamera(int result) {}\n"
+                        + "    @OnShowRationale(1)\n"
+                        + "    boolean onCameraRationale(Request request) { return false; }\n"
+                        + "    @OnPermissionsResult(requestCode = -2, permissions = \"android.permission.READ_CONTACTS\", each = true)\n"
+                        + "    void onContacts(int result, String... permissions) {}\n"
+                        + "    static class Nested extends android.app.Activity {\n"
+                        + "        @OnPermissionsResult(requestCode = 3, permissions = \"android.permission.CAMERA\")\n"
+                        + "        void onCamera(int result) {}\n"
+                        + "    }\n"
+                        + "}\n"));
+
+        String binding = read(new File(mDir, "generated/com/example/MainActivity_PermissionRequests.java"));
+        assertTrue(binding, binding.contains("\"android.permission.CAMERA\",\n            \"com.example.A\\\"B\","));
+        assertTrue(binding, binding.contains("if (mRequest0 == null) {\n"
+                + "            com.tarasantoshchuk.permissionsmanager.PermissionsManager manager"));
+        assertTrue(binding, binding.contains("manager.createRequestAll(1, isRestored, PERMISSIONS_0);"));
+        assertTrue(binding, binding.contains("manager.createRequestEach(-2, isRestored, PERMISSIONS_1);\n        }\n"
+                + "        mRequest0.addListener(mTarget, mListener0);\n"
+                + "        mRequest1.addListener(mTarget, mListener1);\n    }"));
+        assertTrue(binding, binding.contains("return mTarget.onCameraRationale(mRequest0);"));
+        assertTrue(binding, binding.contains("mTarget.onContacts(result, permissions);"));
+        assertTrue(binding, binding.contains("case -2:\n                return mRequest1;"));
+        assertFalse(binding, binding.contains("reflect"));
+
+        assertTrue(new File(mDir, "generated/com/example/MainActivity_Nested_PermissionRequests.java").exists());
+        assertTrue(new File(mDir, "classes/com/example/MainActivity_PermissionRequests.class").exists());
+    }
+
+    @Test
+    public void privateHandler_isReported() throws Exception {
+        assertFalse(compile("com/example/MainActivity.java",
+                "package com.example;\n"
+                        + "public class MainActivity extends android.app.Activity {\n"
+                        + "    @com.tarasantoshchuk.permissionsmanager.annotations.OnPermissionsResult(requestCode = 1, permissions = \"p\")\n"
+                        + "    private void onResult(int result) {}\n"
+                        + "}\n"));
+        assertTrue(mDiagnostics, mDiagnostics.contains("handler must not be private or static"));
+    }
+
+    @Test
+    public void invalidDeclarations_areReported() throws Exception {
+        assertFalse(compile("com/example/MainActivity.java",
+                "package com.example;\n"
+                        + "import com.tarasantoshchuk.permissionsmanager.annotations.*;\n"
+                        + "public class MainActivity extends android.app.Activity {\n"
+                        + "    @OnPermissionsResult(requestCode = 1, permissions = \"p\")\n"
+                        + "    void onResult(String result) {}\n"
+                        + "    @OnPermissionsResult(requestCode = 2, permissions = {})\n"
+                        + "    void onEmpty(int result) {}\n"
+                        + "    @OnShowRationale(3)\n"
+                        + "    boolean onRationale() { return true; }\n"
+                        + "}\n"
+                        + "class NotActivity {\n"
+                        + "    @OnPermissionsResult(requestCode = 1, permissions = \"p\")\n"
+                        + "    void onResult(int result) {}\n"
+                        + "}\n"));
+        assertTrue(mDiagnostics, mDiagnostics.contains("result handler must be void and take"));
+        assertTrue(mDiagnostics, mDiagnostics.contains("no permissions"));
+        assertTrue(mDiagnostics, mDiagnostics.contains("no @OnPermissionsResult for request code 3"));
+        assertTrue(mDiagnostics, mDiagnostics.contains("can only be declared in an Activity"));
+    }
+
+    /**
+     * Compiles the source with stubs and the annotations on the classpath.
+     *
+     * @return true if compilation succeeded
+     */
+    private boolean compile(String path, String source) throws IOException {
+        File sources = new File(mDir, "sources");
+        File generated = new File(mDir, "generated");
+        File classes = new File(mDir, "classes");
+        assertTrue(generated.mkdirs() && classes.mkdirs());
+
+        List<String> arguments = new ArrayList<>(Arrays.asList(
+                "-classpath", System.getProperty("java.class.path"),
+                "-processor", PermissionRequestsProcessor.class.getName(),
+                "-s", generated.getPath(),
+                "-d", classes.getPath()));
+        for (String[] stub : STUBS) {
+            arguments.add(write(new File(sources, stub[0]), stub[1]).getPath());
+        }
+        arguments.add(write(new File(sources, path), source).getPath());
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+        int status = compiler.run(null, diagnostics, diagnostics, arguments.toArray(new String[arguments.size()]));
+        mDiagnostics = diagnostics.toString("UTF-8");
+        return status == 0;
+    }
+
+    private static File write(File file, String content) throws IOException {
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private static String read(File file) throws IOException {
+        StringBuilder content = new StringBuilder();
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            char[] buffer = new char[4096];
+            int count;
+            while ((count = reader.read(buffer)) > 0) {
+                content.append(buffer, 0, count);
+            }
+        } finally {
+            reader.close();
+        }
+        return content.toString();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}